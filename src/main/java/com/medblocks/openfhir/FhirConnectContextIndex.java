@@ -0,0 +1,156 @@
+package com.medblocks.openfhir;
+
+import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
+import com.medblocks.openfhir.db.repository.FhirConnectContextRepository;
+import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
+import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory index of context mappers by their context.profile.url, used when mapping from FHIR to openEHR without an
+ * explicit templateId. Instead of evaluating a meta.profile condition of every context mapper against the incoming
+ * Resource, a context is found with a hash lookup of the Resource's (or Bundle entries') profiles. Template ids of all
+ * context mappers are indexed as well, so that templates that can be mapped are known without a database lookup.
+ * <p>
+ * Index is lazily built from the database and needs to be invalidated whenever a context mapper is upserted.
+ */
+@Component
+@Slf4j
+public class FhirConnectContextIndex {
+
+    private final FhirConnectContextRepository fhirConnectContextRepository;
+    private final OpenFhirStringUtils openFhirStringUtils;
+
+    private final AtomicLong generation = new AtomicLong();
+    private volatile Index index;
+
+    @Autowired
+    public FhirConnectContextIndex(final FhirConnectContextRepository fhirConnectContextRepository,
+                                   final OpenFhirStringUtils openFhirStringUtils) {
+        this.fhirConnectContextRepository = fhirConnectContextRepository;
+        this.openFhirStringUtils = openFhirStringUtils;
+    }
+
+    /**
+     * Finds a context mapper whose profile url matches any of the given profiles. If more than one context matches,
+     * the one that comes first in the database is returned (as it would have been when looping over all of them).
+     *
+     * @param profiles meta.profile values of the incoming Resource or of Bundle entries
+     * @return matching context mapper or null if none of the profiles is indexed
+     */
+    public FhirConnectContextEntity findByProfiles(final Collection<String> profiles) {
+        if (profiles == null || profiles.isEmpty()) {
+            return null;
+        }
+        final Map<String, IndexedContext> byProfile = index().byProfile();
+        IndexedContext found = null;
+        for (final String profile : profiles) {
+            final IndexedContext candidate = byProfile.get(profile);
+            if (candidate != null && (found == null || candidate.order() < found.order())) {
+                found = candidate;
+            }
+        }
+        return found == null ? null : found.context();
+    }
+
+    /**
+     * @return context mappers without a profile url, these can't be found by profile and are used as a fallback
+     */
+    public List<FhirConnectContextEntity> contextsWithoutProfile() {
+        return index().withoutProfile();
+    }
+
+    /**
+     * @param templateId template id, normalized before it's looked up
+     * @return whether any context mapper maps the given template
+     */
+    public boolean hasTemplate(final String templateId) {
+        return templateId != null
+                && index().templateIds().contains(OpenFhirMappingContext.normalizeTemplateId(templateId));
+    }
+
+    public void invalidate() {
+        generation.incrementAndGet();
+        index = null;
+        log.debug("Context profile index invalidated");
+    }
+
+    private Index index() {
+        Index current = index;
+        if (current == null) {
+            synchronized (this) {
+                current = index;
+                if (current == null) {
+                    final long builtGeneration = generation.get();
+                    current = buildIndex();
+                    if (builtGeneration == generation.get()) {
+                        // only keep it if no context has been upserted in the meantime
+                        index = current;
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    private Index buildIndex() {
+        final List<FhirConnectContextEntity> allContexts = fhirConnectContextRepository.findAll();
+        final Map<String, IndexedContext> byProfile = new HashMap<>();
+        final List<FhirConnectContextEntity> withoutProfile = new ArrayList<>();
+        final Set<String> templateIds = new HashSet<>();
+        if (allContexts != null) {
+            for (int i = 0; i < allContexts.size(); i++) {
+                final FhirConnectContextEntity context = allContexts.get(i);
+                final String templateId = getTemplateId(context.getFhirConnectContext());
+                if (templateId != null) {
+                    templateIds.add(OpenFhirMappingContext.normalizeTemplateId(templateId));
+                }
+                final String profileUrl = getProfileUrl(context.getFhirConnectContext());
+                if (StringUtils.isEmpty(profileUrl)) {
+                    withoutProfile.add(context);
+                    continue;
+                }
+                for (final String url : openFhirStringUtils.getCodesFromCriteria(profileUrl)) {
+                    byProfile.putIfAbsent(url, new IndexedContext(i, context));
+                }
+            }
+        }
+        log.info("Indexed {} context profiles, {} contexts without a profile", byProfile.size(),
+                 withoutProfile.size());
+        return new Index(Collections.unmodifiableMap(byProfile), Collections.unmodifiableList(withoutProfile),
+                         Collections.unmodifiableSet(templateIds));
+    }
+
+    private String getTemplateId(final FhirConnectContext context) {
+        if (context == null || context.getContext() == null || context.getContext().getTemplate() == null) {
+            return null;
+        }
+        return context.getContext().getTemplate().getId();
+    }
+
+    private String getProfileUrl(final FhirConnectContext context) {
+        if (context == null || context.getContext() == null || context.getContext().getProfile() == null) {
+            return null;
+        }
+        return context.getContext().getProfile().getUrl();
+    }
+
+    private record IndexedContext(int order, FhirConnectContextEntity context) {
+    }
+
+    private record Index(Map<String, IndexedContext> byProfile, List<FhirConnectContextEntity> withoutProfile,
+                         Set<String> templateIds) {
+    }
+}
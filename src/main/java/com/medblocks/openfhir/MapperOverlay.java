@@ -0,0 +1,76 @@
+package com.medblocks.openfhir;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.medblocks.openfhir.fc.OpenFhirFhirConnectModelMapper;
+import com.medblocks.openfhir.fc.schema.model.Mapping;
+import com.medblocks.openfhir.fc.schema.model.With;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Working copies of model mappers that are shared by all requests (they're part of a cached mapping plan).
+ * <p>
+ * Preparing a mapper for a mapping rewrites paths and conditions of its mappings in place (followed by, $reference
+ * and slot mappings inherit their parent's paths, openEHR conditions are resolved against the web template and
+ * mappings hardcoding to FHIR get an openEHR path). Such mappers are copied right before they're prepared, whereas
+ * mappers that preparation doesn't modify are used as they are. Whether a mapper is modified is determined once per
+ * shared mapper.
+ */
+public final class MapperOverlay {
+
+    private static final Cache<OpenFhirFhirConnectModelMapper, Boolean> MODIFIED_BY_PREPARATION = Caffeine.newBuilder()
+            .weakKeys()
+            .build();
+
+    private MapperOverlay() {
+    }
+
+    /**
+     * @param sharedMappers mappers as returned by the mapping context; can be null
+     * @return mappers that can be prepared for a mapping of a single top level archetype
+     */
+    public static List<OpenFhirFhirConnectModelMapper> forPreparation(
+            final List<OpenFhirFhirConnectModelMapper> sharedMappers) {
+        if (sharedMappers == null) {
+            return null;
+        }
+        return sharedMappers.stream().map(MapperOverlay::forPreparation).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the shared mapper itself if preparing it doesn't modify it, a copy otherwise
+     */
+    public static OpenFhirFhirConnectModelMapper forPreparation(final OpenFhirFhirConnectModelMapper sharedMapper) {
+        return MODIFIED_BY_PREPARATION.get(sharedMapper, MapperOverlay::isModifiedByPreparation)
+                ? sharedMapper.copy() : sharedMapper;
+    }
+
+    /**
+     * Slot archetype mappers inherit their parent mapper's fhir config and paths, which differ with every parent
+     * they're used in, so they're always copied.
+     *
+     * @param sharedMappers slot archetype mappers as returned by the mapping context
+     * @return copies of the mappers
+     */
+    public static List<OpenFhirFhirConnectModelMapper> forSlotPreparation(
+            final List<OpenFhirFhirConnectModelMapper> sharedMappers) {
+        return sharedMappers.stream().map(OpenFhirFhirConnectModelMapper::copy).collect(Collectors.toList());
+    }
+
+    private static boolean isModifiedByPreparation(final OpenFhirFhirConnectModelMapper mapper) {
+        if (mapper.getMappings() == null) {
+            return false;
+        }
+        return mapper.getMappings().stream().anyMatch(MapperOverlay::isModifiedByPreparation);
+    }
+
+    private static boolean isModifiedByPreparation(final Mapping mapping) {
+        final With with = mapping.getWith();
+        return mapping.getOpenehrCondition() != null
+                || mapping.getFollowedBy() != null
+                || mapping.getReference() != null
+                || mapping.getSlotArchetype() != null
+                || with != null && with.getOpenehr() == null && with.getValue() != null;
+    }
+}
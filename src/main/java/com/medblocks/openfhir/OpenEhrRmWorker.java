@@ -4,15 +4,14 @@ import com.medblocks.openfhir.fc.FhirConnectConst;
 import com.medblocks.openfhir.toopenehr.FhirToOpenEhrHelper;
 import com.medblocks.openfhir.util.OpenFhirMapperUtils;
 import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import com.medblocks.openfhir.util.WebTemplateIndex;
 import org.apache.commons.lang3.StringUtils;
-import org.ehrbase.openehr.sdk.aql.webtemplatepath.AqlPath;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplateNode;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 import static com.medblocks.openfhir.fc.FhirConnectConst.OPENEHR_TYPE_NONE;
 import static com.medblocks.openfhir.fc.FhirConnectConst.OPENEHR_UNDERSCORABLES;
@@ -34,6 +33,9 @@ public class OpenEhrRmWorker {
     /**
      * Modifies simplified flat path with occurrences, i.e. patient.person becomes patient/person[n]
      * at the same time, it sets openEHR type as it finds all possible ones on the template definition
+     * <p>
+     * Resolutions only depend on the template, the simplified path and the forced type, so they're memoized per
+     * template (@see #resolve(String, String, WebTemplate))
      *
      * @param helpers     created FhirToOpenEhr helpers
      * @param webTemplate openEHR web template
@@ -41,88 +43,113 @@ public class OpenEhrRmWorker {
     public void fixFlatWithOccurrences(final List<FhirToOpenEhrHelper> helpers, final WebTemplate webTemplate) {
         for (final FhirToOpenEhrHelper fhirToOpenEhrHelper : helpers) {
 
-            final String openEhrKey = fhirToOpenEhrHelper.getOpenEhrPath();
-            final Set<String> forcedTypes = openFhirStringUtils.getPossibleRmTypeValue(fhirToOpenEhrHelper.getOpenEhrType());
-
-            final boolean hasSuffix = openEhrKey.contains("|");
-            final String suffix = hasSuffix ? openEhrKey.substring(openEhrKey.indexOf("|")) : null;
-            final String flat = hasSuffix ? openEhrKey.substring(0, openEhrKey.indexOf("|")) : openEhrKey;
-            final String[] split = flat.substring(flat.indexOf("/") + 1).split("/"); // we want to remove the first path, as it's the template itself
-            final WebTemplateNode tree = webTemplate.getTree();
-            final StringJoiner constructing = new StringJoiner("/");
-            final String pathToFindSuffix="/";
-
-            // walk through all web template nodes and enrich them with types and occurrence indexes
-            walkThroughNodes(tree.getChildren(), String.join("/", split), constructing, forcedTypes, fhirToOpenEhrHelper,pathToFindSuffix);
-
-            final String actualSuffix = openFhirMapperUtils.endsWithAqlSuffix(suffix) ? openFhirMapperUtils.replaceAqlSuffixWithFlatSuffix(suffix) : suffix;
-            fhirToOpenEhrHelper.setOpenEhrPath(tree.getId() + "/" + fhirToOpenEhrHelper.getOpenEhrPath() + (hasSuffix ? actualSuffix : ""));
-
-            // we compare so that we can see if if was found within the template; if not, we don't want for it to end up in the flat json
-            final int initialOpenEhrPathWithProperTreeLength = split.length + 1;
-            if (fhirToOpenEhrHelper.getOpenEhrPath().replace("|", "/").split("/").length < initialOpenEhrPathWithProperTreeLength ) {
-                // means it didn't find it fully.. so it probably doesn't exist
-                if (!FhirConnectConst.DV_MULTIMEDIA.equals(fhirToOpenEhrHelper.getOpenEhrType())) { // multimedia and its 'content' is a tad bit special...
-                    fhirToOpenEhrHelper.setOpenEhrType(OPENEHR_TYPE_NONE);
-                }
-            }
+            final WebTemplateIndex.ResolvedPath resolved = resolve(fhirToOpenEhrHelper.getOpenEhrPath(),
+                                                                   fhirToOpenEhrHelper.getOpenEhrType(), webTemplate);
+            fhirToOpenEhrHelper.setOpenEhrPath(resolved.openEhrPath());
+            fhirToOpenEhrHelper.setOpenEhrType(resolved.openEhrType());
 
             if (fhirToOpenEhrHelper.getFhirToOpenEhrHelpers() != null) {
                 fixFlatWithOccurrences(fhirToOpenEhrHelper.getFhirToOpenEhrHelpers(), webTemplate);
             }
+        }
+    }
 
-            removeInvalidOpenEhrPath(fhirToOpenEhrHelper);
+    /**
+     * Resolves a simplified openEHR path against the template, i.e. patient.person becomes
+     * template/patient/person[n], together with the openEHR type of the resolved path. Resolutions are memoized
+     * for as long as the template is.
+     *
+     * @param openEhrPath simplified openEHR path
+     * @param openEhrType openEHR type forced by a mapping or null if it's not being forced
+     * @param webTemplate openEHR web template
+     * @return resolved flat path (with recurring syntax) and its openEHR type
+     */
+    public WebTemplateIndex.ResolvedPath resolve(final String openEhrPath, final String openEhrType,
+                                                 final WebTemplate webTemplate) {
+        final WebTemplateIndex index = WebTemplateIndex.of(webTemplate);
+        return index.getResolvedPath(openEhrPath, openEhrType,
+                                     toResolve -> doResolve(toResolve, webTemplate.getTree().getId(), index));
+    }
 
+    private WebTemplateIndex.ResolvedPath doResolve(final WebTemplateIndex.PathToResolve toResolve,
+                                                    final String treeId, final WebTemplateIndex index) {
+        final FhirToOpenEhrHelper fhirToOpenEhrHelper = FhirToOpenEhrHelper.builder()
+                .openEhrPath(toResolve.openEhrPath())
+                .openEhrType(toResolve.openEhrType())
+                .build();
+
+        final String openEhrKey = fhirToOpenEhrHelper.getOpenEhrPath();
+        final Set<String> forcedTypes = openFhirStringUtils.getPossibleRmTypeValue(fhirToOpenEhrHelper.getOpenEhrType());
+
+        final boolean hasSuffix = openEhrKey.contains("|");
+        final String suffix = hasSuffix ? openEhrKey.substring(openEhrKey.indexOf("|")) : null;
+        final String flat = hasSuffix ? openEhrKey.substring(0, openEhrKey.indexOf("|")) : openEhrKey;
+        final String[] split = flat.substring(flat.indexOf("/") + 1).split("/"); // we want to remove the first path, as it's the template itself
+        final StringJoiner constructing = new StringJoiner("/");
+        final String pathToFindSuffix="/";
+
+        // walk through all web template nodes and enrich them with types and occurrence indexes
+        walkThroughNodes(index.getRoot(), String.join("/", split), constructing, forcedTypes, fhirToOpenEhrHelper,pathToFindSuffix);
+
+        final String actualSuffix = openFhirMapperUtils.endsWithAqlSuffix(suffix) ? openFhirMapperUtils.replaceAqlSuffixWithFlatSuffix(suffix) : suffix;
+        fhirToOpenEhrHelper.setOpenEhrPath(treeId + "/" + fhirToOpenEhrHelper.getOpenEhrPath() + (hasSuffix ? actualSuffix : ""));
+
+        // we compare so that we can see if if was found within the template; if not, we don't want for it to end up in the flat json
+        final int initialOpenEhrPathWithProperTreeLength = split.length + 1;
+        if (fhirToOpenEhrHelper.getOpenEhrPath().replace("|", "/").split("/").length < initialOpenEhrPathWithProperTreeLength ) {
+            // means it didn't find it fully.. so it probably doesn't exist
+            if (!FhirConnectConst.DV_MULTIMEDIA.equals(fhirToOpenEhrHelper.getOpenEhrType())) { // multimedia and its 'content' is a tad bit special...
+                fhirToOpenEhrHelper.setOpenEhrType(OPENEHR_TYPE_NONE);
+            }
         }
+
+        removeInvalidOpenEhrPath(fhirToOpenEhrHelper);
+
+        return new WebTemplateIndex.ResolvedPath(fhirToOpenEhrHelper.getOpenEhrPath(),
+                                                 fhirToOpenEhrHelper.getOpenEhrType());
     }
 
     /**
      * Walks through web template nodes and sets recurring indexes on simplified flat path; at the same time, it adds
      * openEHR type
      *
-     * @param webTemplateNodes web template nodes as they exist on the openEHR template
+     * @param webTemplateNodes indexed web template nodes as they exist on the openEHR template
      * @param path             part of openEHR path that's being searched for within the webTemplateNodes
      * @param constructing     string being constructed from the path elements, however here already including recurring indexes notation, i.e. medikationseintrag[n]
      * @param forcedTypes      if openEHR type is being "forced" by a fhir connect mapping definition, this is the one we'll try to find within the template
      */
-    public void walkThroughNodes(final List<WebTemplateNode> webTemplateNodes, final String path,
+    public void walkThroughNodes(final WebTemplateIndex.Children webTemplateNodes, final String path,
                                  final StringJoiner constructing, final Set<String> forcedTypes,
                                  final FhirToOpenEhrHelper fhirToOpenEhrHelper, String pathToFindSuffix) {
-        final WebTemplateNode foundWithinIds = webTemplateNodes.stream()
-                .filter(wn -> path.equals(wn.getId())).findAny()
-                .orElse(null);
+        final WebTemplateIndex.Node foundWithinIds = webTemplateNodes.getById(path);
         if (StringUtils.isBlank(path) || foundWithinIds != null) {
             if(StringUtils.isNotBlank(path)) {
                 if(!openFhirMapperUtils.endsWithAqlSuffix(path)) {
                     constructing.add(OPENEHR_UNDERSCORABLES.contains(path) ? ("_" + path)
                                              : path);
                 }
-                fhirToOpenEhrHelper.setOpenEhrType(foundWithinIds.getRmType());
+                fhirToOpenEhrHelper.setOpenEhrType(foundWithinIds.rmType());
             }
 
             // everything has been resolved
             // check for special paths
-            webTemplateNodes.stream()
-                    .filter(wn -> "identifier_value".equals(wn.getId())).findAny()
-                    .ifPresent(identifierValue -> constructing.add("identifier_value"));
-            webTemplateNodes.stream()
-                    .filter(wn -> "date_time_value".equals(wn.getId())).findAny()
-                    .ifPresent(identifierValue -> constructing.add("date_time_value"));
-            webTemplateNodes.stream()
-                    .filter(wn -> "quantity_value".equals(wn.getId())).findAny()
-                    .ifPresent(identifierValue -> constructing.add("quantity_value"));
+            if (webTemplateNodes.hasId("identifier_value")) {
+                constructing.add("identifier_value");
+            }
+            if (webTemplateNodes.hasId("date_time_value")) {
+                constructing.add("date_time_value");
+            }
+            if (webTemplateNodes.hasId("quantity_value")) {
+                constructing.add("quantity_value");
+            }
 
             fhirToOpenEhrHelper.setOpenEhrPath(constructing.toString());
             if (!webTemplateNodes.isEmpty()) {
                 if (forcedTypes == null || forcedTypes.isEmpty()) {
-                    webTemplateNodes.stream()
-                            .filter(wn -> "value".equals(wn.getId())
-                                    || "identifier_value".equals(wn.getId())
-                                    || "coded_text_value".equals(wn.getId())
-                                    || "quantity_value".equals(wn.getId())
-                                    || "date_time_value".equals(wn.getId()))
-                            .findAny().ifPresent(
-                                    valueForActualType -> fhirToOpenEhrHelper.setOpenEhrType(valueForActualType.getRmType()));
+                    final WebTemplateIndex.Node valueForActualType = webTemplateNodes.getValueNode();
+                    if (valueForActualType != null) {
+                        fhirToOpenEhrHelper.setOpenEhrType(valueForActualType.rmType());
+                    }
                 }
 
             }
@@ -140,50 +167,46 @@ public class OpenEhrRmWorker {
                              constructing, forcedTypes, fhirToOpenEhrHelper, pathToFindSuffix);
             return;
         }
-        AqlPath aqlPath = AqlPath.parse(pathToFind);
-        Set<String> aqlPathNodes = webTemplateNodes.stream()
-                .filter(node -> aqlPath.format(false).equals(node.getAqlPath(false)))
-                .map(node -> node.getId(false))
-                .collect(Collectors.toSet());
-        final WebTemplateNode findingTheOne = webTemplateNodes.stream()
-                .filter(ch -> aqlPath.format(true).equals(ch.getAqlPath(true)) || (
-                        aqlPath.format(false).equals(ch.getAqlPath(false)) && aqlPathNodes.size() <= 1))
-                .findAny()
-                .orElse(null);
+        final WebTemplateIndex.Node findingTheOne = webTemplateNodes.getByAqlPath(
+                WebTemplateIndex.formatAqlPath(pathToFind));
         if (findingTheOne == null) {
-            for (WebTemplateNode itemTree : webTemplateNodes) {
-                walkThroughNodes(itemTree.getChildren(), path, constructing, forcedTypes, fhirToOpenEhrHelper,
+            for (WebTemplateIndex.Node itemTree : webTemplateNodes.getNodes()) {
+                walkThroughNodes(itemTree.children(), path, constructing, forcedTypes, fhirToOpenEhrHelper,
                                  pathToFindSuffix);
             }
             fhirToOpenEhrHelper.setOpenEhrPath(constructing.toString());
             return;
         }
         remainingPaths = Arrays.asList(splitOpenEhrPath).subList(1, splitOpenEhrPath.length);
-        if (findingTheOne.isMulti()) {
+        if (findingTheOne.multi()) {
             // is multiple occurrences
-            constructing.add(findingTheOne.getId() + RECURRING_SYNTAX);
-            fhirToOpenEhrHelper.setOpenEhrType(forcedTypes == null ? findingTheOne.getRmType()
-                                                       : getCorrectOpenEhrType(forcedTypes, findingTheOne,
+            constructing.add(findingTheOne.id() + RECURRING_SYNTAX);
+            fhirToOpenEhrHelper.setOpenEhrType(forcedTypes == null ? findingTheOne.rmType()
+                                                       : getCorrectOpenEhrType(forcedTypes,
+                                                                               findingTheOne.webTemplateNode(),
                                                                                constructing));
         } else {
-            if (FhirConnectConst.OPENEHR_INVALID_PATH_RM_TYPES.contains(findingTheOne.getRmType())) {
-                constructing.add(findingTheOne.getRmType());
+            if (FhirConnectConst.OPENEHR_INVALID_PATH_RM_TYPES.contains(findingTheOne.rmType())) {
+                constructing.add(findingTheOne.rmType());
             } else {
-                constructing.add(OPENEHR_UNDERSCORABLES.contains(findingTheOne.getId()) ? ("_" + findingTheOne.getId())
-                                         : findingTheOne.getId());
+                constructing.add(OPENEHR_UNDERSCORABLES.contains(findingTheOne.id()) ? ("_" + findingTheOne.id())
+                                         : findingTheOne.id());
             }
-            fhirToOpenEhrHelper.setOpenEhrType(forcedTypes == null ? findingTheOne.getRmType()
-                                                       : getCorrectOpenEhrType(forcedTypes, findingTheOne,
+            fhirToOpenEhrHelper.setOpenEhrType(forcedTypes == null ? findingTheOne.rmType()
+                                                       : getCorrectOpenEhrType(forcedTypes,
+                                                                               findingTheOne.webTemplateNode(),
                                                                                constructing));
         }
         String remainingPathsStr = String.join("/", remainingPaths);
-        AqlPath remainingsAqlPath = AqlPath.parse(remainingPathsStr);
-        if (!remainingsAqlPath.format(false).equals(remainingPathsStr)) {
-            walkThroughNodes(findingTheOne.getChildren(), String.join("/", remainingPaths),
-                             constructing, forcedTypes, fhirToOpenEhrHelper, findingTheOne.getAqlPath(true) + "/");
+        final WebTemplateIndex.FormattedAqlPath remainingsAqlPath = WebTemplateIndex.formatAqlPath(remainingPathsStr);
+        if (!remainingsAqlPath.withoutOtherPredicates().equals(remainingPathsStr)) {
+            walkThroughNodes(findingTheOne.children(), remainingPathsStr,
+                             constructing, forcedTypes, fhirToOpenEhrHelper,
+                             findingTheOne.webTemplateNode().getAqlPath(true) + "/");
         } else {
-            walkThroughNodes(findingTheOne.getChildren(), String.join("/", remainingPaths),
-                             constructing, forcedTypes, fhirToOpenEhrHelper, findingTheOne.getAqlPath(false) + "/");
+            walkThroughNodes(findingTheOne.children(), remainingPathsStr,
+                             constructing, forcedTypes, fhirToOpenEhrHelper,
+                             findingTheOne.webTemplateNode().getAqlPath(false) + "/");
         }
     }
 
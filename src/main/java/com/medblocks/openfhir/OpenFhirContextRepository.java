@@ -1,9 +1,16 @@
 package com.medblocks.openfhir;
 
 import com.medblocks.openfhir.fc.OpenFhirFhirConnectModelMapper;
+import com.medblocks.openfhir.util.OpenFhirStringUtils;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
 import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
@@ -21,4 +28,44 @@ public class OpenFhirContextRepository {
     private Map<String, List<OpenFhirFhirConnectModelMapper>> slotMappers;
     private OPERATIONALTEMPLATE operationaltemplate;
     private WebTemplate webTemplate;
+
+    /**
+     * lazily built from mappers, reset whenever mappers are set
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private volatile ResourceTypeMapperIndex resourceTypeIndex;
+
+    /**
+     * whether openEHR paths of this plan's mappers have already been precomputed
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private final AtomicBoolean pathsPrecomputed = new AtomicBoolean();
+
+    public void setMappers(final Map<String, List<OpenFhirFhirConnectModelMapper>> mappers) {
+        this.mappers = mappers;
+        this.resourceTypeIndex = null;
+    }
+
+    /**
+     * @return true only the first time it's invoked, meaning the caller is the one that should precompute paths
+     */
+    public boolean markPathsPrecomputed() {
+        return pathsPrecomputed.compareAndSet(false, true);
+    }
+
+    ResourceTypeMapperIndex getResourceTypeIndex(final OpenFhirStringUtils openFhirStringUtils) {
+        ResourceTypeMapperIndex index = resourceTypeIndex;
+        if (index == null) {
+            // building it twice by concurrent requests is harmless
+            index = new ResourceTypeMapperIndex(mappers, openFhirStringUtils);
+            resourceTypeIndex = index;
+        }
+        return index;
+    }
 }
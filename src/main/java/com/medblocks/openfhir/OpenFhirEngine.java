@@ -1,26 +1,30 @@
 package com.medblocks.openfhir;
 
-import ca.uhn.fhir.parser.JsonParser;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
 import com.medblocks.openfhir.db.repository.FhirConnectContextRepository;
 import com.medblocks.openfhir.fc.FhirConnectConst;
+import com.medblocks.openfhir.fc.schema.context.ContextProfile;
 import com.medblocks.openfhir.fc.schema.model.Condition;
 import com.medblocks.openfhir.tofhir.OpenEhrToFhir;
 import com.medblocks.openfhir.toopenehr.FhirToOpenEhr;
+import com.medblocks.openfhir.util.FhirJsonParserProvider;
 import com.medblocks.openfhir.util.OpenEhrCachedUtils;
 import com.medblocks.openfhir.util.OpenFhirStringUtils;
 import com.nedap.archie.rm.composition.Composition;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
 import org.ehrbase.openehr.sdk.serialisation.jsonencoding.CanonicalJson;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
 import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
 import org.hl7.fhir.r4.model.Base;
 import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.Resource;
 import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -29,68 +33,126 @@ import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.Function;
 
 @Component
 @Slf4j
 @Transactional
 public class OpenFhirEngine {
 
+    /**
+     * same as what CanonicalJson.marshal uses, but reused and writing to a stream without closing it
+     */
+    private static final ObjectWriter CANONICAL_WRITER = CanonicalJson.MARSHAL_OM.writer()
+            .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    /**
+     * canonical json writer writing a Composition on a single line, as in newline delimited json
+     */
+    private static final ObjectWriter CANONICAL_LINE_WRITER = CANONICAL_WRITER
+            .without(SerializationFeature.INDENT_OUTPUT);
+
     private final FhirToOpenEhr fhirToOpenEhr;
     private final OpenEhrToFhir openEhrToFhir;
     private final FhirConnectContextRepository fhirConnectContextRepository;
-    private final JsonParser jsonParser;
+    private final FhirJsonParserProvider jsonParserProvider;
     private final OpenEhrCachedUtils cachedUtils;
-    private final FlatJsonUnmarshaller flatJsonUnmarshaller;
     private final ProdOpenFhirMappingContext prodOpenFhirMappingContext;
     private final OpenFhirStringUtils openFhirStringUtils;
     private final FhirPathR4 fhirPathR4;
     private final Gson gson;
+    private final FhirConnectContextIndex contextIndex;
 
     @Autowired
     public OpenFhirEngine(final FhirToOpenEhr fhirToOpenEhr,
                           final OpenEhrToFhir openEhrToFhir,
                           final FhirConnectContextRepository fhirConnectContextRepository,
-                          final JsonParser jsonParser,
+                          final FhirJsonParserProvider jsonParserProvider,
                           final OpenEhrCachedUtils cachedUtils,
-                          final FlatJsonUnmarshaller flatJsonUnmarshaller,
                           final ProdOpenFhirMappingContext prodOpenFhirMappingContext,
                           final OpenFhirStringUtils openFhirStringUtils,
                           final FhirPathR4 fhirPathR4,
-                          final Gson gson) {
+                          final Gson gson,
+                          final FhirConnectContextIndex contextIndex) {
         this.fhirToOpenEhr = fhirToOpenEhr;
         this.openEhrToFhir = openEhrToFhir;
         this.fhirConnectContextRepository = fhirConnectContextRepository;
-        this.jsonParser = jsonParser;
+        this.jsonParserProvider = jsonParserProvider;
         this.cachedUtils = cachedUtils;
-        this.flatJsonUnmarshaller = flatJsonUnmarshaller;
         this.prodOpenFhirMappingContext = prodOpenFhirMappingContext;
         this.openFhirStringUtils = openFhirStringUtils;
         this.fhirPathR4 = fhirPathR4;
         this.gson = gson;
+        this.contextIndex = contextIndex;
     }
 
     /**
      * Returns context for when mapping from FHIR to openEHR, where context is either gotten from the provided
-     * templateId, or if none is provided, it will loop through all user's contexts and try to apply
-     * fhir condition on them.
+     * templateId, or if none is provided, it will be looked up by the incoming Resource's meta.profile (or Bundle
+     * entries' meta.profile) in the context profile index. Contexts without a profile are used as a fallback.
      */
     private FhirConnectContextEntity getContextForFhir(final String templateId,
-                                                       final String incomingFhirResource) {
+                                                       final Resource resource,
+                                                       final Function<String, FhirConnectContextEntity> contextByTemplateId) {
         log.debug("Getting context for template {}", templateId);
         if (StringUtils.isNotBlank(templateId)) {
-            return fhirConnectContextRepository.findByTemplateId(templateId);
+            return contextByTemplateId.apply(templateId);
+        }
+        final FhirConnectContextEntity byProfile = contextIndex.findByProfiles(getProfiles(resource));
+        if (byProfile != null) {
+            log.info("Found a relevant context ({}) for this input fhir Resource by its profile.", byProfile.getId());
+            return byProfile;
+        }
+        return getContextForFhirByCondition(contextIndex.contextsWithoutProfile(), resource);
+    }
+
+    /**
+     * Returns meta.profile values of the Resource or, if it's a Bundle, of all its entries.
+     */
+    private Set<String> getProfiles(final Resource resource) {
+        final Set<String> profiles = new LinkedHashSet<>();
+        if (resource instanceof Bundle bundle) {
+            for (final Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                addProfiles(entry.getResource(), profiles);
+            }
+        } else {
+            addProfiles(resource, profiles);
+        }
+        return profiles;
+    }
+
+    private void addProfiles(final Resource resource, final Set<String> profiles) {
+        if (resource == null || !resource.hasMeta()) {
+            return;
+        }
+        for (final CanonicalType profile : resource.getMeta().getProfile()) {
+            if (profile.getValue() != null) {
+                profiles.add(profile.getValue());
+            }
         }
-        final List<FhirConnectContextEntity> allUserContexts = fhirConnectContextRepository.findAll();
+    }
 
+    /**
+     * Loops through the given contexts and tries to apply their fhir condition on the Resource. Used as a fallback
+     * when no context could be found by profile.
+     */
+    private FhirConnectContextEntity getContextForFhirByCondition(final List<FhirConnectContextEntity> contexts,
+                                                                  final Resource resource) {
         FhirConnectContextEntity fallbackContext = null;
 
-        final Resource resource = parseIncomingFhirResource(incomingFhirResource);
-        for (final FhirConnectContextEntity context : allUserContexts) {
-            final Condition condition = getContextCondition(
-                    context.getFhirConnectContext().getContext().getProfile().getUrl(),
-                    resource.getResourceType().name());
+        for (final FhirConnectContextEntity context : contexts) {
+            final ContextProfile profile = context.getFhirConnectContext().getContext().getProfile();
+            final Condition condition = getContextCondition(profile == null ? null : profile.getUrl(),
+                                                            resource.getResourceType().name());
             final String resourceType = resource.getResourceType().name();
             final String fhirPathWithCondition = openFhirStringUtils.amendFhirPath(FhirConnectConst.FHIR_RESOURCE_FC,
                                                                                    Arrays.asList(condition),
@@ -135,29 +197,25 @@ public class OpenFhirEngine {
 
     /**
      * Returns context for when mapping from openEHR to FHIR. It will first take the templateId from the incoming
-     * payload (flatJson or Composition JSON) and then find it by user and templateId
+     * payload (flatJson or Composition JSON), as sniffed in the request envelope, and then find it by user and
+     * templateId
      */
-    private FhirConnectContextEntity getContextForOpenEhr(final String incomingOpenEhr,
-                                                          final String incomingTemplateId) {
+    private FhirConnectContextEntity getContextForOpenEhr(final RequestEnvelope incomingOpenEhr,
+                                                          final String incomingTemplateId,
+                                                          final Function<String, FhirConnectContextEntity> contextByTemplateId) {
         log.debug("Getting context for template {}", incomingTemplateId);
         if (StringUtils.isNotBlank(incomingTemplateId)) {
-            return fhirConnectContextRepository.findByTemplateId(incomingTemplateId);
+            return contextByTemplateId.apply(incomingTemplateId);
         }
         log.debug("Will try to obtain template id from the incoming openEhr object");
-        final String templateId = getTemplateIdFromOpenEhr(incomingOpenEhr);
-        return fhirConnectContextRepository.findByTemplateId(templateId);
+        final String templateId = incomingOpenEhr.getTemplateId();
+        return templateId == null ? null : contextByTemplateId.apply(templateId);
     }
 
     String getTemplateIdFromOpenEhr(final String incomingOpenEhr) {
-        final JsonObject jsonObject = gson.fromJson(incomingOpenEhr, JsonObject.class);
-        if (jsonObject.get("_type") != null && "COMPOSITION".equals(jsonObject.get("_type").getAsString())) {
-            return jsonObject.get("archetype_details").getAsJsonObject().get("template_id").getAsJsonObject().get("value").getAsString();
-        }
-        final Set<String> keys = jsonObject.keySet();
-        return new ArrayList<>(keys).get(0).split("/")[0];
+        return RequestEnvelope.sniff(incomingOpenEhr).getTemplateId();
     }
 
-
     /**
      * templateId is right now required. In the future, context mapper should also have a fhir path condition in there
      * so we could dynamically determine which context mapper is for which Request (incoming Bundle)
@@ -166,9 +224,56 @@ public class OpenFhirEngine {
      * if the caller will always know which template to use?
      */
     public String toOpenEhr(final String incomingFhirResource, final String incomingTemplateId, final Boolean flat) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            toOpenEhrOutput(incomingFhirResource, incomingTemplateId, flat).writeTo(out);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Does the whole mapping from FHIR to openEHR right away (so any mapping errors are thrown from here), but
+     * postpones serialization of the result to when the returned OpenEhrOutput is written, so it can be written
+     * straight to an output stream without creating a String first. Serialization can fail as well, so it should be
+     * written somewhere (i.e. a buffer) before an HTTP response is committed.
+     *
+     * @param flat whether flat json format should be written; canonical json is written otherwise
+     */
+    public OpenEhrOutput toOpenEhrOutput(final String incomingFhirResource, final String incomingTemplateId,
+                                         final Boolean flat) {
+        final Resource resource = parseIncomingFhirResource(RequestEnvelope.sniff(incomingFhirResource));
+        return toOpenEhrOutput(resource, incomingTemplateId, flat, fhirConnectContextRepository::findByTemplateId,
+                               CANONICAL_WRITER);
+    }
+
+    /**
+     * Maps an already parsed FHIR Resource to openEHR and returns the Composition as a single line of json, as in
+     * newline delimited json.
+     *
+     * @param flat whether flat json format should be returned; canonical json is returned otherwise
+     * @param contextByTemplateId returns the context mapper of a template id or null if there's none
+     */
+    public String toOpenEhrLine(final Resource resource, final String incomingTemplateId, final Boolean flat,
+                                final Function<String, FhirConnectContextEntity> contextByTemplateId) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            toOpenEhrOutput(resource, incomingTemplateId, flat, contextByTemplateId, CANONICAL_LINE_WRITER)
+                    .writeTo(out);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private OpenEhrOutput toOpenEhrOutput(final Resource resource, final String incomingTemplateId,
+                                          final Boolean flat,
+                                          final Function<String, FhirConnectContextEntity> contextByTemplateId,
+                                          final ObjectWriter canonicalWriter) {
         // get context and operational template
-        final Resource resource = parseIncomingFhirResource(incomingFhirResource);
-        final FhirConnectContextEntity fhirConnectContext = getContextForFhir(incomingTemplateId, incomingFhirResource);
+        final FhirConnectContextEntity fhirConnectContext = getContextForFhir(incomingTemplateId, resource,
+                                                                              contextByTemplateId);
         if (fhirConnectContext == null) {
             final String logMsg = String.format("Couldn't find any Context mapper for the given Resource. Make sure at least one Context mapper exists where fhir.resourceType is of this type (%s) and condition within the context mapper allows for it to be applied on this specific resource.",
                     resource.getResourceType().name());
@@ -188,30 +293,69 @@ public class OpenFhirEngine {
             final JsonObject jsonObject = fhirToOpenEhr.fhirToFlatJsonObject(fhirConnectContext.getFhirConnectContext(),
                     resource,
                     operationalTemplate);
-            return gson.toJson(jsonObject);
+            return out -> {
+                final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                gson.toJson(jsonObject, writer);
+                writer.flush();
+            };
         } else {
             final Composition composition = fhirToOpenEhr.fhirToCompositionRm(fhirConnectContext.getFhirConnectContext(),
                     resource,
                     operationalTemplate);
-            return new CanonicalJson().marshal(composition);
+            return out -> canonicalWriter.writeValue(out, composition);
         }
     }
 
+    /**
+     * Serialized result of a mapping to openEHR, written once the caller has somewhere to write it to.
+     */
+    @FunctionalInterface
+    public interface OpenEhrOutput {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
     private void preProcessIncomingResource() {
         //todo: FhirToOpenEhrPreProcessor
     }
 
-    private Resource parseIncomingFhirResource(final String incomingFhirResource) {
-        try {
-            return jsonParser.parseResource(Bundle.class, incomingFhirResource);
-        } catch (final Exception e) {
-            return (Resource) jsonParser.parseResource(incomingFhirResource);
+    private Resource parseIncomingFhirResource(final RequestEnvelope incomingFhirResource) {
+        if (!incomingFhirResource.isFhir()) {
+            throw new IllegalArgumentException("Incoming body is not a FHIR Resource, it has no resourceType.");
         }
+        return (Resource) jsonParserProvider.parseResource(incomingFhirResource.getBody());
     }
 
     public String toFhir(final String openEhrCompositionJson, final String incomingTemplateId) {
+        return toFhir(openEhrCompositionJson, incomingTemplateId, fhirConnectContextRepository::findByTemplateId);
+    }
+
+    public String toFhir(final RequestEnvelope incomingOpenEhr, final String incomingTemplateId) {
+        return toFhir(incomingOpenEhr, incomingTemplateId, fhirConnectContextRepository::findByTemplateId);
+    }
+
+    /**
+     * Same as {@link #toFhir(String, String)}, except that context mappers are looked up with the given function, so
+     * that a batch of Compositions can look up the context mapper of each template only once.
+     *
+     * @param contextByTemplateId returns the context mapper of a template id or null if there's none
+     */
+    public String toFhir(final String openEhrCompositionJson, final String incomingTemplateId,
+                         final Function<String, FhirConnectContextEntity> contextByTemplateId) {
+        // format and template id are sniffed from the body, so that it's only parsed once, after validation
+        return toFhir(RequestEnvelope.sniff(openEhrCompositionJson), incomingTemplateId, contextByTemplateId);
+    }
+
+    /**
+     * Same as {@link #toFhir(String, String, Function)}, for a body that the caller has sniffed already (i.e. to
+     * find the bulkhead of its template), so it isn't sniffed twice.
+     */
+    public String toFhir(final RequestEnvelope incomingOpenEhr, final String incomingTemplateId,
+                         final Function<String, FhirConnectContextEntity> contextByTemplateId) {
+        final String openEhrCompositionJson = incomingOpenEhr.getBody();
+
         // find the context mapper for the given template
-        final FhirConnectContextEntity fhirConnectContext = getContextForOpenEhr(openEhrCompositionJson, incomingTemplateId);
+        final FhirConnectContextEntity fhirConnectContext = getContextForOpenEhr(incomingOpenEhr, incomingTemplateId,
+                                                                                 contextByTemplateId);
 
         // validate prerequisites before starting any kind of mapping logic
         validatePrerequisites(fhirConnectContext, fhirConnectContext != null ? fhirConnectContext.getFhirConnectContext().getContext().getTemplate().getId() : incomingTemplateId);
@@ -225,26 +369,23 @@ public class OpenFhirEngine {
         // prepare cache (OpenFhirContextRepository) for the mapping
         prodOpenFhirMappingContext.initMappingCache(fhirConnectContext.getFhirConnectContext(), operationalTemplate, webTemplate);
 
-        Composition composition;
-        try {
-            // try to unmarshall to Composition with a flat json unmarshaller, if it fails, we assume it's actually
-            // Composition in a Canonical format (//todo if this proves to be a performance issue, perhaps whether
-            // todo its in flat format or canonical should be passed as an input parameter to the RESTful call)
-            composition = flatJsonUnmarshaller.unmarshal(openEhrCompositionJson, cachedUtils.parseWebTemplate(operationalTemplate));
-        } catch (Exception e) {
-            log.error("Error trying to unmarshall flat path, {}. Will try with a canonical json unmarshaller.", e.getMessage());
-            // try to unmarshall content from a canonical parser
-            composition = new CanonicalJson().unmarshal(openEhrCompositionJson);
+        final Bundle fhir;
+        if (incomingOpenEhr.isCanonicalComposition()) {
+            final Composition composition = new CanonicalJson().unmarshal(openEhrCompositionJson);
             if (composition.getContent().isEmpty()) {
-                log.error("Composition not properly unmarshalled. Empty content. Aborting translation.", e);
+                log.error("Composition not properly unmarshalled. Empty content. Aborting translation.");
                 throw new IllegalArgumentException("Composition not properly unmarshalled. Empty content. Aborting translation. See log for more info.");
             }
+            fhir = openEhrToFhir.compositionToFhir(fhirConnectContext.getFhirConnectContext(),
+                    composition,
+                    operationalTemplate);
+        } else {
+            // canonical flat format is mapped directly, without a round trip through the Composition
+            fhir = openEhrToFhir.flatToFhir(fhirConnectContext.getFhirConnectContext(),
+                    gson.fromJson(openEhrCompositionJson, JsonObject.class),
+                    operationalTemplate);
         }
-
-        final Bundle fhir = openEhrToFhir.compositionToFhir(fhirConnectContext.getFhirConnectContext(),
-                composition,
-                operationalTemplate);
-        return jsonParser.encodeResourceToString(fhir);
+        return jsonParserProvider.encodeResourceToString(fhir);
     }
 
     /**
@@ -1,16 +1,14 @@
 package com.medblocks.openfhir;
 
-import com.medblocks.openfhir.fc.FhirConnectConst;
 import com.medblocks.openfhir.fc.OpenFhirFhirConnectModelMapper;
-import com.medblocks.openfhir.fc.schema.model.Condition;
 import com.medblocks.openfhir.util.FhirConnectModelMerger;
 import com.medblocks.openfhir.util.OpenFhirStringUtils;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -25,7 +23,7 @@ import org.hl7.fhir.r4.model.Resource;
 public abstract class OpenFhirMappingContext {
 
     @Getter
-    Map<String, OpenFhirContextRepository> repository = new HashMap<>();
+    Map<String, OpenFhirContextRepository> repository = new ConcurrentHashMap<>();
 
     private final FhirPathR4 fhirPathR4;
     private final OpenFhirStringUtils openFhirStringUtils;
@@ -40,10 +38,26 @@ public abstract class OpenFhirMappingContext {
     }
 
     /**
-     * Returns a fhir connect model mapper for a specific archetype within a template.
+     * Returns a fhir connect model mapper for a specific archetype within a template. Returned mappers are copies
+     * that can be modified by the caller.
      */
     public List<OpenFhirFhirConnectModelMapper> getMapperForArchetype(final String templateId,
                                                                       final String archetypeId) {
+        final List<OpenFhirFhirConnectModelMapper> sharedMappers = getSharedMapperForArchetype(templateId,
+                                                                                              archetypeId);
+        if (sharedMappers == null) {
+            return null;
+        }
+        return sharedMappers.stream().map(OpenFhirFhirConnectModelMapper::copy).collect(Collectors.toList());
+    }
+
+    /**
+     * Same as {@link #getMapperForArchetype(String, String)}, except that returned mappers are the ones shared by all
+     * requests (they're part of a cached mapping plan); callers must not modify them and prepare mappings on working
+     * copies instead (@see MapperOverlay).
+     */
+    public List<OpenFhirFhirConnectModelMapper> getSharedMapperForArchetype(final String templateId,
+                                                                            final String archetypeId) {
         final OpenFhirContextRepository repoForTemplate = repository.get(normalizeTemplateId(templateId));
         if (repoForTemplate == null) {
             log.warn("No repo exists for template: {}", templateId);
@@ -53,13 +67,13 @@ public abstract class OpenFhirMappingContext {
         if (fhirConnectMapper == null) {
             return null;
         }
-        return fhirConnectMapper.stream().map(OpenFhirFhirConnectModelMapper::copy).collect(Collectors.toList());
+        return Collections.unmodifiableList(fhirConnectMapper);
     }
 
 
     /**
      * Returns a fhir connect model mapper for a specific archetype within a template. It retrieves from a slotArchetype
-     * repository cache instead of from the main one.
+     * repository cache instead of from the main one. Returned mappers are copies that can be modified by the caller.
      *
      * @deprecated we don't differentiate between slots mappers and regular mappers anymore, so @see getMapperForArchetype
      */
@@ -76,7 +90,7 @@ public abstract class OpenFhirMappingContext {
         if (fhirConnectMapper == null) {
             return null;
         }
-        return fhirConnectMapper.stream().map(map -> map.copy()).collect(Collectors.toList());
+        return fhirConnectMapper.stream().map(OpenFhirFhirConnectModelMapper::copy).collect(Collectors.toList());
     }
 
     /**
@@ -88,56 +102,47 @@ public abstract class OpenFhirMappingContext {
      * In this case of a FHIR to openEHR mapping, the following business logic is applied when finding the correct
      * mappers:
      * <p>
-     * - iterate over all available model mappers within a context (the right context has been defined beforehand)
-     * - evaluate a fhirConfig.condition on the Resource
+     * - iterate over model mappers within a context (the right context has been defined beforehand) that are defined
+     * for the type of the incoming Resource (@see ResourceTypeMapperIndex)
+     * - evaluate a fhirConfig.condition (amended to the fhir path when the index is built) on the Resource
      * - if fhirpath evaluation returns a result, it means this specific mapping in question is the right one
      * - if no condition is present and the mere fhir resource type matches the incoming Resource, it also adds it to
      * the
      * available one
+     * <p>
+     * Returned mappers are the ones shared by all requests (they're part of a cached mapping plan) and are therefore not
+     * copied; callers must not modify them (@see FhirToOpenEhr for how helpers are compiled from a copy once per mapper).
      *
      * @param resource incoming Resource that is to be mapped
      * @return a list of relevant FhirConnectMappers for the incoming FHIR Resource
      */
     public List<OpenFhirFhirConnectModelMapper> getMapperForResource(final Resource resource) {
         final List<OpenFhirFhirConnectModelMapper> relevantMappers = new ArrayList<>();
-        final Set<Map.Entry<String, OpenFhirContextRepository>> repos = repository.entrySet();
-        for (Map.Entry<String, OpenFhirContextRepository> repo : repos) {
-            final OpenFhirContextRepository specificRepo = repo.getValue();
-            final Map<String, List<OpenFhirFhirConnectModelMapper>> mappers = specificRepo.getMappers();
-            for (Map.Entry<String, List<OpenFhirFhirConnectModelMapper>> mapperEntry : mappers.entrySet()) {
-                final List<OpenFhirFhirConnectModelMapper> connectMappers = mapperEntry.getValue();
-                getMappers(connectMappers, relevantMappers, resource);
-            }
+        final String resourceType = resource.getResourceType().name();
+        for (final OpenFhirContextRepository specificRepo : repository.values()) {
+            final ResourceTypeMapperIndex index = specificRepo.getResourceTypeIndex(openFhirStringUtils);
+            getMappers(index.getCandidates(resourceType), relevantMappers, resource);
         }
         if (relevantMappers.isEmpty()) {
-            log.error("No mappers found for Resource: {}, id: {}", resource.getResourceType().name(), resource.getId());
+            log.error("No mappers found for Resource: {}, id: {}", resourceType, resource.getId());
             return null;
         }
         if (relevantMappers.size() > 1) {
-            log.info("More than one mapper found for Resource: {}, id: {}", resource.getResourceType().name(),
-                     resource.getId());
+            log.info("More than one mapper found for Resource: {}, id: {}", resourceType, resource.getId());
         }
         return relevantMappers;
     }
 
-    private void getMappers(final List<OpenFhirFhirConnectModelMapper> connectMappers,
+    private void getMappers(final List<ResourceTypeMapperIndex.IndexedMapper> candidates,
                             final List<OpenFhirFhirConnectModelMapper> relevantMappers,
                             final Resource resource) {
-        for (OpenFhirFhirConnectModelMapper connectMapper : connectMappers) {
-            if (connectMapper.getFhirConfig() == null) {
-                continue;
-            }
-            final List<Condition> conditions = connectMapper.getFhirConfig().getCondition();
-            final String fhirPathWithCondition = openFhirStringUtils.amendFhirPath(FhirConnectConst.FHIR_RESOURCE_FC,
-                                                                                   conditions,
-                                                                                   connectMapper.getFhirConfig()
-                                                                                           .getResource());
+        for (final ResourceTypeMapperIndex.IndexedMapper candidate : candidates) {
+            final OpenFhirFhirConnectModelMapper connectMapper = candidate.mapper();
+            final String fhirPathWithCondition = candidate.fhirPathWithCondition();
             if (StringUtils.isEmpty(fhirPathWithCondition)
                     || fhirPathWithCondition.equals(connectMapper.getFhirConfig().getResource())
                     && connectMapper.getFhirConfig().getResource().equals(resource.getResourceType().name())) {
-                log.warn("No fhirpath defined for resource type, mapper relevant for all Resources of this type?");
-                relevantMappers.add(
-                        connectMapper.copy()); // IMPORTANT! as a mapper is being edited as part of the mapping process, this needs to be copied!
+                relevantMappers.add(connectMapper);
             } else {
                 final Optional<Base> evaluated = fhirPathR4.evaluateFirst(resource, fhirPathWithCondition, Base.class);
                 // if is present and is of type boolean, it also needs to be true
@@ -145,8 +150,7 @@ public abstract class OpenFhirMappingContext {
                 if (evaluated.isPresent() && ((!(evaluated.get() instanceof BooleanType)
                         || ((BooleanType) evaluated.get()).getValue()))) {
                     // mapper matches this Resource, it can handle it
-                    relevantMappers.add(
-                            connectMapper.copy()); // IMPORTANT! as a mapper is being edited as part of the mapping process, this needs to be copied!
+                    relevantMappers.add(connectMapper);
                 }
             }
         }
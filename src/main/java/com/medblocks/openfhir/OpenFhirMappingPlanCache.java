@@ -0,0 +1,128 @@
+package com.medblocks.openfhir;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * Application scoped cache of compiled mapping plans (OpenFhirContextRepository), shared by all request threads.
+ * <p>
+ * A plan is keyed by normalized template id and a content revision. Revision is bumped whenever a context, model
+ * or an operational template relevant for a template is upserted, after which the next request rebuilds the plan.
+ * Plans in here must be treated as read-only, callers that mutate mappers during mapping need to work on copies.
+ * <p>
+ * Whatever should be derived from a plan once (i.e. openEHR paths compiled against the template) is done by plan
+ * listeners, which run as part of building the plan, before it's handed out to any request.
+ * <p>
+ * Plans are built by the first request that needs them, outside of any lock of the map (building queries the
+ * database and compiles paths), while other requests for the same plan wait for it to be completed.
+ */
+@Component
+@Slf4j
+public class OpenFhirMappingPlanCache {
+
+    private final Map<PlanKey, CompletableFuture<OpenFhirContextRepository>> plans = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> templateRevisions = new ConcurrentHashMap<>();
+    private final AtomicLong globalRevision = new AtomicLong();
+    private final List<BiConsumer<String, OpenFhirContextRepository>> planListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param listener invoked with the normalized template id and the plan every time a plan has been built
+     */
+    public void onPlanBuilt(final BiConsumer<String, OpenFhirContextRepository> listener) {
+        planListeners.add(listener);
+    }
+
+    /**
+     * Returns a compiled plan for the given template, building it with the given builder if one doesn't exist for the
+     * current revision of the template.
+     *
+     * @param templateId template id, normalized before being used as a key
+     * @param builder builder invoked with the normalized template id when a plan needs to be (re)built
+     * @return compiled mapping plan for the template
+     */
+    public OpenFhirContextRepository getOrBuild(final String templateId,
+                                                final Function<String, OpenFhirContextRepository> builder) {
+        final String normalizedTemplateId = OpenFhirMappingContext.normalizeTemplateId(templateId);
+        final PlanKey key = new PlanKey(normalizedTemplateId, revision(normalizedTemplateId));
+        final CompletableFuture<OpenFhirContextRepository> building = new CompletableFuture<>();
+        final CompletableFuture<OpenFhirContextRepository> existing = plans.putIfAbsent(key, building);
+        if (existing != null) {
+            return await(existing);
+        }
+
+        final OpenFhirContextRepository plan;
+        try {
+            log.info("Building mapping plan for template {} (revision {})", key.templateId(), key.revision());
+            plan = builder.apply(key.templateId());
+            planListeners.forEach(listener -> listener.accept(key.templateId(), plan));
+        } catch (final RuntimeException | Error e) {
+            // requests waiting for this plan fail as well, the next one builds it again
+            plans.remove(key, building);
+            building.completeExceptionally(e);
+            throw e;
+        }
+        building.complete(plan);
+        if (key.revision() != revision(normalizedTemplateId)) {
+            // invalidated while being built; still fine to use for this request, but shouldn't stay in the cache
+            plans.remove(key, building);
+        }
+        return plan;
+    }
+
+    private static OpenFhirContextRepository await(final CompletableFuture<OpenFhirContextRepository> plan) {
+        try {
+            return plan.join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Invalidates plan of a specific template, i.e. when its context mapper or operational template has changed.
+     */
+    public void invalidate(final String templateId) {
+        if (templateId == null) {
+            return;
+        }
+        final String normalizedTemplateId = OpenFhirMappingContext.normalizeTemplateId(templateId);
+        templateRevisions.computeIfAbsent(normalizedTemplateId, k -> new AtomicLong()).incrementAndGet();
+        plans.keySet().removeIf(key -> key.templateId().equals(normalizedTemplateId));
+        log.debug("Invalidated mapping plan for template {}", normalizedTemplateId);
+    }
+
+    /**
+     * Invalidates all plans, i.e. when a model mapper has changed as those can be shared by several templates.
+     */
+    public void invalidateAll() {
+        globalRevision.incrementAndGet();
+        plans.clear();
+        log.debug("Invalidated all mapping plans");
+    }
+
+    long revision(final String normalizedTemplateId) {
+        final AtomicLong templateRevision = templateRevisions.get(normalizedTemplateId);
+        return globalRevision.get() + (templateRevision == null ? 0 : templateRevision.get());
+    }
+
+    int size() {
+        return plans.size();
+    }
+
+    private record PlanKey(String templateId, long revision) {
+    }
+}
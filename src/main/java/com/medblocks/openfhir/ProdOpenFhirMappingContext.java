@@ -22,9 +22,9 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.context.annotation.RequestScope;
 
 /**
- * RequestScoped cache of all the needed information for mapping (Context mappers, Model mappers and parsed
- * OPERATIONALTEMPLATE and WebTemplate. This is requested multiple time throughout the mapping but except for the first
- * time, should only be taken from cache directly to avoid performance issues
+ * RequestScoped view of all the needed information for mapping (Context mappers, Model mappers and parsed
+ * OPERATIONALTEMPLATE and WebTemplate. Compiled plans themselves are built once and shared across requests through
+ * {@link OpenFhirMappingPlanCache}, this only keeps track of the plans relevant for the current request.
  */
 @Component
 @RequestScope
@@ -32,14 +32,17 @@ import org.springframework.web.context.annotation.RequestScope;
 public class ProdOpenFhirMappingContext extends OpenFhirMappingContext {
 
     private FhirConnectModelRepository fhirConnectModelRepository;
+    private final OpenFhirMappingPlanCache planCache;
 
     @Autowired
     public ProdOpenFhirMappingContext(final FhirPathR4 fhirPathR4,
                                       final OpenFhirStringUtils openFhirStringUtils,
                                       final FhirConnectModelRepository fhirConnectModelRepository,
-                                      final FhirConnectModelMerger modelMerger) {
+                                      final FhirConnectModelMerger modelMerger,
+                                      final OpenFhirMappingPlanCache planCache) {
         super(fhirPathR4, openFhirStringUtils, modelMerger);
         this.fhirConnectModelRepository = fhirConnectModelRepository;
+        this.planCache = planCache;
     }
 
     public void initMappingCache(final FhirConnectContext context,
@@ -51,6 +54,17 @@ public class ProdOpenFhirMappingContext extends OpenFhirMappingContext {
             log.info("Repository for template {} already initialized", normalizedRepoId);
             return;
         }
+        repository.put(normalizedRepoId, planCache.getOrBuild(templateId, id -> {
+            final OpenFhirContextRepository plan = buildMappingPlan(context, operationaltemplate, webTemplate);
+            // plan listeners already map with it (i.e. slot archetype mappers are looked up through this context)
+            repository.put(normalizedRepoId, plan);
+            return plan;
+        }));
+    }
+
+    private OpenFhirContextRepository buildMappingPlan(final FhirConnectContext context,
+                                                       final OPERATIONALTEMPLATE operationaltemplate,
+                                                       final WebTemplate webTemplate) {
         final OpenFhirContextRepository fhirContextRepo = new OpenFhirContextRepository();
         fhirContextRepo.setOperationaltemplate(operationaltemplate);
         fhirContextRepo.setWebTemplate(webTemplate);
@@ -88,8 +102,7 @@ public class ProdOpenFhirMappingContext extends OpenFhirMappingContext {
 
         fhirContextRepo.setMappers(mappers);
         fhirContextRepo.setSlotMappers(slotMappers);
-
-        repository.put(normalizedRepoId, fhirContextRepo);
+        return fhirContextRepo;
     }
 
     private List<OpenFhirFhirConnectModelMapper> prepareJoinedModels(final Context context) {
@@ -0,0 +1,114 @@
+package com.medblocks.openfhir;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.StringReader;
+import lombok.Getter;
+
+/**
+ * Incoming request body together with what's been sniffed from it; the format of the body (FHIR Resource, canonical
+ * or flat openEHR Composition), the FHIR resourceType and the openEHR template id.
+ * <p>
+ * Sniffing only streams through the root level json tokens (skipping values it's not interested in without building
+ * anything from them) and stops as soon as it knows enough, so the body itself is then parsed exactly once by
+ * whichever parser is relevant for the sniffed format.
+ */
+@Getter
+public class RequestEnvelope {
+
+    public enum Format {
+        FHIR,
+        CANONICAL,
+        FLAT
+    }
+
+    private static final String COMPOSITION_TYPE = "COMPOSITION";
+
+    private final String body;
+    private final Format format;
+    private final String resourceType;
+    private final String templateId;
+
+    private RequestEnvelope(final String body, final Format format, final String resourceType,
+                            final String templateId) {
+        this.body = body;
+        this.format = format;
+        this.resourceType = resourceType;
+        this.templateId = templateId;
+    }
+
+    /**
+     * @param body incoming json request body
+     * @return envelope with the sniffed format; anything that's not a FHIR Resource (has a resourceType) or a canonical
+     *         Composition (has a _type COMPOSITION) is considered to be in a flat format
+     * @throws IllegalArgumentException if body is not a json object
+     */
+    public static RequestEnvelope sniff(final String body) {
+        if (body == null) {
+            throw new IllegalArgumentException("Request body is empty.");
+        }
+        try (final JsonReader reader = new JsonReader(new StringReader(body))) {
+            reader.beginObject();
+            boolean composition = false;
+            String templateId = null;
+            boolean first = true;
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if (first && name.contains("/")) {
+                    // flat paths always start with the template id
+                    return new RequestEnvelope(body, Format.FLAT, null, name.split("/")[0]);
+                }
+                first = false;
+                if ("resourceType".equals(name) && reader.peek() == JsonToken.STRING) {
+                    return new RequestEnvelope(body, Format.FHIR, reader.nextString(), null);
+                } else if ("_type".equals(name) && reader.peek() == JsonToken.STRING) {
+                    composition = COMPOSITION_TYPE.equals(reader.nextString());
+                } else if ("archetype_details".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    templateId = readTemplateId(reader);
+                } else {
+                    reader.skipValue();
+                }
+                if (composition && templateId != null) {
+                    break;
+                }
+            }
+            return new RequestEnvelope(body, composition ? Format.CANONICAL : Format.FLAT, null, templateId);
+        } catch (final IOException | IllegalStateException e) {
+            throw new IllegalArgumentException("Request body is not a valid json object: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads archetype_details.template_id.value, leaving the reader at the end of the archetype_details object.
+     */
+    private static String readTemplateId(final JsonReader reader) throws IOException {
+        String templateId = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("template_id".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("value".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+                        templateId = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return templateId;
+    }
+
+    public boolean isFhir() {
+        return format == Format.FHIR;
+    }
+
+    public boolean isCanonicalComposition() {
+        return format == Format.CANONICAL;
+    }
+}
@@ -0,0 +1,74 @@
+package com.medblocks.openfhir;
+
+import com.medblocks.openfhir.fc.FhirConnectConst;
+import com.medblocks.openfhir.fc.OpenFhirFhirConnectModelMapper;
+import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.EnumUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.ResourceType;
+
+/**
+ * Index of model mappers within a mapping plan (OpenFhirContextRepository) by the FHIR resource type they're defined
+ * for, used when finding mappers for an incoming Resource in a FHIR to openEHR mapping. Condition fhir paths are
+ * amended once when the index is built instead of for every Bundle entry.
+ * <p>
+ * Mappers whose fhirConfig.resource is not a concrete resource type (or that have no fhir path at all) are candidates
+ * for every Resource. Candidates are always returned in the same order as they appear in the mappers map.
+ */
+@Slf4j
+class ResourceTypeMapperIndex {
+
+    private final List<IndexedMapper> indexedMappers;
+    private final Map<String, List<IndexedMapper>> byResourceType = new ConcurrentHashMap<>();
+
+    ResourceTypeMapperIndex(final Map<String, List<OpenFhirFhirConnectModelMapper>> mappers,
+                            final OpenFhirStringUtils openFhirStringUtils) {
+        final List<IndexedMapper> indexed = new ArrayList<>();
+        if (mappers != null) {
+            for (final List<OpenFhirFhirConnectModelMapper> connectMappers : mappers.values()) {
+                for (final OpenFhirFhirConnectModelMapper connectMapper : connectMappers) {
+                    if (connectMapper.getFhirConfig() == null) {
+                        continue;
+                    }
+                    final String resource = connectMapper.getFhirConfig().getResource();
+                    final String fhirPathWithCondition = openFhirStringUtils.amendFhirPath(
+                            FhirConnectConst.FHIR_RESOURCE_FC,
+                            connectMapper.getFhirConfig().getCondition(),
+                            resource);
+                    final boolean concreteType = EnumUtils.isValidEnum(ResourceType.class, resource);
+                    if (StringUtils.isEmpty(fhirPathWithCondition) || fhirPathWithCondition.equals(resource)) {
+                        log.warn("No fhirpath defined for resource type of mapper {}, mapper relevant for all "
+                                         + "Resources of this type?", connectMapper.getName());
+                    }
+                    indexed.add(new IndexedMapper(connectMapper, fhirPathWithCondition,
+                                                  concreteType ? resource : null));
+                }
+            }
+        }
+        this.indexedMappers = Collections.unmodifiableList(indexed);
+    }
+
+    /**
+     * @param resourceType type of the incoming Resource
+     * @return mappers that can possibly match a Resource of this type
+     */
+    List<IndexedMapper> getCandidates(final String resourceType) {
+        return byResourceType.computeIfAbsent(resourceType, type -> indexedMappers.stream()
+                .filter(indexed -> indexed.resourceType() == null || indexed.resourceType().equals(type))
+                .toList());
+    }
+
+    /**
+     * @param mapper model mapper
+     * @param fhirPathWithCondition fhirConfig.resource amended with fhirConfig.condition
+     * @param resourceType concrete resource type of the mapper or null if it can be relevant for any Resource
+     */
+    record IndexedMapper(OpenFhirFhirConnectModelMapper mapper, String fhirPathWithCondition, String resourceType) {
+    }
+}
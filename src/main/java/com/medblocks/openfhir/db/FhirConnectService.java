@@ -1,5 +1,7 @@
 package com.medblocks.openfhir.db;
 
+import com.medblocks.openfhir.FhirConnectContextIndex;
+import com.medblocks.openfhir.OpenFhirMappingPlanCache;
 import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
 import com.medblocks.openfhir.db.entity.FhirConnectModelEntity;
 import com.medblocks.openfhir.db.repository.FhirConnectContextRepository;
@@ -25,14 +27,20 @@ public class FhirConnectService {
     private final FhirConnectModelRepository modelRepository;
     private final FhirConnectContextRepository contextRepository;
     private final FhirConnectValidator validator;
+    private final OpenFhirMappingPlanCache planCache;
+    private final FhirConnectContextIndex contextIndex;
 
     @Autowired
     public FhirConnectService(final FhirConnectModelRepository modelRepository,
                               final FhirConnectContextRepository contextRepository,
-                              final FhirConnectValidator validator) {
+                              final FhirConnectValidator validator,
+                              final OpenFhirMappingPlanCache planCache,
+                              final FhirConnectContextIndex contextIndex) {
         this.modelRepository = modelRepository;
         this.contextRepository = contextRepository;
         this.validator = validator;
+        this.planCache = planCache;
+        this.contextIndex = contextIndex;
     }
 
     /**
@@ -85,6 +93,8 @@ public class FhirConnectService {
             saved.setFhirConnectModel(
                     fhirConnectModel); // unless we do this, when postgres is used, this will be empty in response
             saved.getFhirConnectModel().setId(saved.getId());
+            // a model mapper can be referenced by any number of contexts, hence all compiled plans are dropped
+            planCache.invalidateAll();
             return saved;
         } catch (final RequestValidationException e) {
             throw e;
@@ -111,10 +121,13 @@ public class FhirConnectService {
 
         log.debug("Receive CREATE/UPDATE FhirConnectContext, id {}, reqId: {}", id, reqId);
         try {
+            String previousTemplateId = null;
             if (StringUtils.isNotEmpty(id)) {
                 final FhirConnectContextEntity existingContext = contextRepository.byId(id);
                 if (existingContext == null) {
                     id = null; // ensuring it will be created and it won't override someone else context mapper!!
+                } else if (existingContext.getFhirConnectContext() != null) {
+                    previousTemplateId = existingContext.getFhirConnectContext().getContext().getTemplate().getId();
                 }
             }
 
@@ -143,6 +156,9 @@ public class FhirConnectService {
             saved.setFhirConnectContext(
                     fhirContext); // unless we do this, when postgres is used, this will be empty in response
             saved.getFhirConnectContext().setId(saved.getId());
+            planCache.invalidate(previousTemplateId);
+            planCache.invalidate(fhirContext.getContext().getTemplate().getId());
+            contextIndex.invalidate();
             return saved;
         } catch (final RequestValidationException e) {
             throw e;
@@ -1,6 +1,7 @@
 package com.medblocks.openfhir.db;
 
 import com.medblocks.openfhir.OpenFhirMappingContext;
+import com.medblocks.openfhir.OpenFhirMappingPlanCache;
 import com.medblocks.openfhir.db.entity.OptEntity;
 import com.medblocks.openfhir.db.repository.OptRepository;
 import com.medblocks.openfhir.util.OpenEhrCachedUtils;
@@ -25,10 +26,14 @@ public class OptService {
 
     private final OpenEhrCachedUtils openEhrApplicationScopedUtils;
 
+    private final OpenFhirMappingPlanCache planCache;
+
     @Autowired
-    public OptService(OptRepository optRepository, OpenEhrCachedUtils openEhrApplicationScopedUtils) {
+    public OptService(OptRepository optRepository, OpenEhrCachedUtils openEhrApplicationScopedUtils,
+                      OpenFhirMappingPlanCache planCache) {
         this.optRepository = optRepository;
         this.openEhrApplicationScopedUtils = openEhrApplicationScopedUtils;
+        this.planCache = planCache;
     }
 
     /**
@@ -44,7 +49,7 @@ public class OptService {
         try {
             final OPERATIONALTEMPLATE operationaltemplate = parseOptFromString(opt);
             final String normalizedTemplateId = OpenFhirMappingContext.normalizeTemplateId(operationaltemplate.getTemplateId().getValue());
-            openEhrApplicationScopedUtils.parseWebTemplate(operationaltemplate);
+            openEhrApplicationScopedUtils.parseWebTemplate(operationaltemplate, opt);
             final OptEntity existingByTemplate = optRepository.findByTemplateId(normalizedTemplateId);
 
             // Behavior:
@@ -74,6 +79,8 @@ public class OptService {
                                                    operationaltemplate.getTemplateId().getValue(),
                                                    operationaltemplate.getTemplateId().getValue());
             final OptEntity insert = optRepository.save(entity);
+            openEhrApplicationScopedUtils.invalidate(normalizedTemplateId);
+            planCache.invalidate(normalizedTemplateId);
             final OptEntity copied = insert.copy();
             copied.setContent("redacted");
             return copied;
@@ -2,13 +2,15 @@ package com.medblocks.openfhir.producers;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.fhirpath.IFhirPathEvaluationContext;
-import ca.uhn.fhir.parser.JsonParser;
+import com.medblocks.openfhir.util.BundleReferenceIndex;
+import com.medblocks.openfhir.util.CachingFhirPathR4;
+import com.medblocks.openfhir.util.FhirJsonParserProvider;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IIdType;
-import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
 import org.hl7.fhir.r4.model.Reference;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.stereotype.Component;
 
@@ -20,30 +22,45 @@ import org.springframework.stereotype.Component;
 @Component
 public class FhirProducer {
 
+    /**
+     * the one FhirContext of the application; building one is expensive (time and memory), so everything HAPI related
+     * is created from this one
+     */
     @Bean
     public FhirContext getFhirContext() {
         return FhirContext.forR4();
     }
 
+    /**
+     * FhirPathR4 with a cache of parsed expressions, evaluating a FHIR path string parses it only the first time
+     */
     @Bean
-    public FhirPathR4 getFhirPath() {
-        final FhirPathR4 fhirPathR4 = new FhirPathR4(FhirContext.forR4());
+    public CachingFhirPathR4 getFhirPath(final FhirContext fhirContext,
+                                         @Value("${openfhir.cache.fhirpath.max-size:10000}") final long maxSize) {
+        final CachingFhirPathR4 fhirPathR4 = new CachingFhirPathR4(fhirContext, maxSize);
         fhirPathR4.setEvaluationContext(new IFhirPathEvaluationContext() {
-            // todo!!
+            /**
+             * Reference.resource if it's set, otherwise whatever the reference points to in the Bundle being mapped
+             * by the current thread (if any)
+             */
             @Override
             public IBase resolveReference(@Nonnull IIdType theReference, @Nullable IBase theContext) {
-                if(theContext == null) {
-                    return null;
+                if (theContext instanceof Reference reference && reference.getResource() != null) {
+                    return reference.getResource();
                 }
-                return ((Reference) theContext).getResource();
+                final BundleReferenceIndex index = BundleReferenceIndex.current();
+                return index == null ? null : index.resolve(theReference, theContext);
             }
         });
         return fhirPathR4;
     }
 
 
+    /**
+     * HAPI parsers are not thread safe, so parsers are pooled instead of a single shared one
+     */
     @Bean
-    public JsonParser getJsonParser() {
-        return (JsonParser) FhirContext.forR4().newJsonParser();
+    public FhirJsonParserProvider getJsonParserProvider(final FhirContext fhirContext) {
+        return new FhirJsonParserProvider(fhirContext);
     }
 }
@@ -1,7 +1,7 @@
 package com.medblocks.openfhir.producers;
 
-import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.marshal.FlatJsonMarshaller;
-import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
+import com.medblocks.openfhir.util.FlatJsonObjectMarshaller;
+import com.medblocks.openfhir.util.FlatJsonObjectUnmarshaller;
 import org.springframework.context.annotation.Bean;
 import org.springframework.stereotype.Component;
 /**
@@ -11,13 +11,13 @@ import org.springframework.stereotype.Component;
 @Component
 public class OpenEhrProducer {
     @Bean
-    public FlatJsonUnmarshaller flatJsonUnmarshaller() {
-        return new FlatJsonUnmarshaller();
+    public FlatJsonObjectUnmarshaller flatJsonObjectUnmarshaller() {
+        return new FlatJsonObjectUnmarshaller();
     }
 
     @Bean
-    public FlatJsonMarshaller flatJsonMarshaller() {
-        return new FlatJsonMarshaller();
+    public FlatJsonObjectMarshaller flatJsonObjectMarshaller() {
+        return new FlatJsonObjectMarshaller();
     }
 
 }
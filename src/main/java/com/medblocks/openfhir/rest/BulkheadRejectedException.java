@@ -0,0 +1,15 @@
+package com.medblocks.openfhir.rest;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Thrown when a mapping is rejected by its bulkhead, either because too many mappings of the same template are
+ * already waiting (429) or because it waited for too long (503).
+ */
+public class BulkheadRejectedException extends ResponseStatusException {
+
+    public BulkheadRejectedException(final HttpStatus status, final String reason) {
+        super(status, reason);
+    }
+}
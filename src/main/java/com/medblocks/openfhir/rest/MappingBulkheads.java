@@ -0,0 +1,207 @@
+package com.medblocks.openfhir.rest;
+
+import com.medblocks.openfhir.FhirConnectContextIndex;
+import com.medblocks.openfhir.OpenFhirMappingContext;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bulkheads isolating mappings of different templates from one another. Each template id and direction gets its own
+ * limit of concurrent mappings, a limited amount of requests waiting for one of them and a limit of how long they
+ * wait, so that a few heavy templates can't tie up all request threads while requests of light ones queue behind
+ * them. A request that can't even wait is rejected with 429 and one that waited too long with 503.
+ * <p>
+ * Limits are the same for all templates (openfhir.bulkhead.max-concurrent, max-queue and timeout-ms) unless
+ * overridden for a direction and a normalized template id, i.e.
+ * openfhir.bulkhead.toopenehr.kds_laborbericht.max-concurrent. Waiting requests are parked on a semaphore, which is
+ * cheap when requests are run on virtual threads
+ * (spring.threads.virtual.enabled on a JDK 21 runtime). Disabled by default.
+ * <p>
+ * Only templates that a context mapper exists for get a bulkhead of their own. Mappings of any other template id
+ * (which can't be mapped anyway) and those whose template isn't known upfront share a bulkhead per direction, so
+ * that template ids sent by clients can't create bulkheads without bounds.
+ */
+@Slf4j
+@Component
+public class MappingBulkheads {
+
+    /**
+     * key used for requests whose template id isn't known upfront or isn't a template of any context mapper
+     */
+    static final String ANY_TEMPLATE = "*";
+
+    public enum Direction {
+        TO_FHIR("tofhir"),
+        TO_OPENEHR("toopenehr");
+
+        private final String key;
+
+        Direction(final String key) {
+            this.key = key;
+        }
+    }
+
+    private final boolean enabled;
+    private final int maxConcurrent;
+    private final int maxQueue;
+    private final long timeoutMs;
+    private final Environment environment;
+    private final Predicate<String> knownTemplate;
+    private final Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+
+    @Autowired
+    public MappingBulkheads(@Value("${openfhir.bulkhead.enabled:false}") final boolean enabled,
+                            @Value("${openfhir.bulkhead.max-concurrent:4}") final int maxConcurrent,
+                            @Value("${openfhir.bulkhead.max-queue:16}") final int maxQueue,
+                            @Value("${openfhir.bulkhead.timeout-ms:5000}") final long timeoutMs,
+                            final Environment environment,
+                            final FhirConnectContextIndex contextIndex) {
+        this(enabled, maxConcurrent, maxQueue, timeoutMs, environment, contextIndex::hasTemplate);
+    }
+
+    MappingBulkheads(final boolean enabled, final int maxConcurrent, final int maxQueue, final long timeoutMs,
+                     final Environment environment, final Predicate<String> knownTemplate) {
+        this.enabled = enabled;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueue = maxQueue;
+        this.timeoutMs = timeoutMs;
+        this.environment = environment;
+        this.knownTemplate = knownTemplate;
+    }
+
+    /**
+     * Acquires a permit for a mapping of the given template, waiting for one if the template is saturated.
+     *
+     * @param templateId template id of the mapping or null if it's not known upfront
+     * @param direction direction of the mapping
+     * @return permit that needs to be closed once the mapping is done
+     * @throws BulkheadRejectedException if the mapping can't be done now
+     */
+    public Permit acquire(final String templateId, final Direction direction) {
+        if (!enabled) {
+            return () -> {
+            };
+        }
+        final String normalizedTemplateId = templateId == null || !knownTemplate.test(templateId) ? ANY_TEMPLATE
+                : OpenFhirMappingContext.normalizeTemplateId(templateId);
+        return bulkheads.computeIfAbsent(direction.key + "." + normalizedTemplateId,
+                                         key -> createBulkhead(key, direction, normalizedTemplateId))
+                .acquire();
+    }
+
+    /**
+     * @return limits and current state of bulkheads per direction and template
+     */
+    public Map<String, Map<String, Object>> getStatistics() {
+        final Map<String, Map<String, Object>> statistics = new LinkedHashMap<>();
+        bulkheads.forEach((key, bulkhead) -> statistics.put(key, bulkhead.getStatistics()));
+        return statistics;
+    }
+
+    private Bulkhead createBulkhead(final String key, final Direction direction, final String templateId) {
+        final String prefix = "openfhir.bulkhead." + direction.key + "." + templateId + ".";
+        final Bulkhead bulkhead = new Bulkhead(key,
+                                               environment.getProperty(prefix + "max-concurrent", Integer.class,
+                                                                       maxConcurrent),
+                                               environment.getProperty(prefix + "max-queue", Integer.class, maxQueue),
+                                               environment.getProperty(prefix + "timeout-ms", Long.class, timeoutMs));
+        log.info("Created bulkhead {} with max {} concurrent and {} queued mappings, waiting at most {} ms", key,
+                 bulkhead.maxConcurrent, bulkhead.maxQueue, bulkhead.timeoutMs);
+        return bulkhead;
+    }
+
+    /**
+     * Permit of a single mapping; closing it more than once releases it only once
+     */
+    public interface Permit extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+
+    private static final class Bulkhead {
+
+        private final String key;
+        private final int maxConcurrent;
+        private final int maxQueue;
+        private final long timeoutMs;
+        // fair, so that waiting requests get permits in order of arrival
+        private final Semaphore permits;
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong timedOut = new AtomicLong();
+
+        private Bulkhead(final String key, final int maxConcurrent, final int maxQueue, final long timeoutMs) {
+            this.key = key;
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueue = maxQueue;
+            this.timeoutMs = timeoutMs;
+            this.permits = new Semaphore(maxConcurrent, true);
+        }
+
+        private Permit acquire() {
+            try {
+                // unlike tryAcquire(), this doesn't barge ahead of requests that are already waiting
+                if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                    return releasing();
+                }
+                if (waiting.incrementAndGet() > maxQueue) {
+                    waiting.decrementAndGet();
+                    rejected.incrementAndGet();
+                    log.warn("Rejecting mapping, bulkhead {} is saturated", key);
+                    throw new BulkheadRejectedException(HttpStatus.TOO_MANY_REQUESTS,
+                                                        String.format("Too many concurrent mappings of '%s'.", key));
+                }
+                try {
+                    if (!permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                        timedOut.incrementAndGet();
+                        log.warn("Rejecting mapping, it waited more than {} ms in bulkhead {}", timeoutMs, key);
+                        throw new BulkheadRejectedException(HttpStatus.SERVICE_UNAVAILABLE,
+                                                            String.format("Timed out waiting to map '%s'.", key));
+                    }
+                } finally {
+                    waiting.decrementAndGet();
+                }
+                return releasing();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BulkheadRejectedException(HttpStatus.SERVICE_UNAVAILABLE,
+                                                    String.format("Interrupted waiting to map '%s'.", key));
+            }
+        }
+
+        private Permit releasing() {
+            final AtomicBoolean released = new AtomicBoolean();
+            return () -> {
+                if (released.compareAndSet(false, true)) {
+                    permits.release();
+                }
+            };
+        }
+
+        private Map<String, Object> getStatistics() {
+            final Map<String, Object> statistics = new LinkedHashMap<>();
+            statistics.put("maxConcurrent", maxConcurrent);
+            statistics.put("maxQueue", maxQueue);
+            statistics.put("timeoutMs", timeoutMs);
+            statistics.put("active", maxConcurrent - permits.availablePermits());
+            statistics.put("waiting", waiting.get());
+            statistics.put("rejected", rejected.get());
+            statistics.put("timedOut", timedOut.get());
+            return statistics;
+        }
+    }
+}
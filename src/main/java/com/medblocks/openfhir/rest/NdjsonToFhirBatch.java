@@ -0,0 +1,136 @@
+package com.medblocks.openfhir.rest;
+
+import com.google.gson.JsonObject;
+import com.medblocks.openfhir.OpenFhirEngine;
+import com.medblocks.openfhir.OpenFhirMappingContext;
+import com.medblocks.openfhir.ProdOpenFhirMappingContext;
+import com.medblocks.openfhir.RequestEnvelope;
+import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
+import com.medblocks.openfhir.db.repository.FhirConnectContextRepository;
+import com.medblocks.openfhir.util.RequestScopedTasks;
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Maps a batch of openEHR Compositions to FHIR, where both the batch and the result are newline delimited json
+ * (one Composition per line in, one Bundle or error per line out, in the same order).
+ * <p>
+ * Lines are mapped concurrently on a pool shared by all batches, but only a few lines per thread are read ahead of
+ * the one that's being written, so memory doesn't grow with the size of the batch. Context mappers are looked up once
+ * per template for the whole batch and the mapping context of the request keeps compiled plans of templates that
+ * were already used in it. Each line acquires a permit of its template's bulkhead, just like a single mapping does,
+ * and a line that's rejected by it is written as an error.
+ */
+@Slf4j
+@Component
+public class NdjsonToFhirBatch {
+
+    private final OpenFhirEngine openFhirEngine;
+    private final FhirConnectContextRepository fhirConnectContextRepository;
+    private final OpenFhirMappingContext mappingContext;
+    private final MappingBulkheads bulkheads;
+    private final ForkJoinPool pool;
+    private final int maxInFlight;
+
+    @Autowired
+    public NdjsonToFhirBatch(final OpenFhirEngine openFhirEngine,
+                             final FhirConnectContextRepository fhirConnectContextRepository,
+                             final ProdOpenFhirMappingContext mappingContext,
+                             final MappingBulkheads bulkheads,
+                             @Value("${openfhir.tofhir.batch-parallelism:4}") final int parallelism) {
+        this(openFhirEngine, fhirConnectContextRepository, (OpenFhirMappingContext) mappingContext, bulkheads,
+             parallelism);
+    }
+
+    /**
+     * @param mappingContext request scoped mapping context (its scoped proxy) the lines are mapped with
+     */
+    NdjsonToFhirBatch(final OpenFhirEngine openFhirEngine,
+                      final FhirConnectContextRepository fhirConnectContextRepository,
+                      final OpenFhirMappingContext mappingContext,
+                      final MappingBulkheads bulkheads,
+                      final int parallelism) {
+        this.openFhirEngine = openFhirEngine;
+        this.fhirConnectContextRepository = fhirConnectContextRepository;
+        this.mappingContext = mappingContext;
+        this.bulkheads = bulkheads;
+        this.pool = RequestScopedTasks.newPool("openfhir-batch", parallelism);
+        this.maxInFlight = 2 * Math.max(1, parallelism);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * @param in newline delimited openEHR Compositions (flat or canonical); blank lines are skipped
+     * @param out where newline delimited FHIR Bundles are written to, or an error for a line that couldn't be mapped,
+     *         i.e. {"line": 3, "error": "..."}
+     * @param templateId optional template id of all Compositions; otherwise it's taken from each Composition
+     */
+    public void convert(final InputStream in, final OutputStream out, final String templateId) throws IOException {
+        final Map<String, FhirConnectContextEntity> contexts = new ConcurrentHashMap<>();
+        final Function<String, FhirConnectContextEntity> contextByTemplateId = id -> contexts.computeIfAbsent(
+                id, fhirConnectContextRepository::findByTemplateId);
+        convert(in, out, composition -> {
+            // sniffed once, for the bulkhead and the mapping
+            final RequestEnvelope envelope = RequestEnvelope.sniff(composition);
+            try (MappingBulkheads.Permit ignored = bulkheads.acquire(
+                    templateId != null ? templateId : envelope.getTemplateId(), MappingBulkheads.Direction.TO_FHIR)) {
+                return openFhirEngine.toFhir(envelope, templateId, contextByTemplateId);
+            }
+        });
+    }
+
+    void convert(final InputStream in, final OutputStream out, final Function<String, String> toFhir)
+            throws IOException {
+        // all lines of the batch are mapped with the mapping context of the request
+        RequestScopedTasks.resolveScoped(mappingContext);
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        try (OrderedNdjsonWriter writer = new OrderedNdjsonWriter(pool, maxInFlight, out)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                final String composition = line;
+                final int number = lineNumber;
+                writer.submit(() -> convertLine(composition, number, toFhir));
+            }
+            writer.finish();
+        }
+    }
+
+    private String convertLine(final String composition, final int lineNumber, final Function<String, String> toFhir) {
+        try {
+            return toFhir.apply(composition);
+        } catch (final Exception | StackOverflowError e) {
+            // a single line mustn't fail the whole batch, not even with a deeply nested Composition
+            final String message = e instanceof ResponseStatusException statusException
+                    ? statusException.getReason() : StringUtils.defaultIfBlank(e.getMessage(), e.toString());
+            log.warn("Couldn't map line {} of a batch: {}", lineNumber, message);
+            final JsonObject error = new JsonObject();
+            error.addProperty("line", lineNumber);
+            error.addProperty("error", message);
+            return error.toString();
+        }
+    }
+}
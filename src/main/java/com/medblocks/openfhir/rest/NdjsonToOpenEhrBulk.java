@@ -0,0 +1,327 @@
+package com.medblocks.openfhir.rest;
+
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.util.FhirTerser;
+import com.google.gson.JsonObject;
+import com.medblocks.openfhir.OpenFhirEngine;
+import com.medblocks.openfhir.OpenFhirMappingContext;
+import com.medblocks.openfhir.ProdOpenFhirMappingContext;
+import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
+import com.medblocks.openfhir.db.repository.FhirConnectContextRepository;
+import com.medblocks.openfhir.util.FhirJsonParserProvider;
+import com.medblocks.openfhir.util.RequestScopedTasks;
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Maps FHIR Resources in newline delimited json (i.e. files of a FHIR Bulk Data $export, concatenated) to openEHR.
+ * Resources are grouped by a key, a Bundle is built from each group and groups are mapped concurrently, each to a
+ * Composition written as a line of newline delimited json, in the order groups first appeared in the input.
+ * <p>
+ * A group key is either 'patient' (a Patient itself or the Patient a Resource's subject/patient refers to),
+ * 'encounter' (an Encounter itself or the Encounter a Resource refers to) or any other FHIR path evaluated on each
+ * Resource. Resources without a key (i.e. Practitioners, Organizations or Medications) are added to Bundles of
+ * groups that refer to them and an error is written for each of them that no group refers to. Since Resources of a
+ * group can be anywhere in the input (an $export has a file per Resource type), all of them are kept until the input
+ * is read. Each group acquires a permit of the template's bulkhead, just like a single mapping does.
+ */
+@Slf4j
+@Component
+public class NdjsonToOpenEhrBulk {
+
+    public static final String GROUP_BY_PATIENT = "patient";
+    public static final String GROUP_BY_ENCOUNTER = "encounter";
+
+    private static final Map<String, ResourceType> GROUP_RESOURCE_TYPES = Map.of(
+            GROUP_BY_PATIENT, ResourceType.Patient,
+            GROUP_BY_ENCOUNTER, ResourceType.Encounter);
+
+    private static final Map<String, String> GROUP_REFERENCE_PATHS = Map.of(
+            GROUP_BY_PATIENT, "subject.reference | patient.reference",
+            GROUP_BY_ENCOUNTER, "encounter.reference");
+
+    private final OpenFhirEngine openFhirEngine;
+    private final FhirConnectContextRepository fhirConnectContextRepository;
+    private final OpenFhirMappingContext mappingContext;
+    private final FhirJsonParserProvider jsonParserProvider;
+    private final FhirPathR4 fhirPathR4;
+    private final MappingBulkheads bulkheads;
+    private final String defaultGroupBy;
+    private final ForkJoinPool pool;
+    private final int maxInFlight;
+
+    @Autowired
+    public NdjsonToOpenEhrBulk(final OpenFhirEngine openFhirEngine,
+                               final FhirConnectContextRepository fhirConnectContextRepository,
+                               final ProdOpenFhirMappingContext mappingContext,
+                               final FhirJsonParserProvider jsonParserProvider,
+                               final FhirPathR4 fhirPathR4,
+                               final MappingBulkheads bulkheads,
+                               @Value("${openfhir.toopenehr.bulk.group-by:patient}") final String defaultGroupBy,
+                               @Value("${openfhir.toopenehr.bulk.parallelism:4}") final int parallelism) {
+        this(openFhirEngine, fhirConnectContextRepository, (OpenFhirMappingContext) mappingContext,
+             jsonParserProvider, fhirPathR4, bulkheads, defaultGroupBy, parallelism);
+    }
+
+    /**
+     * @param mappingContext request scoped mapping context (its scoped proxy) the groups are mapped with
+     */
+    NdjsonToOpenEhrBulk(final OpenFhirEngine openFhirEngine,
+                        final FhirConnectContextRepository fhirConnectContextRepository,
+                        final OpenFhirMappingContext mappingContext,
+                        final FhirJsonParserProvider jsonParserProvider,
+                        final FhirPathR4 fhirPathR4,
+                        final MappingBulkheads bulkheads,
+                        final String defaultGroupBy,
+                        final int parallelism) {
+        this.openFhirEngine = openFhirEngine;
+        this.fhirConnectContextRepository = fhirConnectContextRepository;
+        this.mappingContext = mappingContext;
+        this.jsonParserProvider = jsonParserProvider;
+        this.fhirPathR4 = fhirPathR4;
+        this.bulkheads = bulkheads;
+        this.defaultGroupBy = defaultGroupBy;
+        this.pool = RequestScopedTasks.newPool("openfhir-bulk", parallelism);
+        this.maxInFlight = 2 * Math.max(1, parallelism);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * @param in newline delimited FHIR Resources; blank lines are skipped
+     * @param out where newline delimited openEHR Compositions are written to, or an error for a line that couldn't
+     *         be parsed or grouped or a group that couldn't be mapped, i.e. {"line": 3, "error": "..."} or
+     *         {"group": "Patient/1", "error": "..."}
+     * @param templateId optional template id of all Compositions; otherwise the context mapper is looked up by
+     *         profiles of each group's Resources
+     * @param groupBy 'patient', 'encounter' or a FHIR path; the configured default is used if it's empty
+     * @param flat whether Compositions should be written in a flat format; canonical format is written otherwise
+     * @throws ResponseStatusException with 400 if groupBy is not a valid FHIR path, before anything is written
+     */
+    public void convert(final InputStream in, final OutputStream out, final String templateId, final String groupBy,
+                        final Boolean flat) throws IOException {
+        final Map<String, FhirConnectContextEntity> contexts = new ConcurrentHashMap<>();
+        final Function<String, FhirConnectContextEntity> contextByTemplateId = id -> contexts.computeIfAbsent(
+                id, fhirConnectContextRepository::findByTemplateId);
+        convert(in, out, StringUtils.isBlank(groupBy) ? defaultGroupBy : groupBy, bundle -> {
+            // without a template id, the template is only known once the context mapper is found, so such groups
+            // share a bulkhead, the same as single mappings do
+            try (MappingBulkheads.Permit ignored = bulkheads.acquire(templateId,
+                                                                     MappingBulkheads.Direction.TO_OPENEHR)) {
+                return openFhirEngine.toOpenEhrLine(bundle, templateId, flat, contextByTemplateId);
+            }
+        });
+    }
+
+    void convert(final InputStream in, final OutputStream out, final String groupBy,
+                 final Function<Bundle, String> toOpenEhr) throws IOException {
+        final IFhirPath.IParsedExpression groupPath = parseGroupBy(groupBy);
+        // all groups of the input are mapped with the mapping context of the request
+        RequestScopedTasks.resolveScoped(mappingContext);
+        final Map<String, List<Resource>> groups = new LinkedHashMap<>();
+        final Map<String, Resource> ungrouped = new HashMap<>();
+        // line numbers of ungrouped Resources, in the order they were read
+        final Map<String, Integer> ungroupedLines = new LinkedHashMap<>();
+
+        try (OrderedNdjsonWriter writer = new OrderedNdjsonWriter(pool, maxInFlight, out)) {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                final Resource resource;
+                try {
+                    resource = (Resource) jsonParserProvider.parseResource(line);
+                } catch (final RuntimeException e) {
+                    log.warn("Couldn't parse line {} of a bulk input: {}", lineNumber, e.getMessage());
+                    writer.write(error("line", lineNumber, e.getMessage()));
+                    continue;
+                }
+                final String key;
+                try {
+                    key = groupKey(resource, groupBy, groupPath);
+                } catch (final RuntimeException e) {
+                    log.warn("Couldn't group line {} of a bulk input: {}", lineNumber, e.getMessage());
+                    writer.write(error("line", lineNumber, String.format("Couldn't evaluate %s on %s: %s", groupBy,
+                                                                         resource.fhirType(), e.getMessage())));
+                    continue;
+                }
+                if (key != null) {
+                    groups.computeIfAbsent(key, k -> new ArrayList<>()).add(resource);
+                } else if (resource.getIdElement().hasIdPart()) {
+                    if (ungrouped.putIfAbsent(resourceKey(resource), resource) == null) {
+                        ungroupedLines.put(resourceKey(resource), lineNumber);
+                    }
+                } else {
+                    writer.write(error("line", lineNumber, String.format(
+                            "%s has neither a %s nor an id it could be referred to with.",
+                            resource.fhirType(), groupBy)));
+                }
+            }
+
+            log.info("Mapping {} groups of a bulk input, grouped by {}", groups.size(), groupBy);
+            final Set<String> referred = new HashSet<>();
+            for (final Map.Entry<String, List<Resource>> group : groups.entrySet()) {
+                final Bundle bundle = toBundle(group.getValue(), ungrouped, referred);
+                writer.submit(() -> convertGroup(group.getKey(), bundle, toOpenEhr));
+            }
+            for (final Map.Entry<String, Integer> unreferred : ungroupedLines.entrySet()) {
+                if (!referred.contains(unreferred.getKey())) {
+                    writer.write(error("line", unreferred.getValue(), String.format(
+                            "%s has no %s and isn't referred to by any group.",
+                            ungrouped.get(unreferred.getKey()).fhirType(), groupBy)));
+                }
+            }
+            writer.finish();
+        }
+    }
+
+    private String convertGroup(final String key, final Bundle bundle, final Function<Bundle, String> toOpenEhr) {
+        try {
+            return toOpenEhr.apply(bundle);
+        } catch (final Exception | StackOverflowError e) {
+            // a single group mustn't fail the whole bulk input, not even with deeply nested Resources
+            final String message = e instanceof ResponseStatusException statusException
+                    ? statusException.getReason() : StringUtils.defaultIfBlank(e.getMessage(), e.toString());
+            log.warn("Couldn't map group {} of a bulk input: {}", key, message);
+            return error("group", key, message);
+        }
+    }
+
+    /**
+     * Parsed once per input, so that an invalid FHIR path given by a client is rejected before anything is written
+     *
+     * @return parsed path that resolves the key (or a reference to the Resource of the key) of a Resource's group
+     */
+    private IFhirPath.IParsedExpression parseGroupBy(final String groupBy) {
+        final String path = GROUP_REFERENCE_PATHS.getOrDefault(groupBy, groupBy);
+        try {
+            return fhirPathR4.parse(path);
+        } catch (final Exception e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                                              String.format("groupBy '%s' is not a valid FHIR path: %s", groupBy,
+                                                            e.getMessage()));
+        }
+    }
+
+    /**
+     * @return key of the group the Resource belongs to or null if it doesn't belong to any
+     */
+    private String groupKey(final Resource resource, final String groupBy,
+                            final IFhirPath.IParsedExpression groupPath) {
+        final ResourceType groupResourceType = GROUP_RESOURCE_TYPES.get(groupBy);
+        if (groupResourceType == resource.getResourceType()) {
+            return resource.getIdElement().hasIdPart() ? resourceKey(resource) : null;
+        }
+        final List<Base> evaluated = fhirPathR4.evaluate(resource, groupPath, Base.class);
+        if (evaluated.isEmpty() || !evaluated.get(0).hasPrimitiveValue()) {
+            return null;
+        }
+        final String value = evaluated.get(0).primitiveValue();
+        return groupResourceType == null ? value : referenceKey(new IdType(value));
+    }
+
+    /**
+     * Bundle of a group's Resources together with (also transitively) referred Resources that aren't part of any
+     * group, so that references can be resolved when mapping
+     *
+     * @param referredByAny keys of ungrouped Resources that any group refers to, the ones referred to by this
+     *         group are added to it
+     */
+    private Bundle toBundle(final List<Resource> resources, final Map<String, Resource> ungrouped,
+                            final Set<String> referredByAny) {
+        final FhirTerser terser = jsonParserProvider.getFhirContext().newTerser();
+        final Set<Resource> referred = new LinkedHashSet<>();
+        final Deque<Resource> toVisit = new ArrayDeque<>(resources);
+        while (!toVisit.isEmpty()) {
+            for (final Reference reference : terser.getAllPopulatedChildElementsOfType(toVisit.poll(),
+                                                                                       Reference.class)) {
+                final Resource found = reference.hasReference()
+                        ? ungrouped.get(referenceKey(reference.getReferenceElement())) : null;
+                if (found != null && referred.add(found)) {
+                    toVisit.add(found);
+                }
+            }
+        }
+
+        final Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        resources.forEach(resource -> addEntry(bundle, resource));
+        referred.forEach(resource -> {
+            addEntry(bundle, resource);
+            referredByAny.add(resourceKey(resource));
+        });
+        return bundle;
+    }
+
+    private void addEntry(final Bundle bundle, final Resource resource) {
+        final Bundle.BundleEntryComponent entry = bundle.addEntry().setResource(resource);
+        if (resource.getIdElement().hasIdPart()) {
+            entry.setFullUrl(resourceKey(resource));
+        }
+    }
+
+    private static String resourceKey(final Resource resource) {
+        return resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+    }
+
+    /**
+     * @return 'ResourceType/id' of a reference or the reference itself if it has no type (i.e. urn:uuid:...)
+     */
+    private static String referenceKey(final IIdType id) {
+        if (id.hasResourceType() && id.hasIdPart()) {
+            return id.getResourceType() + "/" + id.getIdPart();
+        }
+        return id.getValue();
+    }
+
+    private static String error(final String property, final Object value, final String message) {
+        final JsonObject error = new JsonObject();
+        if (value instanceof Number number) {
+            error.addProperty(property, number);
+        } else {
+            error.addProperty(property, String.valueOf(value));
+        }
+        error.addProperty("error", message);
+        return error.toString();
+    }
+}
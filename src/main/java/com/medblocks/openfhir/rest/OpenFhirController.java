@@ -1,15 +1,24 @@
 package com.medblocks.openfhir.rest;
 
 import com.medblocks.openfhir.OpenFhirEngine;
+import com.medblocks.openfhir.RequestEnvelope;
+import com.medblocks.openfhir.util.CachingFhirPathR4;
+import com.medblocks.openfhir.util.OpenEhrCachedUtils;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -29,10 +38,25 @@ import org.springframework.web.server.ResponseStatusException;
 public class OpenFhirController {
 
     private final OpenFhirEngine openFhirEngine;
+    private final OpenEhrCachedUtils openEhrCachedUtils;
+    private final CachingFhirPathR4 fhirPath;
+    private final MappingBulkheads bulkheads;
+    private final NdjsonToFhirBatch toFhirBatch;
+    private final NdjsonToOpenEhrBulk toOpenEhrBulk;
 
     @Autowired
-    public OpenFhirController(final OpenFhirEngine openFhirEngine) {
+    public OpenFhirController(final OpenFhirEngine openFhirEngine,
+                              final OpenEhrCachedUtils openEhrCachedUtils,
+                              final CachingFhirPathR4 fhirPath,
+                              final MappingBulkheads bulkheads,
+                              final NdjsonToFhirBatch toFhirBatch,
+                              final NdjsonToOpenEhrBulk toOpenEhrBulk) {
         this.openFhirEngine = openFhirEngine;
+        this.openEhrCachedUtils = openEhrCachedUtils;
+        this.fhirPath = fhirPath;
+        this.bulkheads = bulkheads;
+        this.toFhirBatch = toFhirBatch;
+        this.toOpenEhrBulk = toOpenEhrBulk;
     }
 
     /**
@@ -63,16 +87,56 @@ public class OpenFhirController {
     ResponseEntity toFhir(@RequestBody String composition, @RequestParam(required = false) String templateId,
                           @RequestHeader(value = "x-req-id", required = false) final String reqId) {
         try {
-
-            final String fhir = openFhirEngine.toFhir(composition, templateId);
+            // template id is in the composition itself when it's not given as a parameter; the body is sniffed once,
+            // for the bulkhead and the mapping
+            final RequestEnvelope envelope = RequestEnvelope.sniff(composition);
+            final String fhir;
+            try (MappingBulkheads.Permit ignored = bulkheads.acquire(
+                    templateId != null ? templateId : envelope.getTemplateId(), MappingBulkheads.Direction.TO_FHIR)) {
+                fhir = openFhirEngine.toFhir(envelope, templateId);
+            }
 
             return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(fhir);
+        } catch (BulkheadRejectedException e) {
+
+            return rejected(e);
         } catch (ResponseStatusException | IllegalArgumentException e) {
 
             return ResponseEntity.badRequest().body(e.getMessage());
         }
     }
 
+    /**
+     * Accepts newline delimited openEHR Compositions and maps each of them to a FHIR Bundle, streaming back one
+     * Bundle per line in the same order. A line that can't be mapped results in an error line instead, i.e.
+     * {"line": 3, "error": "..."}, and doesn't stop the batch. Each line goes through its template's bulkhead, so a
+     * line rejected by it is such an error as well.
+     *
+     * @param compositions newline delimited openEHR Compositions in either flat or canonical format
+     * @param templateId optional template id of all Compositions; if none is given, it's taken from each Composition
+     * @param response where newline delimited FHIR Bundles are written to as they're mapped
+     */
+    @PostMapping(value = "/openfhir/tofhir/$batch", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    @Operation(
+            summary = "Maps a batch of openEHR Compositions to FHIR Bundles",
+            description = "Maps newline delimited openEHR Compositions to newline delimited FHIR Bundles (or errors per line) according to FHIR Connect state of the engine",
+            responses = {
+                    @ApiResponse(responseCode = "200", description = "Newline delimited FHIR Bundles")
+            },
+            requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+                    description = "Newline delimited openEHR Compositions in either flat or canonical format",
+                    content = {
+                            @Content(mediaType = MediaType.APPLICATION_NDJSON_VALUE)
+                    }
+            )
+    )
+    void toFhirBatch(final InputStream compositions, @RequestParam(required = false) String templateId,
+                     @RequestHeader(value = "x-req-id", required = false) final String reqId,
+                     final HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+        toFhirBatch.convert(compositions, response.getOutputStream(), templateId);
+    }
+
     /**
      * Accepts a FHIR Resource (Bundle or any other) and maps it corresponding openEHR Composition  according to the
      * state of the openFHIR
@@ -106,12 +170,23 @@ public class OpenFhirController {
     ResponseEntity toOpenEhr(@RequestBody String fhirResource,
                              @RequestParam(required = false) String templateId,
                              @RequestParam(required = false) Boolean flat,
-                             @RequestHeader(value = "x-req-id", required = false) final String reqId) {
+                             @RequestHeader(value = "x-req-id", required = false) final String reqId)
+            throws IOException {
         try {
 
-            final String openEhr = openFhirEngine.toOpenEhr(fhirResource, templateId, flat);
+            // serialized into a buffer before anything is written to the response, so that a failing serialization
+            // still ends up as an error response instead of a truncated 200; without a template id, the template is
+            // only known once the Resource is parsed, so such requests share a bulkhead
+            final ByteArrayOutputStream openEhr = new ByteArrayOutputStream();
+            try (MappingBulkheads.Permit ignored = bulkheads.acquire(templateId,
+                                                                     MappingBulkheads.Direction.TO_OPENEHR)) {
+                openFhirEngine.toOpenEhrOutput(fhirResource, templateId, flat).writeTo(openEhr);
+            }
 
-            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(openEhr);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(openEhr.toByteArray());
+        } catch (BulkheadRejectedException e) {
+
+            return rejected(e);
         } catch (ResponseStatusException | IllegalArgumentException e) {
 
             return ResponseEntity.badRequest().body(e.getMessage());
@@ -121,6 +196,53 @@ public class OpenFhirController {
         }
     }
 
+    /**
+     * Accepts newline delimited FHIR Resources (i.e. files of a FHIR Bulk Data $export, concatenated), groups them
+     * (by default per Patient), builds a Bundle of each group and maps it to an openEHR Composition, streaming back
+     * one Composition per group. A group that can't be mapped results in an error line instead, i.e.
+     * {"group": "Patient/1", "error": "..."}, and doesn't stop the rest. Each group goes through the template's
+     * bulkhead, so a group rejected by it is such an error as well.
+     *
+     * @param resources newline delimited FHIR Resources, R4
+     * @param templateId optional template id of all Compositions; if none is given, context mapper is looked up
+     *         by profiles of each group's Resources
+     * @param groupBy 'patient', 'encounter' or a FHIR path evaluated on each Resource; default is configured with
+     *         openfhir.toopenehr.bulk.group-by; an invalid FHIR path is rejected with 400
+     * @param flat if Compositions should be written in a flat format; default is canonical
+     * @param response where newline delimited openEHR Compositions are written to as they're mapped
+     */
+    @PostMapping(value = "/openfhir/toopenehr/$bulk", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    @Operation(
+            summary = "Maps grouped FHIR Resources to openEHR Compositions",
+            description = "Maps newline delimited FHIR Resources, grouped to Bundles per patient, encounter or a FHIR path, to newline delimited openEHR Compositions (or errors per group) according to FHIR Connect state of the engine",
+            responses = {
+                    @ApiResponse(responseCode = "200", description = "Newline delimited openEHR Compositions in either flat or canonical format"),
+                    @ApiResponse(responseCode = "400", description = "groupBy is not a valid FHIR path")
+            },
+            requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+                    description = "Newline delimited FHIR Resources",
+                    content = {
+                            @Content(mediaType = MediaType.APPLICATION_NDJSON_VALUE)
+                    }
+            )
+    )
+    void toOpenEhrBulk(final InputStream resources,
+                       @RequestParam(required = false) String templateId,
+                       @RequestParam(required = false) String groupBy,
+                       @RequestParam(required = false) Boolean flat,
+                       @RequestHeader(value = "x-req-id", required = false) final String reqId,
+                       final HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+        toOpenEhrBulk.convert(resources, response.getOutputStream(), templateId, groupBy, flat);
+    }
+
+    /**
+     * Mapping was rejected by its bulkhead, which is temporary, so clients are told to retry
+     */
+    private ResponseEntity<String> rejected(final BulkheadRejectedException e) {
+        return ResponseEntity.status(e.getStatusCode()).header(HttpHeaders.RETRY_AFTER, "1").body(e.getReason());
+    }
+
     /**
      *
      * @return - List of profiles from mappings
@@ -136,4 +258,52 @@ public class OpenFhirController {
     List<String> getValidProfiles(@RequestHeader(value = "x-req-id", required = false) final String reqId) {
     return openFhirEngine.getValidProfiles(reqId);
     }
+
+    /**
+     *
+     * @return - hit/miss/eviction statistics of the operational and web template caches
+     */
+    @Operation(
+        summary = "Get template cache statistics",
+        description = "Get hit, miss and eviction statistics of the operational template and web template caches",
+        responses = {
+                @ApiResponse(responseCode = "200", description = "Template cache statistics")
+        }
+    )
+    @GetMapping(value = "/openfhir/cache/templates", produces = "application/json")
+    Map<String, Map<String, Object>> getTemplateCacheStatistics() {
+        return openEhrCachedUtils.getStatistics();
+    }
+
+    /**
+     *
+     * @return - size/hit/miss/eviction statistics of the parsed FHIR path expression cache
+     */
+    @Operation(
+        summary = "Get FHIR path expression cache statistics",
+        description = "Get size, hit, miss and eviction statistics of the parsed FHIR path expression cache",
+        responses = {
+                @ApiResponse(responseCode = "200", description = "FHIR path expression cache statistics")
+        }
+    )
+    @GetMapping(value = "/openfhir/cache/fhirpath", produces = "application/json")
+    Map<String, Object> getFhirPathCacheStatistics() {
+        return fhirPath.getStatistics();
+    }
+
+    /**
+     *
+     * @return - limits and current state of bulkheads per mapping direction and template
+     */
+    @Operation(
+        summary = "Get mapping bulkhead statistics",
+        description = "Get limits, active and waiting mappings and rejections of bulkheads per direction and template",
+        responses = {
+                @ApiResponse(responseCode = "200", description = "Mapping bulkhead statistics")
+        }
+    )
+    @GetMapping(value = "/openfhir/bulkheads", produces = "application/json")
+    Map<String, Map<String, Object>> getBulkheadStatistics() {
+        return bulkheads.getStatistics();
+    }
 }
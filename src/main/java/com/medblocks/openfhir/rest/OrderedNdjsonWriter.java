@@ -0,0 +1,95 @@
+package com.medblocks.openfhir.rest;
+
+import com.medblocks.openfhir.util.RequestScopedTasks;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Writes lines of newline delimited json produced by tasks run on a pool, in the order the tasks were submitted.
+ * Only a limited amount of tasks is in flight; submitting one more first waits for and writes the oldest one, so
+ * memory doesn't grow with the amount of lines.
+ * <p>
+ * Mapping context is request scoped, so tasks are wrapped with request attributes of the submitting thread (see
+ * {@link RequestScopedTasks#wrap(Callable)}).
+ */
+final class OrderedNdjsonWriter implements AutoCloseable {
+
+    private final ForkJoinPool pool;
+    private final int maxInFlight;
+    private final Writer writer;
+    // lines being produced, in the order they were submitted
+    private final Deque<Future<String>> inFlight = new ArrayDeque<>();
+
+    OrderedNdjsonWriter(final ForkJoinPool pool, final int maxInFlight, final OutputStream out) {
+        this.pool = pool;
+        this.maxInFlight = maxInFlight;
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param line produces a single line of json; it must not throw, failures are expected to be written as lines
+     */
+    void submit(final Callable<String> line) throws IOException {
+        add(pool.submit(RequestScopedTasks.wrap(line)));
+    }
+
+    /**
+     * @param line single line of json that's already known, written after all lines submitted before it
+     */
+    void write(final String line) throws IOException {
+        add(CompletableFuture.completedFuture(line));
+    }
+
+    /**
+     * Waits for and writes all lines still in flight
+     */
+    void finish() throws IOException {
+        while (!inFlight.isEmpty()) {
+            writeLine(inFlight.poll());
+        }
+        writer.flush();
+    }
+
+    /**
+     * Cancels lines that haven't been written, i.e. when the client went away and nobody is going to read them.
+     * Lines that haven't started yet won't be produced at all, whereas lines that are already being produced run to
+     * completion (tasks of a ForkJoinPool aren't interrupted) and are discarded.
+     */
+    @Override
+    public void close() {
+        inFlight.forEach(future -> future.cancel(false));
+        inFlight.clear();
+    }
+
+    private void add(final Future<String> line) throws IOException {
+        inFlight.add(line);
+        if (inFlight.size() > maxInFlight) {
+            writeLine(inFlight.poll());
+        }
+    }
+
+    private void writeLine(final Future<String> line) throws IOException {
+        try {
+            writer.write(line.get());
+            writer.write('\n');
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing newline delimited json.");
+        } catch (final ExecutionException e) {
+            // tasks write their failures as lines, so this is unexpected
+            throw new IllegalStateException("Couldn't produce a line of newline delimited json.", e.getCause());
+        }
+    }
+}
@@ -27,6 +27,7 @@ import static com.medblocks.openfhir.util.OpenFhirStringUtils.WHERE;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.medblocks.openfhir.MapperOverlay;
 import com.medblocks.openfhir.OpenEhrRmWorker;
 import com.medblocks.openfhir.OpenFhirMappingContext;
 import com.medblocks.openfhir.fc.FhirConnectConst;
@@ -36,36 +37,45 @@ import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
 import com.medblocks.openfhir.fc.schema.model.Condition;
 import com.medblocks.openfhir.fc.schema.model.Mapping;
 import com.medblocks.openfhir.fc.schema.model.With;
-import com.medblocks.openfhir.toopenehr.FhirToOpenEhrHelper;
+import com.medblocks.openfhir.util.FhirClassMetadata;
 import com.medblocks.openfhir.util.FhirInstanceCreator;
 import com.medblocks.openfhir.util.FhirInstanceCreatorUtility;
 import com.medblocks.openfhir.util.FhirInstancePopulator;
+import com.medblocks.openfhir.util.FlatJsonObjectMarshaller;
+import com.medblocks.openfhir.util.FlatJsonObjectUnmarshaller;
 import com.medblocks.openfhir.util.OpenEhrCachedUtils;
 import com.medblocks.openfhir.util.OpenEhrConditionEvaluator;
 import com.medblocks.openfhir.util.OpenFhirConst;
 import com.medblocks.openfhir.util.OpenFhirMapperUtils;
 import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import com.medblocks.openfhir.util.RequestScopedTasks;
+import com.medblocks.openfhir.util.WebTemplateIndex;
 import com.nedap.archie.rm.composition.Composition;
 import com.nedap.archie.rm.composition.ContentItem;
+import jakarta.annotation.PreDestroy;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.marshal.FlatJsonMarshaller;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplateNode;
 import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
 import org.hl7.fhir.r4.model.Attachment;
 import org.hl7.fhir.r4.model.Base;
@@ -86,6 +96,7 @@ import org.hl7.fhir.r4.model.TimeType;
 import org.hl7.fhir.r4.utils.FHIRPathUtilityClasses.ClassTypeInfo;
 import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
@@ -95,7 +106,8 @@ import org.springframework.stereotype.Component;
 @Component
 public class OpenEhrToFhir {
 
-    final private FlatJsonMarshaller flatJsonMarshaller;
+    final private FlatJsonObjectMarshaller flatJsonObjectMarshaller;
+    final private FlatJsonObjectUnmarshaller flatJsonObjectUnmarshaller;
     final private OpenFhirMappingContext openFhirTemplateRepo;
     final private OpenEhrCachedUtils openEhrApplicationScopedUtils;
     final private Gson gson;
@@ -109,9 +121,15 @@ public class OpenEhrToFhir {
     final private IntermediateCacheProcessing intermediateCacheProcessing;
     final private OpenEhrConditionEvaluator openEhrConditionEvaluator;
 
+    /**
+     * pool preparing helpers of top level archetypes in parallel; null if archetypes are mapped sequentially
+     */
+    private ForkJoinPool archetypePool;
+
 
     @Autowired
-    public OpenEhrToFhir(final FlatJsonMarshaller flatJsonMarshaller,
+    public OpenEhrToFhir(final FlatJsonObjectMarshaller flatJsonObjectMarshaller,
+                         final FlatJsonObjectUnmarshaller flatJsonObjectUnmarshaller,
                          final OpenFhirMappingContext openFhirTemplateRepo,
                          final OpenEhrCachedUtils openEhrApplicationScopedUtils,
                          final Gson gson, OpenFhirStringUtils openFhirStringUtils,
@@ -123,7 +141,8 @@ public class OpenEhrToFhir {
                          final FhirPathR4 fhirPathR4,
                          final IntermediateCacheProcessing intermediateCacheProcessing,
                          final OpenEhrConditionEvaluator openEhrConditionEvaluator) {
-        this.flatJsonMarshaller = flatJsonMarshaller;
+        this.flatJsonObjectMarshaller = flatJsonObjectMarshaller;
+        this.flatJsonObjectUnmarshaller = flatJsonObjectUnmarshaller;
         this.openFhirTemplateRepo = openFhirTemplateRepo;
         this.openEhrApplicationScopedUtils = openEhrApplicationScopedUtils;
         this.gson = gson;
@@ -138,14 +157,37 @@ public class OpenEhrToFhir {
         this.openEhrConditionEvaluator = openEhrConditionEvaluator;
     }
 
+    /**
+     * Opts in to preparing top level archetypes of a Composition in parallel. Reading mappings out of the flat
+     * Composition (helpers) is independent per archetype and is done on a pool with the given parallelism, whereas
+     * FHIR Resources are still created from the helpers sequentially in Composition order, so output is the same
+     * as when mapping sequentially.
+     *
+     * @param parallelism number of threads preparing archetypes; 0 or 1 means archetypes are mapped sequentially
+     */
+    @Autowired
+    public void setArchetypeParallelism(@Value("${openfhir.tofhir.archetype-parallelism:0}") final int parallelism) {
+        if (archetypePool != null) {
+            archetypePool.shutdown();
+        }
+        archetypePool = RequestScopedTasks.newOptionalPool("openfhir-archetypes", parallelism);
+    }
+
+    @PreDestroy
+    public void shutdownArchetypePool() {
+        if (archetypePool != null) {
+            archetypePool.shutdown();
+            archetypePool = null;
+        }
+    }
+
     /**
      * Main method that handles business logic of mapping incoming OpenEHR Composition to a FHIR Bundle
      *
      * @param context fhir connect context mapper
      * @param composition incoming Composition that needs to be mapped (this is serialized immediately to a
-     *         flat json format, meaning if it already comes like this to the openFHIR engine,
-     *         we're doing 2 de/serializations; rethink if it makes sense or not - right not, this is
-     *         also how we're implicitly validating incoming request, but that could be done smarter)
+     *         flat json format; if it already comes to the openFHIR engine in a flat format, use
+     *         {@link #flatToFhir(FhirConnectContext, JsonObject, OPERATIONALTEMPLATE)} instead)
      * @param operationaltemplate operational template that is related to the incoming Composition
      * @return Bundle that is a result of the mapping engine
      */
@@ -154,8 +196,80 @@ public class OpenEhrToFhir {
                                     final OPERATIONALTEMPLATE operationaltemplate) {
         // create flat from composition
         final WebTemplate webTemplate = openEhrApplicationScopedUtils.parseWebTemplate(operationaltemplate);
-        final String flatJson = flatJsonMarshaller.toFlatJson(composition, webTemplate);
-        final JsonObject flatJsonObject = gson.fromJson(flatJson, JsonObject.class);
+        final JsonObject flatJsonObject = flatJsonObjectMarshaller.toFlatJsonObject(composition, webTemplate);
+        final List<String> contentArchetypes = composition.getContent().stream()
+                .map(ContentItem::getArchetypeNodeId)
+                .collect(Collectors.toList());
+        return flatToFhir(context, flatJsonObject, contentArchetypes, webTemplate);
+    }
+
+    /**
+     * Maps a Composition that comes in a flat format straight to a FHIR Bundle, without unmarshalling it to a
+     * Composition (and marshalling it back to flat) first. Top level content archetypes are derived from flat keys.
+     * <p>
+     * That's only done when all keys are already in the form Compositions are marshalled to (see
+     * {@link WebTemplateIndex#isCanonicalFlatPath(String)}). Otherwise (ctx/ shortcuts, index-less or invalid paths)
+     * it's unmarshalled to a Composition first, which expands and validates them.
+     *
+     * @param context fhir connect context mapper
+     * @param flatJsonObject incoming Composition in a flat json format
+     * @param operationaltemplate operational template that is related to the incoming Composition
+     * @return Bundle that is a result of the mapping engine
+     */
+    public Bundle flatToFhir(final FhirConnectContext context,
+                             final JsonObject flatJsonObject,
+                             final OPERATIONALTEMPLATE operationaltemplate) {
+        final WebTemplate webTemplate = openEhrApplicationScopedUtils.parseWebTemplate(operationaltemplate);
+        final WebTemplateIndex webTemplateIndex = WebTemplateIndex.of(webTemplate);
+        if (!flatJsonObject.keySet().stream().allMatch(webTemplateIndex::isCanonicalFlatPath)) {
+            log.debug("Flat Composition of template {} isn't canonical, unmarshalling it first.",
+                      webTemplate.getTemplateId());
+            final Composition composition = flatJsonObjectUnmarshaller.unmarshal(flatJsonObject, webTemplate);
+            if (composition.getContent().isEmpty()) {
+                log.error("Composition not properly unmarshalled. Empty content. Aborting translation.");
+                throw new IllegalArgumentException(
+                        "Composition not properly unmarshalled. Empty content. Aborting translation. See log for more info.");
+            }
+            return compositionToFhir(context, composition, operationaltemplate);
+        }
+        final List<String> contentArchetypes = getContentArchetypes(flatJsonObject, webTemplate);
+        if (contentArchetypes.isEmpty()) {
+            log.error("No content archetypes found within flat Composition of template {}.",
+                      webTemplate.getTemplateId());
+            throw new IllegalArgumentException(
+                    "No content found within flat Composition. Aborting translation. See log for more info.");
+        }
+        return flatToFhir(context, flatJsonObject, contentArchetypes, webTemplate);
+    }
+
+    /**
+     * Returns archetype ids of top level content (Composition.content) in the order they appear in the web template,
+     * but only those that have at least one flat path in the given flat Composition.
+     */
+    List<String> getContentArchetypes(final JsonObject flatJsonObject, final WebTemplate webTemplate) {
+        final String treeId = webTemplate.getTree().getId();
+        final Set<String> contentIds = new HashSet<>();
+        for (final String flatPath : flatJsonObject.keySet()) {
+            final String[] parts = flatPath.split("/", 3);
+            if (parts.length < 2 || !treeId.equals(parts[0])) {
+                continue;
+            }
+            contentIds.add(StringUtils.substringBefore(StringUtils.substringBefore(parts[1], "|"), ":"));
+        }
+        final List<String> contentArchetypes = new ArrayList<>();
+        for (final WebTemplateNode child : webTemplate.getTree().getChildren()) {
+            if (child.getAqlPath() != null && child.getAqlPath().startsWith("/content[")
+                    && contentIds.contains(child.getId())) {
+                contentArchetypes.add(child.getNodeId());
+            }
+        }
+        return contentArchetypes;
+    }
+
+    private Bundle flatToFhir(final FhirConnectContext context,
+                              final JsonObject flatJsonObject,
+                              final List<String> contentArchetypes,
+                              final WebTemplate webTemplate) {
         final String templateId = OpenFhirMappingContext.normalizeTemplateId(
                 context.getContext().getTemplate().getId());
         final Bundle creatingBundle = prepareBundle();
@@ -164,21 +278,30 @@ public class OpenEhrToFhir {
         final Set<String> createdAndAdded = new HashSet<>();
         final Set<String> archetypesAlreadyProcessed = new HashSet<>();
 
+        // helpers of archetypes prepared up front in parallel (if opted in), by the mapper they were prepared for
+        final Map<String, List<OpenFhirFhirConnectModelMapper>> preparedMappers = new HashMap<>();
+        final Map<OpenFhirFhirConnectModelMapper, List<OpenEhrToFhirHelper>> preparedHelpers = new IdentityHashMap<>();
+        if (archetypePool != null && contentArchetypes.size() > 1) {
+            prepareArchetypesInParallel(templateId, contentArchetypes, flatJsonObject, webTemplate, preparedMappers,
+                                        preparedHelpers);
+        }
+
         // loop through top level content/archetypes within the Composition
-        for (final ContentItem archetypesWithinContent : composition.getContent()) {
+        for (final String archetypeNodeId : contentArchetypes) {
 
             // elements instantiated throughout the mapping (FHIR dataelements instantiated, key'd by created object + fhir path + openehr path)
             // instanced here so multiple archetypes can share them
             final Map<String, Object> instantiatedIntermediateElements = new HashMap<>();
 
-            final String archetypeNodeId = archetypesWithinContent.getArchetypeNodeId();
             if (archetypesAlreadyProcessed.contains(archetypeNodeId)) {
                 continue;
             }
 
             // get mapper by templateid (context) + archetype id (model)
-            final List<OpenFhirFhirConnectModelMapper> theMappers = openFhirTemplateRepo.getMapperForArchetype(
-                    templateId, archetypeNodeId);
+            final List<OpenFhirFhirConnectModelMapper> theMappers = preparedMappers.containsKey(archetypeNodeId)
+                    ? preparedMappers.get(archetypeNodeId)
+                    : MapperOverlay.forPreparation(openFhirTemplateRepo.getSharedMapperForArchetype(
+                            templateId, archetypeNodeId));
             if (theMappers == null) {
                 log.error("No mappers defined for archetype within this composition: {}. No mapping possible.",
                           archetypeNodeId);
@@ -193,13 +316,77 @@ public class OpenEhrToFhir {
                            instantiatedIntermediateElements,
                            creatingBundle,
                            archetypesAlreadyProcessed,
-                           archetypesWithinContent,
-                           archetypeNodeId);
+                           archetypeNodeId,
+                           preparedHelpers);
         }
 
         return creatingBundle;
     }
 
+    /**
+     * Gets mappers of all distinct archetypes and prepares their helpers on the archetype pool. Helpers only read
+     * the flat Composition and the web template, and mappers are either shared ones that preparing doesn't modify or
+     * working copies of the archetype (@see MapperOverlay), so archetypes don't share any mutable state while being
+     * prepared.
+     */
+    private void prepareArchetypesInParallel(final String templateId,
+                                             final List<String> contentArchetypes,
+                                             final JsonObject flatJsonObject,
+                                             final WebTemplate webTemplate,
+                                             final Map<String, List<OpenFhirFhirConnectModelMapper>> preparedMappers,
+                                             final Map<OpenFhirFhirConnectModelMapper, List<OpenEhrToFhirHelper>> preparedHelpers) {
+        final List<OpenFhirFhirConnectModelMapper> toPrepare = new ArrayList<>();
+        for (final String archetypeNodeId : new LinkedHashSet<>(contentArchetypes)) {
+            final List<OpenFhirFhirConnectModelMapper> theMappers = MapperOverlay.forPreparation(
+                    openFhirTemplateRepo.getSharedMapperForArchetype(templateId, archetypeNodeId));
+            preparedMappers.put(archetypeNodeId, theMappers);
+            if (theMappers != null) {
+                theMappers.stream().filter(mapper -> mapper.getFhirConfig() != null).forEach(toPrepare::add);
+            }
+        }
+
+        final List<Callable<List<OpenEhrToFhirHelper>>> tasks = toPrepare.stream()
+                .<Callable<List<OpenEhrToFhirHelper>>>map(mapper -> () -> prepareHelpers(mapper, webTemplate,
+                                                                                          flatJsonObject))
+                .collect(Collectors.toList());
+        final List<List<OpenEhrToFhirHelper>> helpers = RequestScopedTasks.invokeAll(archetypePool, tasks,
+                                                                                     "preparing archetypes");
+        for (int i = 0; i < toPrepare.size(); i++) {
+            preparedHelpers.put(toPrepare.get(i), helpers.get(i));
+        }
+    }
+
+    /**
+     * Creates helpers of a top level model mapper from the flat Composition
+     */
+    private List<OpenEhrToFhirHelper> prepareHelpers(final OpenFhirFhirConnectModelMapper theMapper,
+                                                     final WebTemplate webTemplate,
+                                                     final JsonObject flatJsonObject) {
+        // helper POJOs that help for openEHR to FHIR mappings
+        final List<OpenEhrToFhirHelper> helpers = new ArrayList<>();
+        String firstFlatPath;
+        if (!theMapper.getOpenEhrConfig().getArchetype().contains("CLUSTER")) {
+            firstFlatPath =
+                    webTemplate.getTree().getId() + "/content[" + theMapper.getOpenEhrConfig().getArchetype() + "]";
+        } else {
+            firstFlatPath = webTemplate.getTree().getId();
+        }
+
+        prepareOpenEhrToFhirHelpers(theMapper,
+                                    theMapper.getFhirConfig().getResource(),
+                                    firstFlatPath,
+                                    theMapper.getMappings(),
+                                    helpers,
+                                    webTemplate,
+                                    flatJsonObject,
+                                    false,
+                                    null,
+                                    null,
+                                    firstFlatPath,
+                                    false);
+        return helpers;
+    }
+
     /**
      * Loops over available mappings, creates helpers for mappings and then corresponding FHIR Resources
      * to given openEHR Compositions
@@ -215,8 +402,8 @@ public class OpenEhrToFhir {
      *         key'd by created object + fhir path + openehr path)
      * @param creatingBundle Bundle that is being created as part of the mappings
      * @param archetypesAlreadyProcessed set of archetypes already processed
-     * @param archetypesWithinContent archetype within a Composition that is currently being mapped
      * @param archetypeNodeId archetype id within a Composition that is currently being mapped
+     * @param preparedHelpers helpers already prepared by mapper; helpers of mappers not in there are prepared here
      */
     private void handleMappings(final List<OpenFhirFhirConnectModelMapper> theMappers,
                                 final Set<String> createdAndAdded,
@@ -227,8 +414,8 @@ public class OpenEhrToFhir {
                                 final Map<String, Object> instantiatedIntermediateElements,
                                 final Bundle creatingBundle,
                                 final Set<String> archetypesAlreadyProcessed,
-                                final ContentItem archetypesWithinContent,
-                                final String archetypeNodeId) {
+                                final String archetypeNodeId,
+                                final Map<OpenFhirFhirConnectModelMapper, List<OpenEhrToFhirHelper>> preparedHelpers) {
         for (final OpenFhirFhirConnectModelMapper theMapper : theMappers) {
             if (theMapper.getFhirConfig() == null) {
                 // if fhir config is null, it means it's a slot mapper and it can't be a first-level Composition.content one
@@ -247,28 +434,9 @@ public class OpenEhrToFhir {
                                    intermediateCaches.getOrDefault(theMapper.getFhirConfig().getResource(),
                                                                    instantiatedIntermediateElements));
 
-            // helper POJOs that help for openEHR to FHIR mappings
-            final List<OpenEhrToFhirHelper> helpers = new ArrayList<>();
-            String firstFlatPath;
-            if (!theMapper.getOpenEhrConfig().getArchetype().contains("CLUSTER")) {
-                firstFlatPath =
-                        webTemplate.getTree().getId() + "/content[" + theMapper.getOpenEhrConfig().getArchetype() + "]";
-            } else {
-                firstFlatPath = webTemplate.getTree().getId();
-            }
-
-            prepareOpenEhrToFhirHelpers(theMapper,
-                                        theMapper.getFhirConfig().getResource(),
-                                        firstFlatPath,
-                                        theMapper.getMappings(),
-                                        helpers,
-                                        webTemplate,
-                                        flatJsonObject,
-                                        false,
-                                        null,
-                                        null,
-                                        firstFlatPath,
-                                        false);
+            final List<OpenEhrToFhirHelper> helpers = preparedHelpers.containsKey(theMapper)
+                    ? preparedHelpers.get(theMapper)
+                    : prepareHelpers(theMapper, webTemplate, flatJsonObject);
 
             // within helpers, you should have everything you need to create a FHIR Resource now
             final List<Resource> created = createResourceFromOpenEhrToFhirHelper(helpers,
@@ -290,8 +458,7 @@ public class OpenEhrToFhir {
                                                                                          instantiatedIntermediateElements)
                                                                                          : instantiatedIntermediateElements);
 
-            log.info("Constructed {} resources for archetype {}.", created.size(),
-                     archetypesWithinContent.getArchetypeNodeId());
+            log.info("Constructed {} resources for archetype {}.", created.size(), archetypeNodeId);
 
             addEntriesToBundle(creatingBundle, created, createdAndAdded);
             archetypesAlreadyProcessed.add(archetypeNodeId);
@@ -588,8 +755,8 @@ public class OpenEhrToFhir {
             if (!matchFound) {
                 // it means a new one needs to be added because the one currently in there is not the one we should be setting anything to!
                 try {
-                    final Object newInstanceOfThisObject = ((List<Object>) findingOuterMost.getLastObject()).get(0)
-                            .getClass().getDeclaredConstructor().newInstance();
+                    final Object newInstanceOfThisObject = FhirClassMetadata.of(
+                            ((List<Object>) findingOuterMost.getLastObject()).get(0).getClass()).newInstance();
                     ((List<Object>) findingOuterMost.getLastObject()).add(newInstanceOfThisObject);
                     findingOuterMost.setRemovedPath(findingOuterMost.getRemovedPath()
                                                             .replace("." + where, "")
@@ -1017,12 +1184,9 @@ public class OpenEhrToFhir {
                                       helpers, webTemplate, flatJsonObject, slotContext, openEhrForReferenceMappings,
                                       possibleRecursion);
                 } else {
-                    // adds regex pattern to simplified path in a way that we can extract data from a given flat path
-                    final String withRegex = openFhirStringUtils.addRegexPatternToSimplifiedFlatFormat(openehr);
-
-                    // get all entries from the flat path that match the simplified flat path with regex pattern
-                    final List<String> matchingEntries = openFhirStringUtils.getAllEntriesThatMatch(withRegex,
-                                                                                                    flatJsonObject);
+                    // get all entries from the flat path that match the simplified flat path
+                    final List<String> matchingEntries = openFhirStringUtils.getAllEntriesThatMatchSimplified(openehr,
+                                                                                                              flatJsonObject);
                     final Map<String, List<String>> joinedEntries = openFhirStringUtils.joinValuesThatAreOne(matchingEntries);
                     handleRegularMapping(mapping, resourceType, parentFollowedByFhir,
                                          parentFollowedByOpenEhrWithOutAqlPath,
@@ -1083,16 +1247,12 @@ public class OpenEhrToFhir {
     }
 
     public String getPathFromAqlPath(String openEhrPath, WebTemplate webTemplate, String rmType) {
-        final FhirToOpenEhrHelper getTypeHelper = FhirToOpenEhrHelper.builder()
-                .openEhrPath(openEhrPath)
-                .openEhrType(rmType)
-                .build();
-        openEhrRmWorker.fixFlatWithOccurrences(Collections.singletonList(getTypeHelper), webTemplate);
-        if (getTypeHelper.getOpenEhrType() != null && getTypeHelper.getOpenEhrType().equals(OPENEHR_TYPE_NONE)
-                && openEhrPath.split("/").length != getTypeHelper.getOpenEhrPath().split("/").length) {
+        final WebTemplateIndex.ResolvedPath resolved = openEhrRmWorker.resolve(openEhrPath, rmType, webTemplate);
+        if (resolved.openEhrType() != null && resolved.openEhrType().equals(OPENEHR_TYPE_NONE)
+                && openEhrPath.split("/").length != resolved.openEhrPath().split("/").length) {
             return OpenFhirConst.INVALID_DATA_POINT;
         }
-        return getTypeHelper.getOpenEhrPath();
+        return resolved.openEhrPath();
     }
 
     /**
@@ -1186,9 +1346,9 @@ public class OpenEhrToFhir {
                                    final String slotContext, final String openehr, final boolean breakRecursion) {
         final String templateId = webTemplate.getTemplateId();
 
-        final List<OpenFhirFhirConnectModelMapper> slotArchetypeMapperss = openFhirTemplateRepo.getMapperForArchetype(
+        final List<OpenFhirFhirConnectModelMapper> sharedSlotArchetypeMappers = openFhirTemplateRepo.getSharedMapperForArchetype(
                 templateId, mapping.getSlotArchetype());
-        if (slotArchetypeMapperss == null) {
+        if (sharedSlotArchetypeMappers == null) {
             log.error("Couldn't find referenced slot archetype mapper {}. Referenced in {}", mapping.getSlotArchetype(),
                       mapping.getName());
             throw new IllegalArgumentException(
@@ -1196,7 +1356,8 @@ public class OpenEhrToFhir {
                                   mapping.getSlotArchetype(),
                                   mapping.getName()));
         }
-        for (final OpenFhirFhirConnectModelMapper slotArchetypeMappers : slotArchetypeMapperss) {
+        for (final OpenFhirFhirConnectModelMapper slotArchetypeMappers : MapperOverlay.forSlotPreparation(
+                sharedSlotArchetypeMappers)) {
             boolean possibleRecursion = slotArchetypeMappers.getName().equals(theMapper.getName());
             if (breakRecursion && possibleRecursion) {
                 log.warn("Breaking possible infinite recursion with mapping: {}", slotArchetypeMappers.getName());
@@ -1359,9 +1520,8 @@ public class OpenEhrToFhir {
                     final List<String> targetAttributes = mapping.getOpenehrCondition().getTargetAttributes();
                     final String targetRoot = mapping.getOpenehrCondition().getTargetRoot();
 //                    final String rootWithAttrs = targetRoot + ((targetAttributes != null && !targetAttributes.isEmpty()) ? "" : ("/" + targetAttributes.get(0)));
-                    final String piped = openFhirStringUtils.addRegexPatternToSimplifiedFlatFormat(targetRoot);
-                    final List<String> allEntriesThatMatch = openFhirStringUtils.getAllEntriesThatMatch(piped,
-                                                                                                         flatJsonObject);
+                    final List<String> allEntriesThatMatch = openFhirStringUtils.getAllEntriesThatMatchSimplified(
+                            targetRoot, flatJsonObject);
                     fullOpenEhrPath = allEntriesThatMatch.get(0);
                 }
                 int index = getHardcodedIndex(mapping, flatJsonObject);
@@ -1418,11 +1578,7 @@ public class OpenEhrToFhir {
                              final WebTemplate webTemplate) {
         if (mapping.getWith().getType() == null) {
             // if type is not explicitly defined in a fhir connect model mapper, it is taken from the template definition
-            final FhirToOpenEhrHelper getTypeHelper = FhirToOpenEhrHelper.builder()
-                    .openEhrPath(openEhrPath)
-                    .build();
-            openEhrRmWorker.fixFlatWithOccurrences(Collections.singletonList(getTypeHelper), webTemplate);
-            return getTypeHelper.getOpenEhrType();
+            return openEhrRmWorker.resolve(openEhrPath, null, webTemplate).openEhrType();
         } else {
             return mapping.getWith().getType();
         }
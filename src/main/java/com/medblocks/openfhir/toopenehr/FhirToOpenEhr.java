@@ -3,13 +3,17 @@ package com.medblocks.openfhir.toopenehr;
 import static com.medblocks.openfhir.fc.FhirConnectConst.FHIR_ROOT_FC;
 import static com.medblocks.openfhir.fc.FhirConnectConst.OPENEHR_TYPE_NONE;
 import static com.medblocks.openfhir.util.OpenFhirStringUtils.RECURRING_SYNTAX;
-import static com.medblocks.openfhir.util.OpenFhirStringUtils.RECURRING_SYNTAX_ESCAPED;
 import static com.medblocks.openfhir.util.OpenFhirStringUtils.RESOLVE;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import com.medblocks.openfhir.MapperOverlay;
 import com.medblocks.openfhir.OpenEhrRmWorker;
+import com.medblocks.openfhir.OpenFhirContextRepository;
 import com.medblocks.openfhir.OpenFhirMappingContext;
+import com.medblocks.openfhir.OpenFhirMappingPlanCache;
 import com.medblocks.openfhir.fc.FhirConnectConst;
 import com.medblocks.openfhir.fc.OpenFhirFhirConfig;
 import com.medblocks.openfhir.fc.OpenFhirFhirConnectModelMapper;
@@ -17,27 +21,36 @@ import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
 import com.medblocks.openfhir.fc.schema.model.Condition;
 import com.medblocks.openfhir.fc.schema.model.Mapping;
 import com.medblocks.openfhir.fc.schema.model.With;
+import com.medblocks.openfhir.util.BundleReferenceIndex;
+import com.medblocks.openfhir.util.FlatJsonObjectUnmarshaller;
+import com.medblocks.openfhir.util.FlatPath;
 import com.medblocks.openfhir.util.OpenEhrCachedUtils;
 import com.medblocks.openfhir.util.OpenEhrPopulator;
 import com.medblocks.openfhir.util.OpenFhirMapperUtils;
 import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import com.medblocks.openfhir.util.RequestScopedTasks;
 import com.nedap.archie.rm.composition.Composition;
 import com.nedap.archie.rm.datatypes.CodePhrase;
 import com.nedap.archie.rm.datavalues.quantity.datetime.DvDateTime;
 import com.nedap.archie.rm.generic.PartySelf;
 import com.nedap.archie.rm.support.identification.TerminologyId;
+import jakarta.annotation.PreDestroy;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
 import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
 import org.hl7.fhir.r4.model.Base;
@@ -47,6 +60,7 @@ import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
 import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import org.pf4j.PluginManager;
@@ -60,7 +74,7 @@ public class FhirToOpenEhr {
 
     final private FhirPathR4 fhirPathR4;
     final private OpenFhirStringUtils stringUtils;
-    final private FlatJsonUnmarshaller flatJsonUnmarshaller;
+    final private FlatJsonObjectUnmarshaller flatJsonUnmarshaller;
     final private Gson gson;
     final private OpenEhrRmWorker openEhrRmWorker;
     final private OpenFhirStringUtils openFhirStringUtils;
@@ -69,10 +83,22 @@ public class FhirToOpenEhr {
     final private OpenFhirMapperUtils openFhirMapperUtils;
     final private OpenEhrPopulator openEhrPopulator;
 
+    /**
+     * helpers compiled per model mapper; weakly keyed by mapper identity, so they go away together with a mapping plan
+     */
+    private final Cache<OpenFhirFhirConnectModelMapper, CompiledHelpers> compiledHelpers = Caffeine.newBuilder()
+            .weakKeys()
+            .build();
+
+    /**
+     * pool evaluating Bundle entries concurrently; null when they're evaluated by the requesting thread only
+     */
+    private ForkJoinPool entryPool;
+
     @Autowired
     public FhirToOpenEhr(final FhirPathR4 fhirPathR4,
                          final OpenFhirStringUtils stringUtils,
-                         final FlatJsonUnmarshaller flatJsonUnmarshaller,
+                         final FlatJsonObjectUnmarshaller flatJsonUnmarshaller,
                          final Gson gson,
                          final OpenEhrRmWorker openEhrRmWorker,
                          final OpenFhirStringUtils openFhirStringUtils,
@@ -92,6 +118,38 @@ public class FhirToOpenEhr {
         this.openEhrPopulator = openEhrPopulator;
     }
 
+    /**
+     * Sets how many Bundle entries are matched and evaluated concurrently when mapping to openEHR. Each entry is
+     * evaluated into its own flat fragment, fragments are merged in the order of entries, so the resulting flat
+     * Composition is the same as when mapped sequentially.
+     *
+     * @param parallelism amount of threads; 0 or 1 means entries are mapped sequentially by the requesting thread
+     */
+    @Autowired
+    public void setEntryParallelism(@Value("${openfhir.toopenehr.entry-parallelism:0}") final int parallelism) {
+        if (entryPool != null) {
+            entryPool.shutdown();
+        }
+        entryPool = RequestScopedTasks.newOptionalPool("openfhir-entries", parallelism);
+    }
+
+    @PreDestroy
+    public void shutdownEntryPool() {
+        if (entryPool != null) {
+            entryPool.shutdown();
+            entryPool = null;
+        }
+    }
+
+    /**
+     * Registers with the plan cache, so that openEHR paths of a plan's mappers are precomputed as soon as the plan is
+     * built, instead of by the first request mapping with it.
+     */
+    @Autowired
+    public void setPlanCache(final OpenFhirMappingPlanCache planCache) {
+        planCache.onPlanBuilt((templateId, plan) -> precomputePaths(templateId, plan, plan.getWebTemplate()));
+    }
+
     /**
      * Main method that takes care of mapping from FHIR to openEHR. Mapping is always done to a flat path that can
      * later on be converted to a canonical JSON format.
@@ -119,19 +177,19 @@ public class FhirToOpenEhr {
         final List<FhirToOpenEhrHelper> helpers = new ArrayList<>();
         final List<FhirToOpenEhrHelper> coverHelpers = new ArrayList<>();
 
-        // create helpers
-        createHelpers(templateId, toRunEngineOn, null, helpers, coverHelpers, bundle, context.getContext().getStart());
+        // references are resolved through the index for the whole mapping, matching mappers to entries evaluates
+        // fhir paths as well
+        try (BundleReferenceIndex.Scope ignored = BundleReferenceIndex.open(toRunEngineOn)) {
+            // create helpers; their flat paths already contain occurrences and proper types
+            createHelpers(templateId, toRunEngineOn, helpers, coverHelpers, bundle, context.getContext().getStart(),
+                          webTemplate);
 
-        // join all helpers together
-        helpers.addAll(coverHelpers);
+            // join all helpers together
+            helpers.addAll(coverHelpers);
 
-        openFhirStringUtils.fixEscapedDotsInOpenEhrPaths(helpers);
-
-        // modify flat path with correct openEHR path containing occurrences and proper types
-        openEhrRmWorker.fixFlatWithOccurrences(helpers, webTemplate);
-
-        // do the actual mapping (evaluate fhir paths and create json flat structure from it, based on helpers)
-        return resolveFhirPaths(helpers, toRunEngineOn);
+            // do the actual mapping (evaluate fhir paths and create json flat structure from it, based on helpers)
+            return resolveFhirPaths(helpers, toRunEngineOn);
+        }
     }
 
     /**
@@ -145,9 +203,8 @@ public class FhirToOpenEhr {
             toRunEngineOn = new Bundle();
             toRunEngineOn.addEntry(new Bundle.BundleEntryComponent().setResource(resource));
         } else {
+            // references between entries are resolved through a BundleReferenceIndex while evaluating
             toRunEngineOn = (Bundle) resource;
-
-            // fix referenced resources?
         }
         return toRunEngineOn;
     }
@@ -168,8 +225,8 @@ public class FhirToOpenEhr {
         // invoke the actual mapping logic
         final JsonObject flattenedWithValues = fhirToFlatJsonObject(context, resource, operationaltemplate);
 
-        // unmarshall flat path to a canonical json format
-        final Composition composition = flatJsonUnmarshaller.unmarshal(gson.toJson(flattenedWithValues), webTemplate);
+        // unmarshall flat path to a canonical json format; straight from the JsonObject, without serializing it first
+        final Composition composition = flatJsonUnmarshaller.unmarshal(flattenedWithValues, webTemplate);
 
         enrichComposition(composition);
 
@@ -250,6 +307,12 @@ public class FhirToOpenEhr {
 
     /**
      * Resolve fhir paths from a Bundle
+     * <p>
+     * Each relevant Resource is a new occurrence of the main multiple element of the archetype, as long as something
+     * was mapped from the previous one. With entry parallelism configured, Resources are evaluated concurrently, each
+     * into its own flat fragment with the occurrence it would get if all previous ones were mapped. Fragments are then
+     * merged in the order of Resources; a Resource whose occurrence turns out to be a different one (because nothing
+     * was mapped from one of the previous ones) is evaluated again with the right one.
      */
     private void handleBundleExtraction(final Bundle resource, final String lim,
                                         final List<FhirToOpenEhrHelper> artifactHelpers, final JsonObject finalFlat) {
@@ -263,51 +326,113 @@ public class FhirToOpenEhr {
                      relevantResources.size());
         }
 
-        String mainMultiple = null;
+        final List<boolean[]> occurrenceHelpers = occurrenceHelpers(artifactHelpers, relevantResources.size());
 
-        int i = 0;
-        for (final Base relevantResource : relevantResources) {
-            boolean somethingWasAdded = false;
-            for (final FhirToOpenEhrHelper fhirToOpenEhrHelper : artifactHelpers) {
-                final Condition openEhrTypeCondition = fhirToOpenEhrHelper.getTypeCondition();
-                if (openEhrTypeCondition != null
-                        && openEhrTypeCondition.getCriteria().equals(fhirToOpenEhrHelper.getOpenEhrType())) {
-                    continue;
-                }
+        final List<JsonObject> fragments;
+        if (entryPool != null && relevantResources.size() > 1) {
+            final List<Callable<JsonObject>> tasks = new ArrayList<>();
+            for (int k = 0; k < relevantResources.size(); k++) {
+                final int occurrence = k;
+                tasks.add(() -> extractResource(relevantResources.get(occurrence), artifactHelpers,
+                                                occurrenceHelpers.get(occurrence), occurrence, new JsonObject()));
+            }
+            fragments = RequestScopedTasks.invokeAll(entryPool, tasks, "mapping Bundle entries");
+        } else {
+            fragments = null;
+        }
 
-                final FhirToOpenEhrHelper cloned = fhirToOpenEhrHelper.doClone();
+        int i = 0;
+        for (int k = 0; k < relevantResources.size(); k++) {
+            final Base relevantResource = relevantResources.get(k);
+            final int previousFinalFlatSize = finalFlat.size();
+            if (fragments == null) {
+                extractResource(relevantResource, artifactHelpers, occurrenceHelpers.get(k), i, finalFlat);
+            } else {
+                final JsonObject fragment = i == k ? fragments.get(k)
+                        : extractResource(relevantResource, artifactHelpers, occurrenceHelpers.get(k), i,
+                                          new JsonObject());
+                openEhrPopulator.mergeIntoConstructingFlat(fragment, finalFlat);
+            }
+            if (previousFinalFlatSize < finalFlat.size()) {
+                i++;
+            } else {
+                log.warn(
+                        "Even though a Resource matched criteria, nothing was added to the openEHR composition from it: {}",
+                        relevantResource.getIdBase());
+            }
+        }
+    }
 
-                // If mappingCode is lost in cloning, set it explicitly
-                if (fhirToOpenEhrHelper.getMappingCode() != null && cloned.getMappingCode() == null) {
-                    cloned.setMappingCode(fhirToOpenEhrHelper.getMappingCode());
+    /**
+     * Determines which helpers start a new occurrence of the main multiple element for each of the relevant
+     * Resources. This only depends on the helpers (and not on what was evaluated from Resources), so it's done
+     * upfront for all of them.
+     *
+     * @return for each Resource, a flag per helper telling whether its path gets the Resource's occurrence
+     */
+    private List<boolean[]> occurrenceHelpers(final List<FhirToOpenEhrHelper> artifactHelpers,
+                                              final int resources) {
+        final List<boolean[]> occurrenceHelpers = new ArrayList<>(resources);
+        String mainMultiple = null;
+        for (int k = 0; k < resources; k++) {
+            final boolean[] withOccurrence = new boolean[artifactHelpers.size()];
+            for (int h = 0; h < artifactHelpers.size(); h++) {
+                final FhirToOpenEhrHelper fhirToOpenEhrHelper = artifactHelpers.get(h);
+                if (isExcludedByTypeCondition(fhirToOpenEhrHelper)) {
+                    continue;
                 }
-
-
                 if (fhirToOpenEhrHelper.getMultiple() && (mainMultiple == null || fhirToOpenEhrHelper.getOpenEhrPath()
                         .startsWith(mainMultiple))) {
-
                     final String openEhrPath = fhirToOpenEhrHelper.getOpenEhrPath();
-                    mainMultiple =
-                            ignoreMultipleFlag(openEhrPath) ? null : openEhrPath.split(RECURRING_SYNTAX_ESCAPED)[0];
-                    cloned.setOpenEhrPath(
-                            fhirToOpenEhrHelper.getOpenEhrPath().replaceFirst(RECURRING_SYNTAX_ESCAPED, ":" + i));
-
-                    fixAllChildrenRecurringElements(cloned,
-                                                    cloned.getOpenEhrPath());
+                    final int firstRecurring = openEhrPath.indexOf(RECURRING_SYNTAX);
+                    mainMultiple = ignoreMultipleFlag(openEhrPath) ? null
+                            : firstRecurring == -1 ? openEhrPath : openEhrPath.substring(0, firstRecurring);
+                    withOccurrence[h] = true;
                 }
-                int previousFinalFlatSize = finalFlat.size();
-                addDataPoints(cloned, finalFlat, relevantResource);
+            }
+            occurrenceHelpers.add(withOccurrence);
+        }
+        return occurrenceHelpers;
+    }
 
-                somethingWasAdded = somethingWasAdded || previousFinalFlatSize < finalFlat.size();
+    /**
+     * Evaluates all helpers of an archetype on a single relevant Resource and adds the results to the given flat
+     *
+     * @param withOccurrence flags of helpers whose path gets the Resource's occurrence
+     * @param occurrence occurrence of the main multiple element the Resource is mapped to
+     * @return flat the results were added to
+     */
+    private JsonObject extractResource(final Base relevantResource, final List<FhirToOpenEhrHelper> artifactHelpers,
+                                       final boolean[] withOccurrence, final int occurrence, final JsonObject flat) {
+        for (int h = 0; h < artifactHelpers.size(); h++) {
+            final FhirToOpenEhrHelper fhirToOpenEhrHelper = artifactHelpers.get(h);
+            if (isExcludedByTypeCondition(fhirToOpenEhrHelper)) {
+                continue;
             }
-            if (somethingWasAdded) {
-                i++;
-            } else {
-                log.warn(
-                        "Even though a Resource matched criteria, nothing was added to the openEHR composition from it: {}",
-                        relevantResource.getIdBase());
+
+            final FhirToOpenEhrHelper cloned = fhirToOpenEhrHelper.doClone();
+
+            // If mappingCode is lost in cloning, set it explicitly
+            if (fhirToOpenEhrHelper.getMappingCode() != null && cloned.getMappingCode() == null) {
+                cloned.setMappingCode(fhirToOpenEhrHelper.getMappingCode());
+            }
+
+            if (withOccurrence[h]) {
+                cloned.setOpenEhrPath(FlatPath.of(fhirToOpenEhrHelper.getOpenEhrPath())
+                                              .withFirstRecurringIndex(occurrence).toString());
+
+                fixAllChildrenRecurringElements(cloned,
+                                                cloned.getOpenEhrPath());
             }
+            addDataPoints(cloned, flat, relevantResource);
         }
+        return flat;
+    }
+
+    private boolean isExcludedByTypeCondition(final FhirToOpenEhrHelper fhirToOpenEhrHelper) {
+        final Condition openEhrTypeCondition = fhirToOpenEhrHelper.getTypeCondition();
+        return openEhrTypeCondition != null
+                && openEhrTypeCondition.getCriteria().equals(fhirToOpenEhrHelper.getOpenEhrType());
     }
 
     private boolean ignoreMultipleFlag(final String openEhrPath) {
@@ -330,8 +455,10 @@ public class FhirToOpenEhr {
         if (fhirPathResults == null || fhirPathResults.isEmpty()) {
             return finalFlat;
         }
-        final boolean noMoreRecurringOptions = !openEhrPath.contains(RECURRING_SYNTAX);
-        final String openEhrWithAllReplacedToZeroth = openEhrPath.replaceAll(RECURRING_SYNTAX_ESCAPED, ":0");
+        final FlatPath flatPath = FlatPath.of(openEhrPath);
+        final boolean noMoreRecurringOptions = !flatPath.hasRecurring();
+        final FlatPath allReplacedToZeroth = flatPath.withAllRecurringIndexes(0);
+        final String openEhrWithAllReplacedToZeroth = allReplacedToZeroth.toString();
         if (fhirPathResults.size() == 1) {
             // it's a single find, so replace all those multiple-occurrences with zeroth index
             openEhrPopulator.setFhirPathValue(openEhrWithAllReplacedToZeroth, fhirPathResults.get(0), openEhrType,
@@ -346,8 +473,7 @@ public class FhirToOpenEhr {
             } else {
                 for (int i = 0; i < fhirPathResults.size(); i++) {
                     final Base fhirPathResult = fhirPathResults.get(i);
-                    final String finalOpenEhrPath = openFhirStringUtils.replaceLastIndexOf(
-                            openEhrWithAllReplacedToZeroth, ":0", ":" + i);
+                    final String finalOpenEhrPath = allReplacedToZeroth.withLastIndexReplaced(0, i).toString();
 
                     openEhrPopulator.setFhirPathValue(finalOpenEhrPath, fhirPathResult, openEhrType, finalFlat);
                 }
@@ -403,12 +529,13 @@ public class FhirToOpenEhr {
             return false;
         }
 
+        final FlatPath helperPath = FlatPath.of(helper.getOpenEhrPath());
+        final boolean noMoreRecurringOptions = !helperPath.hasRecurring();
         for (int i = 0; i < results.size(); i++) {
             Base result = results.get(i);
-            final boolean noMoreRecurringOptions = !helper.getOpenEhrPath().contains(RECURRING_SYNTAX);
             boolean evaluated = true;
             final String thePath = noMoreRecurringOptions ? helper.getOpenEhrPath()
-                    : openFhirStringUtils.replaceLastIndexOf(helper.getOpenEhrPath(), RECURRING_SYNTAX, ":" + i);
+                    : helperPath.withLastRecurringIndex(i).toString();
             log.debug("Setting value taken with fhirPath {} from object type {}", fhirPath,
                       toResolveOn.getClass());
 
@@ -505,10 +632,13 @@ public class FhirToOpenEhr {
      * Adds proper recurring index to all child elements if parent is the recurring one
      */
     void fixAllChildrenRecurringElements(final FhirToOpenEhrHelper helper, final String newOne) {
-        final boolean hasParentRecurring = stringUtils.childHasParentRecurring(helper.getOpenEhrPath(), newOne);
-        if (hasParentRecurring) {
-            final String replaced = stringUtils.replacePattern(helper.getOpenEhrPath(), newOne);
-            helper.setOpenEhrPath(replaced);
+        fixAllChildrenRecurringElements(helper, FlatPath.parse(newOne));
+    }
+
+    private void fixAllChildrenRecurringElements(final FhirToOpenEhrHelper helper, final FlatPath newOne) {
+        final FlatPath helperPath = FlatPath.of(helper.getOpenEhrPath());
+        if (helperPath.hasRecurringParent(newOne)) {
+            helper.setOpenEhrPath(helperPath.withIndexesOf(newOne).toString());
         }
         if (helper.getFhirToOpenEhrHelpers() == null) {
             return;
@@ -520,29 +650,48 @@ public class FhirToOpenEhr {
 
 
     /**
-     * Creates helpers for each individual model mapper defined for the incoming FHIR Resource
+     * Creates helpers for each individual model mapper defined for the incoming FHIR Resource. Helpers of a mapper
+     * don't depend on the Resource, so they're compiled (and their openEHR paths resolved) once per (shared,
+     * immutable) mapper. Compiled helpers are added as they are, as they're only cloned further on in the mapping
+     * process when they're modified.
+     * <p>
+     * Followed by and slot helpers are only added if an equal helper isn't there yet, also when it comes from
+     * another mapper or another Bundle entry the same mapper matched.
      */
-    void createHelpers(final String templateId, final Resource resource, final Condition parentCondition,
+    void createHelpers(final String templateId, final Resource resource,
                        final List<FhirToOpenEhrHelper> helpers, final List<FhirToOpenEhrHelper> coverHelpers,
-                       final boolean bundle, final String startingArchetype) {
-        ((Bundle) resource).getEntry().forEach(entry -> {
-            final List<OpenFhirFhirConnectModelMapper> mapperForResources = openFhirTemplateRepo.getMapperForResource(
-                    entry.getResource());
+                       final boolean bundle, final String startingArchetype, final WebTemplate webTemplate) {
+        final List<Bundle.BundleEntryComponent> entries = ((Bundle) resource).getEntry();
+        final List<List<OpenFhirFhirConnectModelMapper>> entryMappers;
+        if (entryPool != null && entries.size() > 1) {
+            // matching is independent per entry, helpers are still created in the order of entries below
+            entryMappers = RequestScopedTasks.invokeAll(entryPool, entries.stream()
+                                                                .<Callable<List<OpenFhirFhirConnectModelMapper>>>map(
+                                                                        entry -> () -> openFhirTemplateRepo.getMapperForResource(
+                                                                                entry.getResource()))
+                                                                .collect(Collectors.toList()),
+                                                        "matching Bundle entries");
+        } else {
+            entryMappers = entries.stream()
+                    .map(entry -> openFhirTemplateRepo.getMapperForResource(entry.getResource()))
+                    .collect(Collectors.toList());
+        }
+        // compiled helpers (as they were before their paths were resolved) added so far, by equality
+        final Set<FhirToOpenEhrHelper> added = new HashSet<>();
+        entryMappers.forEach(mapperForResources -> {
             if (mapperForResources == null || mapperForResources.isEmpty()) {
                 return;
             }
             for (OpenFhirFhirConnectModelMapper mapperForResource : mapperForResources) {
-                final String mainArchetype = mapperForResource.getOpenEhrConfig().getArchetype();
-                String mainArchetypePath;
-                if (!mainArchetype.contains("CLUSTER")) {
-                    mainArchetypePath = templateId + "/content[" + mainArchetype + "]";
-                } else {
-                    mainArchetypePath = templateId;
+                final CompiledHelpers compiled = getCompiledHelpers(templateId, mapperForResource, bundle,
+                                                                    webTemplate);
+                for (CompiledHelper helper : compiled.helpers()) {
+                    if (!added.add(helper.compiled()) && helper.addedIfAbsent()) {
+                        continue;
+                    }
+                    helpers.add(helper.resolved());
                 }
-                createHelpers(mainArchetype, mapperForResource, templateId, mainArchetypePath,
-                              mapperForResource.getMappings(),
-                              parentCondition, helpers, coverHelpers, bundle,
-                              mapperForResource.getFhirConfig().getMultiple(), false);
+                coverHelpers.addAll(compiled.coverHelpers());
             }
         });
 
@@ -559,6 +708,134 @@ public class FhirToOpenEhr {
 //        }
     }
 
+    /**
+     * Compiles helpers of all model mappers of a mapping plan, resolving their openEHR paths against the template
+     * (which memoizes them per template), so that requests find them already compiled. Done only once per plan, when
+     * the plan is built (see {@link #setPlanCache(OpenFhirMappingPlanCache)}).
+     *
+     * @param templateId normalized template id
+     * @param plan mapping plan of the template
+     * @param webTemplate web template of the plan
+     */
+    public void precomputePaths(final String templateId, final OpenFhirContextRepository plan,
+                                final WebTemplate webTemplate) {
+        if (plan == null || plan.getMappers() == null || !plan.markPathsPrecomputed()) {
+            return;
+        }
+        final Set<OpenFhirFhirConnectModelMapper> mappers = Collections.newSetFromMap(new IdentityHashMap<>());
+        plan.getMappers().values().forEach(mappers::addAll);
+        for (final OpenFhirFhirConnectModelMapper mapper : mappers) {
+            if (mapper.getFhirConfig() == null) {
+                continue;
+            }
+            try {
+                getCompiledHelpers(templateId, mapper, true, webTemplate);
+            } catch (final Exception e) {
+                log.warn("Couldn't precompute openEHR paths of mapper {}, they'll be resolved once it's used: {}",
+                         mapper.getName(), e.getMessage());
+            }
+        }
+        log.debug("Precomputed openEHR paths of {} mappers of template {}", mappers.size(), templateId);
+    }
+
+    private CompiledHelpers getCompiledHelpers(final String templateId,
+                                               final OpenFhirFhirConnectModelMapper mapper,
+                                               final boolean bundle,
+                                               final WebTemplate webTemplate) {
+        final CompiledHelpers compiled = compiledHelpers.get(mapper,
+                                                             m -> compileHelpers(templateId, m, bundle, webTemplate));
+        if (!templateId.equals(compiled.templateId())) {
+            // mapper instances belong to a single template's plan, but just in case
+            return compileHelpers(templateId, mapper, bundle, webTemplate);
+        }
+        return compiled;
+    }
+
+    /**
+     * Compiles helpers of a single mapper on a copy of it, as creating helpers modifies mappings. Resolved helpers
+     * are clones of compiled ones with escaped dots fixed and flat paths containing occurrences and proper types;
+     * compiled ones are kept as they are, to tell which helpers are equal when helpers of a request are assembled.
+     */
+    private CompiledHelpers compileHelpers(final String templateId,
+                                           final OpenFhirFhirConnectModelMapper mapper,
+                                           final boolean bundle,
+                                           final WebTemplate webTemplate) {
+        final CompilingHelpers helpers = new CompilingHelpers();
+        final List<FhirToOpenEhrHelper> coverHelpers = new ArrayList<>();
+        createMapperHelpers(templateId, mapper.copy(), helpers, coverHelpers, bundle);
+
+        final List<FhirToOpenEhrHelper> resolvedHelpers = new ArrayList<>();
+        helpers.forEach(helper -> resolvedHelpers.add(helper.doClone()));
+        final List<FhirToOpenEhrHelper> resolvedCoverHelpers = new ArrayList<>();
+        coverHelpers.forEach(helper -> resolvedCoverHelpers.add(helper.doClone()));
+        for (List<FhirToOpenEhrHelper> resolving : List.of(resolvedHelpers, resolvedCoverHelpers)) {
+            openFhirStringUtils.fixEscapedDotsInOpenEhrPaths(resolving);
+            openEhrRmWorker.fixFlatWithOccurrences(resolving, webTemplate);
+        }
+
+        final List<CompiledHelper> compiled = new ArrayList<>(helpers.size());
+        for (int i = 0; i < helpers.size(); i++) {
+            final FhirToOpenEhrHelper helper = helpers.get(i);
+            compiled.add(new CompiledHelper(helper, resolvedHelpers.get(i), helpers.addedIfAbsent.contains(helper)));
+        }
+        return new CompiledHelpers(templateId, List.copyOf(compiled), List.copyOf(resolvedCoverHelpers));
+    }
+
+    private void createMapperHelpers(final String templateId, final OpenFhirFhirConnectModelMapper mapper,
+                                     final List<FhirToOpenEhrHelper> helpers,
+                                     final List<FhirToOpenEhrHelper> coverHelpers,
+                                     final boolean bundle) {
+        final String mainArchetype = mapper.getOpenEhrConfig().getArchetype();
+        String mainArchetypePath;
+        if (!mainArchetype.contains("CLUSTER")) {
+            mainArchetypePath = templateId + "/content[" + mainArchetype + "]";
+        } else {
+            mainArchetypePath = templateId;
+        }
+        createHelpers(mainArchetype, mapper, templateId, mainArchetypePath, mapper.getMappings(), null, helpers,
+                      coverHelpers, bundle, mapper.getFhirConfig().getMultiple(), false);
+    }
+
+    /**
+     * Helpers compiled from a single model mapper; neither of them is ever modified
+     *
+     * @param helpers regular helpers
+     * @param coverHelpers resolved cover helpers, always added
+     */
+    private record CompiledHelpers(String templateId,
+                                   List<CompiledHelper> helpers,
+                                   List<FhirToOpenEhrHelper> coverHelpers) {
+    }
+
+    /**
+     * @param compiled helper as it was created from mappings
+     * @param resolved clone of the compiled one with its openEHR paths resolved against the template
+     * @param addedIfAbsent whether it's only added if an equal one hasn't been added yet
+     */
+    private record CompiledHelper(FhirToOpenEhrHelper compiled,
+                                  FhirToOpenEhrHelper resolved,
+                                  boolean addedIfAbsent) {
+    }
+
+    /**
+     * Helpers of a mapper being compiled, remembering those that were added only because an equal one wasn't there
+     * yet (followed by and slot helpers), as that needs to be checked again among all helpers of a request
+     */
+    private static final class CompilingHelpers extends ArrayList<FhirToOpenEhrHelper> {
+
+        private final Set<FhirToOpenEhrHelper> addedIfAbsent = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    private void addIfAbsent(final List<FhirToOpenEhrHelper> helpers, final FhirToOpenEhrHelper helper) {
+        if (helpers.contains(helper)) {
+            return;
+        }
+        helpers.add(helper);
+        if (helpers instanceof CompilingHelpers compiling) {
+            compiling.addedIfAbsent.add(helper);
+        }
+    }
+
     /**
      * Creates a list of helpers for FHIR to openEHR mappings based on fhir connect model mappers. While creating
      * helpers, it modifies FHIR path and openEHR paths according to fhir connect rules (slot mapping, followed by
@@ -741,9 +1018,7 @@ public class FhirToOpenEhr {
         if (needsToBeAddedToParentHelpers) {
             coverHelpers.add(initialHelper);
         } else {
-            if (!helpers.contains(initialHelper)) {
-                helpers.add(initialHelper);
-            }
+            addIfAbsent(helpers, initialHelper);
         }
     }
 
@@ -755,9 +1030,9 @@ public class FhirToOpenEhr {
                                     final List<FhirToOpenEhrHelper> coverHelpers, final boolean bundle,
                                     final boolean needsToBeAddedToParentHelpers,
                                     final List<FhirToOpenEhrHelper> helpers, final boolean breakRecursion) {
-        final List<OpenFhirFhirConnectModelMapper> slotArchetypeMapperss = openFhirTemplateRepo.getMapperForArchetype(
+        final List<OpenFhirFhirConnectModelMapper> sharedSlotArchetypeMappers = openFhirTemplateRepo.getSharedMapperForArchetype(
                 templateId, mapping.getSlotArchetype());
-        if (slotArchetypeMapperss == null) {
+        if (sharedSlotArchetypeMappers == null) {
             log.error("Couldn't find referenced slot archetype mapper {}. Referenced in {}", mapping.getSlotArchetype(),
                       mapping.getName());
             throw new IllegalArgumentException(
@@ -766,7 +1041,8 @@ public class FhirToOpenEhr {
                                   mapping.getName()));
         }
 
-        for (OpenFhirFhirConnectModelMapper slotArchetypeMappers : slotArchetypeMapperss) {
+        for (OpenFhirFhirConnectModelMapper slotArchetypeMappers : MapperOverlay.forSlotPreparation(
+                sharedSlotArchetypeMappers)) {
             boolean possibleRecursion = slotArchetypeMappers.getName().equals(fhirConnectMapper.getName());
             if (breakRecursion) {
                 log.warn("Breaking possible infinite recursion with mapping: {}", slotArchetypeMappers.getName());
@@ -801,9 +1077,7 @@ public class FhirToOpenEhr {
             if (needsToBeAddedToParentHelpers) {
                 coverHelpers.add(initialHelper);
             } else {
-                if (!helpers.contains(initialHelper)) {
-                    helpers.add(initialHelper);
-                }
+                addIfAbsent(helpers, initialHelper);
             }
         }
     }
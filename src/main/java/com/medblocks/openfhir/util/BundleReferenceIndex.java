@@ -0,0 +1,157 @@
+package com.medblocks.openfhir.util;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Index of Resources within a Bundle by the references that can point to them: an entry's fullUrl and its
+ * ResourceType/id. Used to resolve references with a FHIR path resolve() with a lookup, without Reference.resource
+ * being set on incoming Resources.
+ * <p>
+ * Local references ('#id') only point to Resources contained in the same Resource, so the same id can be used by
+ * contained Resources of different entries. They're indexed per Reference element instead, each pointing to the
+ * contained Resource of the Resource it's part of.
+ * <p>
+ * An index is bound to the thread mapping the Bundle with {@link #open(Bundle)} (and to threads helping it with
+ * {@link #bind(BundleReferenceIndex)}), since the FHIR path evaluation context resolving references is shared by all
+ * threads.
+ */
+public final class BundleReferenceIndex {
+
+    private static final ThreadLocal<BundleReferenceIndex> CURRENT = new ThreadLocal<>();
+
+    private final Map<String, Resource> byReference = new HashMap<>();
+    private final Map<Reference, Resource> localReferences = new IdentityHashMap<>();
+
+    private BundleReferenceIndex(final Bundle bundle) {
+        for (final Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            final Resource resource = entry.getResource();
+            if (resource == null) {
+                continue;
+            }
+            if (StringUtils.isNotEmpty(entry.getFullUrl())) {
+                byReference.putIfAbsent(entry.getFullUrl(), resource);
+            }
+            final IIdType id = resource.getIdElement();
+            if (id.hasIdPart()) {
+                byReference.putIfAbsent(resource.fhirType() + "/" + id.getIdPart(), resource);
+            }
+            if (resource instanceof DomainResource domainResource && domainResource.hasContained()) {
+                final Map<String, Resource> containedById = new HashMap<>();
+                for (final Resource contained : domainResource.getContained()) {
+                    final String containedId = contained.getIdElement().getIdPart();
+                    if (containedId != null) {
+                        containedById.putIfAbsent(containedId.replace("#", ""), contained);
+                    }
+                }
+                indexLocalReferences(domainResource, containedById);
+            }
+        }
+    }
+
+    /**
+     * Walks all elements of a container (including its contained Resources, which can refer to one another) and
+     * indexes References pointing to its contained Resources.
+     */
+    private void indexLocalReferences(final Base element, final Map<String, Resource> containedById) {
+        for (final Property property : element.children()) {
+            for (final Base value : property.getValues()) {
+                if (value instanceof Reference reference && reference.hasReference()
+                        && reference.getReference().startsWith("#")) {
+                    final Resource contained = containedById.get(reference.getReference().substring(1));
+                    if (contained != null) {
+                        localReferences.put(reference, contained);
+                    }
+                }
+                indexLocalReferences(value, containedById);
+            }
+        }
+    }
+
+    public static BundleReferenceIndex of(final Bundle bundle) {
+        return new BundleReferenceIndex(bundle);
+    }
+
+    /**
+     * Indexes the Bundle and binds the index to the current thread until the returned scope is closed.
+     */
+    public static Scope open(final Bundle bundle) {
+        return bind(of(bundle));
+    }
+
+    /**
+     * Binds an already built index to the current thread until the returned scope is closed, i.e. when a Bundle is
+     * mapped by more than one thread.
+     *
+     * @param index to bind; null means no index is bound within the scope
+     */
+    public static Scope bind(final BundleReferenceIndex index) {
+        final BundleReferenceIndex previous = CURRENT.get();
+        if (index == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(index);
+        }
+        return () -> {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    /**
+     * @return index bound to the current thread or null if none is
+     */
+    public static BundleReferenceIndex current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @param reference reference as found in a Reference.reference, i.e. 'urn:uuid:...', 'Patient/1' or
+     *         'http://server/fhir/Patient/1/_history/2'
+     * @return Resource the reference points to or null if it's not in the Bundle
+     */
+    public Resource resolve(final IIdType reference) {
+        return resolve(reference, null);
+    }
+
+    /**
+     * @param reference reference as found in a Reference.reference, including local ones ('#contained')
+     * @param context Reference element the reference is taken from; local references are only resolved with it
+     * @return Resource the reference points to or null if it's not in the Bundle
+     */
+    public Resource resolve(final IIdType reference, final IBase context) {
+        if (reference == null || reference.isEmpty()) {
+            return null;
+        }
+        if (reference.isLocal()) {
+            return context instanceof Reference element ? localReferences.get(element) : null;
+        }
+        final Resource found = byReference.get(reference.getValue());
+        if (found != null || !reference.hasResourceType() || !reference.hasIdPart()) {
+            return found;
+        }
+        return byReference.get(reference.getResourceType() + "/" + reference.getIdPart());
+    }
+
+    /**
+     * Scope of an index bound to the current thread
+     */
+    public interface Scope extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,70 @@
+package com.medblocks.openfhir.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
+import ca.uhn.fhir.i18n.Msg;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+
+/**
+ * FhirPathR4 that keeps parsed expressions (ExpressionNode trees as parsed by the underlying FHIRPathEngine) in a
+ * bounded cache keyed by the expression string, so that evaluating the same FHIR path over and over again (i.e. for
+ * every entry of a Bundle) doesn't re-parse it each time.
+ * <p>
+ * Parsed expressions are not bound to a specific input and are shared across threads and across mapping engines.
+ */
+public class CachingFhirPathR4 extends FhirPathR4 {
+
+    private final Cache<String, IParsedExpression> parsedExpressions;
+
+    public CachingFhirPathR4(final FhirContext fhirContext, final long maxSize) {
+        super(fhirContext);
+        this.parsedExpressions = Caffeine.newBuilder().maximumSize(maxSize).recordStats().build();
+    }
+
+    @Override
+    public <T extends IBase> List<T> evaluate(final IBase input, final String path, final Class<T> returnType) {
+        return evaluate(input, getParsedExpression(path), returnType);
+    }
+
+    @Override
+    public <T extends IBase> Optional<T> evaluateFirst(final IBase input, final String path,
+                                                       final Class<T> returnType) {
+        return evaluateFirst(input, getParsedExpression(path), returnType);
+    }
+
+    /**
+     * Returns parsed expression from the cache or parses it if it's not there yet. Expressions that can't be parsed
+     * are not cached and the parse exception is thrown as with a non-cached evaluation.
+     */
+    public IParsedExpression getParsedExpression(final String path) {
+        try {
+            return parsedExpressions.get(path, this::parse);
+        } catch (final FHIRException e) {
+            // same as FhirPathR4 does when parsing within evaluate
+            throw new FhirPathExecutionException(Msg.code(2409) + e);
+        }
+    }
+
+    /**
+     * @return size/hit/miss/eviction statistics of the parsed expression cache
+     */
+    public Map<String, Object> getStatistics() {
+        final CacheStats stats = parsedExpressions.stats();
+        final Map<String, Object> map = new LinkedHashMap<>();
+        map.put("size", parsedExpressions.estimatedSize());
+        map.put("hits", stats.hitCount());
+        map.put("misses", stats.missCount());
+        map.put("hitRate", stats.hitRate());
+        map.put("evictions", stats.evictionCount());
+        return map;
+    }
+}
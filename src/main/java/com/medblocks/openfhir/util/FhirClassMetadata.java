@@ -0,0 +1,202 @@
+package com.medblocks.openfhir.util;
+
+import ca.uhn.fhir.model.api.IElement;
+import ca.uhn.fhir.model.api.annotation.Child;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.apache.commons.lang3.reflect.FieldUtils;
+
+/**
+ * Reflection metadata of a HAPI FHIR model class, built once per class and shared from then on: its {@link Child}
+ * annotated fields by name (with method handles for getting and setting them and the types they allow) and a
+ * method handle of its no-arg constructor.
+ * <p>
+ * Navigating HAPI model classes by FHIR path segments is otherwise done with reflection lookups (fields, annotations,
+ * constructors, classes by name) for every segment of every data point being mapped.
+ */
+public final class FhirClassMetadata {
+
+    private static final ClassValue<FhirClassMetadata> METADATA = new ClassValue<>() {
+        @Override
+        protected FhirClassMetadata computeValue(final Class<?> type) {
+            return new FhirClassMetadata(type);
+        }
+    };
+
+    /**
+     * classes by their name; empty if a class doesn't exist
+     */
+    private static final Map<String, Optional<Class<?>>> CLASSES = new ConcurrentHashMap<>();
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final Class<?> type;
+    private final Map<String, ChildField> children;
+    private final MethodHandle constructor;
+
+    private FhirClassMetadata(final Class<?> type) {
+        this.type = type;
+        final Map<String, ChildField> fields = new HashMap<>();
+        for (final Field field : FieldUtils.getFieldsWithAnnotation(type, Child.class)) {
+            // same as searching through them, first field with the name wins
+            fields.putIfAbsent(field.getName(), new ChildField(field));
+        }
+        this.children = Collections.unmodifiableMap(fields);
+        this.constructor = findConstructor(type);
+    }
+
+    /**
+     * @return metadata of the given class, built the first time it's requested
+     */
+    public static FhirClassMetadata of(final Class<?> type) {
+        return METADATA.get(type);
+    }
+
+    /**
+     * Same as {@link Class#forName(String)}, but remembers classes (and non-existing ones) by their name.
+     *
+     * @return class of the given name or null if there's no such class
+     */
+    public static Class<?> forName(final String name) {
+        return CLASSES.computeIfAbsent(name, n -> {
+            try {
+                return Optional.of(Class.forName(n));
+            } catch (final ClassNotFoundException | LinkageError e) {
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
+
+    private static MethodHandle findConstructor(final Class<?> type) {
+        if (type.isInterface() || Modifier.isAbstract(type.getModifiers())) {
+            return null;
+        }
+        try {
+            return LOOKUP.findConstructor(type, MethodType.methodType(void.class));
+        } catch (final NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    /**
+     * @param name name of a child element as used in a FHIR path (and as the field is named in a HAPI class)
+     * @return child field of the given name or null if the class doesn't have it
+     */
+    public ChildField getChild(final String name) {
+        return children.get(name);
+    }
+
+    /**
+     * @return new instance created with the no-arg constructor
+     * @throws IllegalStateException if the class can't be instantiated
+     */
+    public Object newInstance() {
+        if (constructor == null) {
+            throw new IllegalStateException("No accessible no-arg constructor of " + type.getName());
+        }
+        try {
+            return constructor.invoke();
+        } catch (final Throwable e) {
+            throw new IllegalStateException("Couldn't create a new instance of " + type.getName(), e);
+        }
+    }
+
+    /**
+     * A {@link Child} annotated field of a HAPI model class.
+     */
+    public static final class ChildField {
+
+        private static final String NO_FORCING_CLASS = "\0";
+
+        private final Field field;
+        private final boolean list;
+        private final Class<? extends IElement>[] types;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        /**
+         * instantiation classes resolved per forcing class
+         */
+        private final Map<String, Optional<Class<?>>> resolvedClasses = new ConcurrentHashMap<>();
+
+        private ChildField(final Field field) {
+            this.field = field;
+            this.list = field.getType() == List.class;
+            this.types = field.getAnnotation(Child.class).type();
+            try {
+                field.setAccessible(true);
+                this.getter = LOOKUP.unreflectGetter(field);
+                this.setter = LOOKUP.unreflectSetter(field);
+            } catch (final IllegalAccessException e) {
+                throw new IllegalStateException("Can't access field " + field, e);
+            }
+        }
+
+        public Field getField() {
+            return field;
+        }
+
+        public String getName() {
+            return field.getName();
+        }
+
+        public Class<?> getFieldType() {
+            return field.getType();
+        }
+
+        /**
+         * @return whether the field is a List (element with a max cardinality of more than 1)
+         */
+        public boolean isList() {
+            return list;
+        }
+
+        /**
+         * @return types the element allows (i.e. for choice elements such as value[x]), as defined by {@link Child}
+         */
+        public Class<? extends IElement>[] getTypes() {
+            return types;
+        }
+
+        public Object get(final Object target) {
+            try {
+                return getter.invoke(target);
+            } catch (final Throwable e) {
+                throw new IllegalStateException("Couldn't get " + field, e);
+            }
+        }
+
+        public void set(final Object target, final Object value) {
+            try {
+                setter.invoke(target, value);
+            } catch (final Throwable e) {
+                throw new IllegalStateException("Couldn't set " + field, e);
+            }
+        }
+
+        /**
+         * @param forcingClass class being forced (can be null)
+         * @param resolver resolves the class when it hasn't been resolved for the forcing class before
+         * @return class resolved for the forcing class, remembered for subsequent invocations
+         */
+        public Class<?> resolveClass(final String forcingClass, final Function<String, Class<?>> resolver) {
+            return resolvedClasses.computeIfAbsent(forcingClass == null ? NO_FORCING_CLASS : forcingClass,
+                                                   k -> Optional.ofNullable(resolver.apply(forcingClass)))
+                    .orElse(null);
+        }
+    }
+}
@@ -1,19 +1,19 @@
 package com.medblocks.openfhir.util;
 
-import ca.uhn.fhir.model.api.annotation.Child;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.reflect.FieldUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Reference;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.lang.reflect.Field;
 import java.util.Arrays;
 import java.util.List;
 
@@ -33,10 +33,21 @@ public class FhirInstanceCreator {
     private final OpenFhirStringUtils openFhirStringUtils;
     private final FhirInstanceCreatorUtility fhirInstanceCreatorUtility;
 
-    @Autowired
+    /**
+     * compiled instantiation steps, bounded by {@link PathCaches}
+     */
+    private final Cache<StepKey, InstantiationStep> steps;
+
     public FhirInstanceCreator(OpenFhirStringUtils openFhirStringUtils, FhirInstanceCreatorUtility fhirInstanceCreatorUtility) {
+        this(openFhirStringUtils, fhirInstanceCreatorUtility, PathCaches.DEFAULT_MAX_SIZE);
+    }
+
+    @Autowired
+    public FhirInstanceCreator(OpenFhirStringUtils openFhirStringUtils, FhirInstanceCreatorUtility fhirInstanceCreatorUtility,
+                               @Value("${openfhir.cache.paths.max-size:10000}") long maxSize) {
         this.openFhirStringUtils = openFhirStringUtils;
         this.fhirInstanceCreatorUtility = fhirInstanceCreatorUtility;
+        this.steps = Caffeine.newBuilder().maximumSize(maxSize).build();
     }
 
     @Data
@@ -50,59 +61,6 @@ public class FhirInstanceCreator {
         String path;
     }
 
-    /**
-     * After reaching the last segment of the path, instantiation is ended with the InstantiateAndSetReturn object
-     * holding all information of instantiated elements with corresponding paths
-     */
-    private InstantiateAndSetReturn endInstantiation(final boolean resolveFollows,
-                                                     final String resolveResourceType,
-                                                     final String forcingClass,
-                                                     final boolean specialThisHandling,
-                                                     final Class clazz,
-                                                     final Field theField,
-                                                     final Object resource,
-                                                     final Object originalResource,
-                                                     final String splitPath,
-                                                     final String followingWhereCondition) {
-        // means we've reached the end
-        final String forcingClassToUse = resolveFollows ? resolveResourceType : forcingClass;
-        Class aClass = specialThisHandling ? clazz : fhirInstanceCreatorUtility.findClass(theField, forcingClassToUse);
-        if (aClass == null) {
-            // fallback if we cant find the one we want...
-            aClass = fhirInstanceCreatorUtility.findClass(theField, null);
-        }
-        final Object generatedInstance = fhirInstanceCreatorUtility.newInstance(aClass);
-
-        Object setObj = null;
-        if (!specialThisHandling) {
-            setObj = fhirInstanceCreatorUtility.handleSpecialThisKeyword(generatedInstance, resolveFollows, theField, resource);
-        } else if (originalResource instanceof List) {
-            ((List<Object>) originalResource).add(generatedInstance);
-        }
-        final String path = splitPath + (StringUtils.isBlank(followingWhereCondition) ? "" : ("." + followingWhereCondition));
-        return InstantiateAndSetReturn.builder()
-                .returning(specialThisHandling ? originalResource : setObj)
-                .path(path.replace(THIS, ""))
-                .isList(specialThisHandling ? originalResource instanceof List : theField.getType() == List.class)
-                .build();
-    }
-
-    private InstantiateAndSetReturn handleInstantiateAndSetResolve(final String resolveResourceType,
-                                                                   final String fhirPath,
-                                                                   final String forcingClass,
-                                                                   final Object resource) {
-        final Class nextClass = fhirInstanceCreatorUtility.getFhirResourceType(resolveResourceType);
-        final Object nextClassInstance = fhirInstanceCreatorUtility.newInstance(nextClass);
-
-        final List<String> list = Arrays.asList(fhirPath.split("\\."));
-        final InstantiateAndSetReturn returning = instantiateAndSetElement(nextClassInstance, nextClass,
-                String.join(".", list.subList(1, list.size())),
-                forcingClass,
-                resolveResourceType);
-        ((Reference) resource).setResource((IBaseResource) nextClassInstance);
-        return InstantiateAndSetReturn.builder().returning(nextClassInstance).path(RESOLVE).inner(returning).isList(false).build();
-    }
-
     /**
      * Instantiates and element and sets it on a parent Resource based on the given fhirPath
      *
@@ -117,7 +75,7 @@ public class FhirInstanceCreator {
         return instantiateAndSetElement(resource, clazz, fhirPath, forcingClass, null);
     }
 
-    public InstantiateAndSetReturn instantiateAndSetElement(Object resource, Class clazz, String fhirPath, final String forcingClass, final String resolveResourceType) {
+    public InstantiateAndSetReturn instantiateAndSetElement(Object resource, Class clazz, final String fhirPath, final String forcingClass, final String resolveResourceType) {
         final Object originalResource = resource;
         if (resource instanceof List) {
             resource = ((List<?>) resource).get(((List<?>) resource).size() - 1);
@@ -132,12 +90,81 @@ public class FhirInstanceCreator {
                     .build();
         }
 
-        if (resource instanceof Reference) {
+        final boolean viaReference = resource instanceof Reference;
+        if (viaReference) {
             resource = ((Reference) resource).getResource() == null ? resource : ((Reference) resource).getResource();
             clazz = resource.getClass();
+        }
+
+        final InstantiationStep step = steps.get(new StepKey(clazz, viaReference, fhirPath, forcingClass, resolveResourceType),
+                                                 this::compileStep);
+        return executeStep(step, resource, originalResource, forcingClass, resolveResourceType);
+    }
+
+    private InstantiateAndSetReturn executeStep(final InstantiationStep step, final Object resource,
+                                                final Object originalResource, final String forcingClass,
+                                                final String resolveResourceType) {
+        switch (step.kind) {
+            case RESOLVE: {
+                final Object nextClassInstance = fhirInstanceCreatorUtility.newInstance(step.nextClass);
+                final InstantiateAndSetReturn returning = instantiateAndSetElement(nextClassInstance, step.nextClass,
+                        step.nextPath,
+                        forcingClass,
+                        resolveResourceType);
+                ((Reference) resource).setResource((IBaseResource) nextClassInstance);
+                return InstantiateAndSetReturn.builder().returning(nextClassInstance).path(RESOLVE).inner(returning).isList(false).build();
+            }
+            case END: {
+                // means we've reached the end
+                final Object generatedInstance = fhirInstanceCreatorUtility.newInstance(step.nextClass);
+
+                Object setObj = null;
+                if (!step.specialThisHandling) {
+                    setObj = fhirInstanceCreatorUtility.handleSpecialThisKeyword(generatedInstance, step.resolveFollows,
+                                                                                 step.field, resource);
+                } else if (originalResource instanceof List) {
+                    ((List<Object>) originalResource).add(generatedInstance);
+                }
+                return InstantiateAndSetReturn.builder()
+                        .returning(step.specialThisHandling ? originalResource : setObj)
+                        .path(step.path)
+                        .isList(step.specialThisHandling ? originalResource instanceof List : step.field.isList())
+                        .build();
+            }
+            case NEXT: {
+                final Object nextClassInstance = fhirInstanceCreatorUtility.newInstance(step.nextClass);
+
+                final InstantiateAndSetReturn returning = instantiateAndSetElement(nextClassInstance, step.nextClass,
+                        step.nextPath,
+                        forcingClass,
+                        resolveResourceType);
+
+                final Object obj = fhirInstanceCreatorUtility.setFieldObject(step.field, resource, nextClassInstance);
+                return InstantiateAndSetReturn.builder()
+                        .returning(obj)
+                        .path(step.path)
+                        .inner(returning)
+                        .isList(step.field != null && step.field.isList())
+                        .build();
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Compiles the step of instantiating an element of the given class by the given fhir path. Everything done here
+     * only depends on the key, so it's done once and then shared for all subsequent instantiations of the same path.
+     */
+    private InstantiationStep compileStep(final StepKey key) {
+        final Class clazz = key.clazz();
+        String fhirPath = key.fhirPath();
 
+        if (key.viaReference()) {
             if (fhirPath.startsWith(RESOLVE)) {
-                return handleInstantiateAndSetResolve(resolveResourceType, fhirPath, forcingClass, resource);
+                final List<String> list = Arrays.asList(fhirPath.split("\\."));
+                return InstantiationStep.resolve(fhirInstanceCreatorUtility.getFhirResourceType(key.resolveResourceType()),
+                                                 String.join(".", list.subList(1, list.size())));
             }
 
             fhirPath = fhirPath
@@ -160,19 +187,17 @@ public class FhirInstanceCreator {
         final String preparedFhirPath = fhirInstanceCreatorUtility.prepareFhirPathForInstantiation(clazz, fhirPath);
         final String[] splitFhirPaths = preparedFhirPath.split("\\.");
 
-        return handleSplitPaths(splitFhirPaths, clazz, preparedFhirPath, resource, resolveResourceType, forcingClass,
-                originalResource, followingWhereCondition);
+        return compileSplitPaths(splitFhirPaths, clazz, preparedFhirPath, key.resolveResourceType(),
+                                 key.forcingClass(), followingWhereCondition);
     }
 
-    private InstantiateAndSetReturn handleSplitPaths(final String[] splitFhirPaths, final Class clazz,
-                                                     final String preparedFhirPath, final Object resource,
-                                                     final String resolveResourceType, final String forcingClass,
-                                                     final Object originalResource, final String followingWhereCondition) {
+    private InstantiationStep compileSplitPaths(final String[] splitFhirPaths, final Class clazz,
+                                                final String preparedFhirPath, final String resolveResourceType,
+                                                final String forcingClass, final String followingWhereCondition) {
         for (int i = 0; i < splitFhirPaths.length; i++) {
             String splitPath = splitFhirPaths[i].equals("class") ? "class_" : splitFhirPaths[i];
 
-            final Field[] childElements = FieldUtils.getFieldsWithAnnotation(clazz, Child.class);
-            final Field theField = Arrays.stream(childElements).filter(child -> splitPath.equals(child.getName())).findFirst().orElse(null);
+            final FhirClassMetadata.ChildField theField = FhirClassMetadata.of(clazz).getChild(splitPath);
             boolean specialThisHandling = THIS.equals(splitPath); // means we really just one this same element, nothing else
             if (!specialThisHandling && theField == null) {
                 continue;
@@ -184,29 +209,108 @@ public class FhirInstanceCreator {
             // second part of the condition is there to solve cases when the path ends with a cast, i.e. asNeeded.as(Boolean)
             if (preparedFhirPath.equals(splitPath)) {
                 // means we've reached the end
-                return endInstantiation(resolveFollows, resolveResourceType, forcingClass, specialThisHandling, clazz,
-                        theField, resource, originalResource, splitPath, followingWhereCondition);
+                final String forcingClassToUse = resolveFollows ? resolveResourceType : forcingClass;
+                Class aClass = specialThisHandling ? clazz : fhirInstanceCreatorUtility.findClass(theField, forcingClassToUse);
+                if (aClass == null) {
+                    // fallback if we cant find the one we want...
+                    aClass = fhirInstanceCreatorUtility.findClass(theField, null);
+                }
+                final String path = splitPath + (StringUtils.isBlank(followingWhereCondition) ? "" : ("." + followingWhereCondition));
+                return InstantiationStep.end(theField, specialThisHandling, resolveFollows, aClass, path.replace(THIS, ""));
             }
             final List<String> list = fhirInstanceCreatorUtility.listFromSplitPath(splitFhirPaths, resolveFollows, castFollows);
 
             final String castingTo = castFollows ? openFhirStringUtils.getCastType(preparedFhirPath) : null;
             final Class nextClass = castFollows ? fhirInstanceCreatorUtility.getClassForName(R4_HAPI_PACKAGE + castingTo) : fhirInstanceCreatorUtility.findClass(theField, resolveFollows ? resolveResourceType : null);
-            final Object nextClassInstance = fhirInstanceCreatorUtility.newInstance(nextClass);
 
-            final InstantiateAndSetReturn returning = instantiateAndSetElement(nextClassInstance, nextClass,
-                    String.join(".", list.subList(1, list.size())),
-                    forcingClass,
-                    resolveResourceType);
-
-            final Object obj = fhirInstanceCreatorUtility.setFieldObject(theField, resource, nextClassInstance);
             final String path = splitPath + (castFollows ? ("." + splitFhirPaths[i + 1]) : "") + (StringUtils.isBlank(followingWhereCondition) ? "" : ("." + followingWhereCondition));
-            return InstantiateAndSetReturn.builder()
-                    .returning(obj)
-                    .path(path)
-                    .inner(returning)
-                    .isList(theField != null && theField.getType() == List.class)
-                    .build();
+            return InstantiationStep.next(theField, nextClass, String.join(".", list.subList(1, list.size())), path);
+        }
+        return InstantiationStep.NONE;
+    }
+
+    /**
+     * Everything an instantiation step depends on apart from the instance it's instantiating on
+     *
+     * @param clazz               class of the element the path is instantiated on
+     * @param viaReference        whether the element is (or has been resolved from) a Reference
+     * @param fhirPath            fhir path being instantiated
+     * @param forcingClass        class being forced for the last element
+     * @param resolveResourceType Resource type being resolved to
+     */
+    private record StepKey(Class clazz, boolean viaReference, String fhirPath, String forcingClass,
+                           String resolveResourceType) {
+    }
+
+    private enum StepKind {
+        /**
+         * path doesn't exist on the class
+         */
+        NONE,
+        /**
+         * path starts with a resolve() on a Reference
+         */
+        RESOLVE,
+        /**
+         * last element of the path
+         */
+        END,
+        /**
+         * element is instantiated and the rest of the path continues on it
+         */
+        NEXT
+    }
+
+    /**
+     * Compiled step of instantiating a fhir path on an element, with all string parsing of the path done and
+     * fields and classes already resolved
+     */
+    private static final class InstantiationStep {
+
+        static final InstantiationStep NONE = new InstantiationStep(StepKind.NONE, null, false, false, null, null, null);
+
+        final StepKind kind;
+        final FhirClassMetadata.ChildField field;
+        final boolean specialThisHandling;
+        final boolean resolveFollows;
+        /**
+         * class that is instantiated in this step
+         */
+        final Class nextClass;
+        /**
+         * rest of the path that is instantiated on the instance created in this step
+         */
+        final String nextPath;
+        /**
+         * path of the InstantiateAndSetReturn
+         */
+        final String path;
+
+        private InstantiationStep(final StepKind kind, final FhirClassMetadata.ChildField field,
+                                  final boolean specialThisHandling, final boolean resolveFollows,
+                                  final Class nextClass, final String nextPath, final String path) {
+            this.kind = kind;
+            this.field = field;
+            this.specialThisHandling = specialThisHandling;
+            this.resolveFollows = resolveFollows;
+            this.nextClass = nextClass;
+            this.nextPath = nextPath;
+            this.path = path;
+        }
+
+        static InstantiationStep resolve(final Class resourceClass, final String nextPath) {
+            return new InstantiationStep(StepKind.RESOLVE, null, false, false, resourceClass, nextPath, RESOLVE);
+        }
+
+        static InstantiationStep end(final FhirClassMetadata.ChildField field, final boolean specialThisHandling,
+                                     final boolean resolveFollows, final Class instantiatedClass, final String path) {
+            return new InstantiationStep(StepKind.END, field, specialThisHandling, resolveFollows, instantiatedClass,
+                                         null, path);
+        }
+
+        static InstantiationStep next(final FhirClassMetadata.ChildField field, final Class nextClass,
+                                      final String nextPath, final String path) {
+            return new InstantiationStep(StepKind.NEXT, field, false, false, nextClass, nextPath, path);
         }
-        return null;
     }
 }
@@ -1,7 +1,6 @@
 package com.medblocks.openfhir.util;
 
 import ca.uhn.fhir.model.api.IElement;
-import ca.uhn.fhir.model.api.annotation.Child;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -60,7 +59,7 @@ public class FhirInstanceCreatorUtility {
      */
     public Resource create(final String resourceType) {
         try {
-            return (Resource) getFhirResourceType(resourceType).getDeclaredConstructor().newInstance();
+            return (Resource) FhirClassMetadata.of(getFhirResourceType(resourceType)).newInstance();
         } catch (final Exception e) {
             log.error("Couldn't create a new instance of {}", resourceType, e);
             return null;
@@ -114,23 +113,23 @@ public class FhirInstanceCreatorUtility {
                 .collect(Collectors.toList());
     }
 
-    public Object handleSpecialThisKeyword(final Object generatedInstance, final boolean resolveFollows, final Field theField,
-                                            final Object resource) {
+    public Object handleSpecialThisKeyword(final Object generatedInstance, final boolean resolveFollows,
+                                           final FhirClassMetadata.ChildField theField, final Object resource) {
         final boolean isReference = generatedInstance instanceof DomainResource && !resolveFollows;
         Object objectToReturn = isReference ? new Reference() : generatedInstance;
-        final boolean isEnumeration = theField.getType().equals(Enumeration.class) && objectToReturn instanceof CodeType;
+        final boolean isEnumeration = theField.getFieldType().equals(Enumeration.class) && objectToReturn instanceof CodeType;
         objectToReturn = isEnumeration ? new Enumeration<>() : generatedInstance;
         return setFieldObject(theField, resource, objectToReturn);
     }
 
-    public Object setFieldObject(final Field theField, final Object resource, final Object settingObject) {
+    public Object setFieldObject(final FhirClassMetadata.ChildField theField, final Object resource,
+                                 final Object settingObject) {
         if (theField == null) {
             return null;
         }
         final Object value = wrapInReferenceIfNeeded(settingObject);
         try {
-            theField.setAccessible(true);
-            if (theField.getType() == List.class) {
+            if (theField.isList()) {
                 final List<Object> list = new ArrayList<>();
                 if (theField.get(resource) == null) {
                     theField.set(resource, list);
@@ -144,7 +143,7 @@ public class FhirInstanceCreatorUtility {
             } else {
                 theField.set(resource, value);
             }
-        } catch (IllegalAccessException e) {
+        } catch (IllegalStateException e) {
             log.error("Error trying to set field object.", e);
         }
         return value;
@@ -157,13 +156,20 @@ public class FhirInstanceCreatorUtility {
         return settingObject;
     }
 
-    public Class findClass(final Field field, final String forcingClass) {
-        if (field == null) {
+    /**
+     * Finds the class to instantiate for a child field, optionally forcing a specific one (i.e. for choice elements
+     * or Resources referenced with a resolve()). Resolved classes are remembered per field and forcing class.
+     */
+    public Class findClass(final FhirClassMetadata.ChildField childField, final String forcingClass) {
+        if (childField == null) {
             return null;
         }
-        final Child childAnnotation = field.getAnnotation(Child.class);
+        return childField.resolveClass(forcingClass, forcing -> doFindClass(childField, forcing));
+    }
 
-        final Class<? extends IElement>[] types = childAnnotation.type();
+    private Class doFindClass(final FhirClassMetadata.ChildField childField, final String forcingClass) {
+        final Field field = childField.getField();
+        final Class<? extends IElement>[] types = childField.getTypes();
 
         if (types.length == 0) {
             // backboneelement
@@ -213,7 +219,7 @@ public class FhirInstanceCreatorUtility {
             if (clazz == org.hl7.fhir.r4.model.Type.class) {
                 return new StringType();
             }
-            return clazz.getDeclaredConstructor().newInstance();
+            return FhirClassMetadata.of(clazz).newInstance();
         } catch (final Exception e) {
             log.error("Error trying to create a new instance of class: {}", clazz, e);
         }
@@ -221,12 +227,11 @@ public class FhirInstanceCreatorUtility {
     }
 
     public Class getClassForName(final String name) {
-        try {
-            return Class.forName(name);
-        } catch (final Exception e) {
-            log.error("Error: ", e);
-            return null;
+        final Class found = FhirClassMetadata.forName(name);
+        if (found == null) {
+            log.error("Error: class {} not found", name);
         }
+        return found;
     }
 
     public String prepareFhirPathForInstantiation(final Class clazz, final String fhirPath) {
@@ -240,10 +245,7 @@ public class FhirInstanceCreatorUtility {
     }
 
     public Class<? extends IBaseResource> getFhirResourceType(final String resourceName) {
-        try {
-            return (Class<? extends IBaseResource>) Class.forName(Patient.class.getPackage().getName() + "." + resourceName);
-        } catch (final ClassNotFoundException e) {
-            return null;
-        }
+        return (Class<? extends IBaseResource>) FhirClassMetadata.forName(
+                Patient.class.getPackage().getName() + "." + resourceName);
     }
 }
@@ -46,6 +46,12 @@ public class FhirInstancePopulator {
     }
 
     private Boolean objectIsEmpty(final Object lastElement) {
+        if (lastElement instanceof Base base) {
+            return base.isEmpty();
+        }
+        if (lastElement instanceof List<?> list) {
+            return list.isEmpty();
+        }
         try {
             return (Boolean) lastElement.getClass().getMethod("isEmpty").invoke(lastElement);
         } catch (InvocationTargetException | NoSuchMethodException | IllegalAccessException e) {
@@ -0,0 +1,56 @@
+package com.medblocks.openfhir.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Provides HAPI JSON parsers of a shared FhirContext. HAPI parsers are not thread safe, so a parser is only ever used
+ * by one thread at a time: it's taken from a pool of idle parsers for a single parse or encode and put back afterwards,
+ * and a new one is created only when none is idle. Creating a parser is cheap compared to creating a FhirContext,
+ * which is why the context is shared and parsers are not.
+ * <p>
+ * Parsers are pooled rather than kept per thread, since with virtual threads (see the virtual-threads profile) every
+ * request runs on a thread of its own, which would create a parser per request. The pool holds at most as many
+ * parsers as were ever used concurrently.
+ */
+public class FhirJsonParserProvider {
+
+    private final FhirContext fhirContext;
+    private final Queue<IParser> idleParsers = new ConcurrentLinkedQueue<>();
+
+    public FhirJsonParserProvider(final FhirContext fhirContext) {
+        this.fhirContext = fhirContext;
+    }
+
+    public IBaseResource parseResource(final String json) {
+        return withParser(parser -> parser.parseResource(json));
+    }
+
+    public String encodeResourceToString(final IBaseResource resource) {
+        return withParser(parser -> parser.encodeResourceToString(resource));
+    }
+
+    public FhirContext getFhirContext() {
+        return fhirContext;
+    }
+
+    int idleParsers() {
+        return idleParsers.size();
+    }
+
+    private <T> T withParser(final Function<IParser, T> action) {
+        IParser parser = idleParsers.poll();
+        if (parser == null) {
+            parser = fhirContext.newJsonParser();
+        }
+        try {
+            return action.apply(parser);
+        } finally {
+            idleParsers.offer(parser);
+        }
+    }
+}
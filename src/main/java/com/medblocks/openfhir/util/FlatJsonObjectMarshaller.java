@@ -0,0 +1,68 @@
+package com.medblocks.openfhir.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.nedap.archie.rm.composition.Composition;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.marshal.StdFromCompositionWalker;
+import org.ehrbase.openehr.sdk.serialisation.jsonencoding.ArchieObjectMapperProvider;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+
+/**
+ * Marshals a Composition to a flat format the same way as EHRBase's FlatJsonMarshaller does, but instead of writing
+ * a flat json String (that would then have to be parsed again), flat paths are written directly to a JsonObject.
+ * <p>
+ * Flat paths are added in the order the Composition is walked, meaning they're ordered as in the web template and
+ * all paths of the same parent node are next to each other.
+ */
+public class FlatJsonObjectMarshaller {
+
+    private static final ObjectMapper OBJECT_MAPPER = ArchieObjectMapperProvider.getObjectMapper();
+
+    public JsonObject toFlatJsonObject(final Composition composition, final WebTemplate webTemplate) {
+        final Map<String, Object> flatPaths = new LinkedHashMap<>();
+        new StdFromCompositionWalker().walk(composition, flatPaths, webTemplate, null, webTemplate.getTemplateId());
+
+        final JsonObject flatJsonObject = new JsonObject();
+        for (final Map.Entry<String, Object> flatPath : flatPaths.entrySet()) {
+            flatJsonObject.add(flatPath.getKey(), toJsonElement(flatPath.getValue()));
+        }
+        return flatJsonObject;
+    }
+
+    private JsonElement toJsonElement(final Object value) {
+        if (value == null) {
+            return JsonNull.INSTANCE;
+        }
+        if (value instanceof String string) {
+            return new JsonPrimitive(string);
+        }
+        if (value instanceof Boolean bool) {
+            return new JsonPrimitive(bool);
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Double) {
+            return new JsonPrimitive((Number) value);
+        }
+        // anything else is converted as it would be serialized by the FlatJsonMarshaller
+        final JsonNode node = OBJECT_MAPPER.valueToTree(value);
+        if (node == null || node.isNull()) {
+            return JsonNull.INSTANCE;
+        }
+        if (node.isTextual()) {
+            return new JsonPrimitive(node.textValue());
+        }
+        if (node.isNumber()) {
+            return new JsonPrimitive(node.numberValue());
+        }
+        if (node.isBoolean()) {
+            return new JsonPrimitive(node.booleanValue());
+        }
+        return JsonParser.parseString(node.toString());
+    }
+}
@@ -0,0 +1,90 @@
+package com.medblocks.openfhir.util;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.nedap.archie.rm.composition.Composition;
+import java.time.DateTimeException;
+import java.time.OffsetDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.ehrbase.openehr.sdk.generator.commons.shareddefinition.Language;
+import org.ehrbase.openehr.sdk.generator.commons.shareddefinition.Setting;
+import org.ehrbase.openehr.sdk.serialisation.exception.UnmarshalException;
+import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.StdToCompositionWalker;
+import org.ehrbase.openehr.sdk.serialisation.walker.FlatHelper;
+import org.ehrbase.openehr.sdk.serialisation.walker.defaultvalues.DefaultValuePath;
+import org.ehrbase.openehr.sdk.serialisation.walker.defaultvalues.DefaultValues;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.ehrbase.openehr.sdk.webtemplate.path.flat.FlatPathDto;
+import org.ehrbase.openehr.sdk.webtemplate.webtemplateskeletonbuilder.WebTemplateSkeletonBuilder;
+
+/**
+ * Unmarshals a Composition from a flat JsonObject the same way as EHRBase's FlatJsonUnmarshaller does, but without
+ * having to serialize the JsonObject to a String first (FlatJsonUnmarshaller only accepts a String that it then
+ * parses again).
+ * <p>
+ * The body of {@link #unmarshal(JsonObject, WebTemplate)} is a copy of FlatJsonUnmarshaller#unmarshal of the
+ * openEHR SDK version pinned in pom.xml (ehrbase.version 2.14.0), with the parsing of the String left out. When the SDK
+ * is upgraded, it has to be compared with FlatJsonUnmarshaller of the new version again; FlatJsonObjectUnmarshallerTest
+ * asserts that both produce the same Composition and fail on the same input.
+ */
+public class FlatJsonObjectUnmarshaller {
+
+    public Composition unmarshal(final JsonObject flatJsonObject, final WebTemplate webTemplate) {
+        // values are kept as json, the same as FlatJsonUnmarshaller does
+        final Map<String, String> currentValues = new HashMap<>();
+        for (final Map.Entry<String, JsonElement> flatPath : flatJsonObject.entrySet()) {
+            currentValues.put(flatPath.getKey(), flatPath.getValue().toString());
+        }
+        try {
+            final Composition composition = WebTemplateSkeletonBuilder.build(webTemplate, false);
+            final StdToCompositionWalker walker = new StdToCompositionWalker();
+
+            final DefaultValues defaultValues = new DefaultValues(currentValues);
+            if (!defaultValues.containsDefaultValue(DefaultValuePath.LANGUAGE)) {
+                defaultValues.addDefaultValue(DefaultValuePath.LANGUAGE,
+                                              FlatHelper.findEnumValueOrThrow(webTemplate.getDefaultLanguage(),
+                                                                              Language.class));
+            }
+            if (!defaultValues.containsDefaultValue(DefaultValuePath.TIME)) {
+                defaultValues.addDefaultValue(DefaultValuePath.TIME, OffsetDateTime.now());
+            }
+            if (!defaultValues.containsDefaultValue(DefaultValuePath.SETTING)) {
+                defaultValues.addDefaultValue(DefaultValuePath.SETTING, Setting.OTHER_CARE);
+            }
+
+            final String templateId = composition.getArchetypeDetails().getTemplateId().getValue();
+            walker.walk(composition,
+                        currentValues.entrySet().stream()
+                                .collect(Collectors.toMap(e -> new FlatPathDto(e.getKey()), Map.Entry::getValue)),
+                        webTemplate,
+                        defaultValues,
+                        templateId);
+
+            final Set<String> unconsumed = getUnconsumed(walker.getConsumedPaths(), currentValues);
+            if (!unconsumed.isEmpty()) {
+                throw new UnmarshalException(String.format("Could not consume Parts %s", unconsumed));
+            }
+            return composition;
+        } catch (final IllegalArgumentException e) {
+            if (e.getCause() instanceof DateTimeException) {
+                throw new UnmarshalException(e.getMessage(), e);
+            }
+            throw e;
+        }
+    }
+
+    private static Set<String> getUnconsumed(final Set<String> consumedPaths,
+                                             final Map<String, String> currentValues) {
+        if (currentValues == null || consumedPaths == null) {
+            return Collections.emptySet();
+        }
+        final Set<String> unconsumed = new HashSet<>(currentValues.keySet());
+        unconsumed.removeAll(consumedPaths);
+        return unconsumed.stream().filter(path -> !path.startsWith("ctx")).collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,373 @@
+package com.medblocks.openfhir.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable parsed openEHR flat path, i.e. growth_chart/body_weight[n]/any_event:0/weight|magnitude, represented as
+ * an array of (interned) segment names, an array of occurrence indexes of each segment (where recurring syntax '[n]'
+ * is a special index) and a '|' suffix of the last segment.
+ * <p>
+ * Substituting indexes and comparing a path with a parent path is done on the arrays, without splitting, matching
+ * regexes and joining Strings every time. Segment name arrays are shared between all paths derived from the same
+ * one and the String representation is only created when it's actually needed (and then kept).
+ * <p>
+ * Segment names are expected not to contain ':' (in a flat path, that's reserved for occurrence indexes).
+ */
+public final class FlatPath {
+
+    public static final int NO_INDEX = -1;
+
+    /**
+     * index of a segment with the recurring syntax '[n]'
+     */
+    public static final int RECURRING = -2;
+
+    private static final String RECURRING_SYNTAX = OpenFhirStringUtils.RECURRING_SYNTAX;
+
+    /**
+     * parsed paths, bounded by {@link PathCaches}
+     */
+    private static final Cache<String, FlatPath> PARSED = PathCaches.newProcessWideCache();
+
+    private final String[] names;
+    private final int[] indexes;
+    private final String suffix;
+    private String string;
+
+    private FlatPath(final String[] names, final int[] indexes, final String suffix, final String string) {
+        this.names = names;
+        this.indexes = indexes;
+        this.suffix = suffix;
+        this.string = string;
+    }
+
+    /**
+     * @return parsed path, taken from a cache of already parsed paths if it's been parsed before
+     */
+    public static FlatPath of(final String path) {
+        return PARSED.get(path, FlatPath::parse);
+    }
+
+    public static FlatPath parse(final String path) {
+        final int pipe = path.indexOf('|');
+        final int pathEnd = pipe == -1 ? path.length() : pipe;
+        final List<String> names = new ArrayList<>();
+        final List<Integer> indexes = new ArrayList<>();
+        int segmentStart = 0;
+        while (true) {
+            int segmentEnd = path.indexOf('/', segmentStart);
+            if (segmentEnd == -1 || segmentEnd > pathEnd) {
+                segmentEnd = pathEnd;
+            }
+            int nameEnd = segmentEnd;
+            int index = NO_INDEX;
+            if (path.startsWith(RECURRING_SYNTAX, segmentEnd - RECURRING_SYNTAX.length())
+                    && segmentEnd - RECURRING_SYNTAX.length() >= segmentStart) {
+                nameEnd = segmentEnd - RECURRING_SYNTAX.length();
+                index = RECURRING;
+            } else {
+                final int indexStart = indexStart(path, segmentStart, segmentEnd);
+                if (indexStart != -1) {
+                    nameEnd = indexStart;
+                    index = Integer.parseInt(path, indexStart + 1, segmentEnd, 10);
+                }
+            }
+            names.add(path.substring(segmentStart, nameEnd).intern());
+            indexes.add(index);
+            if (segmentEnd == pathEnd) {
+                break;
+            }
+            segmentStart = segmentEnd + 1;
+        }
+        return new FlatPath(names.toArray(new String[0]),
+                            indexes.stream().mapToInt(Integer::intValue).toArray(),
+                            pipe == -1 ? null : path.substring(pipe).intern(),
+                            path);
+    }
+
+    /**
+     * @return start of a ':N' occurrence index at the end of a segment or -1 if there's none; indexes with leading
+     *         zeros are not considered an index, so that a parsed path is always written back exactly the same
+     */
+    private static int indexStart(final String path, final int segmentStart, final int segmentEnd) {
+        int i = segmentEnd - 1;
+        while (i >= segmentStart && Character.isDigit(path.charAt(i))) {
+            i--;
+        }
+        if (i == segmentEnd - 1 || i < segmentStart || path.charAt(i) != ':') {
+            return -1;
+        }
+        if (path.charAt(i + 1) == '0' && segmentEnd - i > 2) {
+            return -1;
+        }
+        return i;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(final int segment) {
+        return names[segment];
+    }
+
+    /**
+     * @return occurrence index of the segment, {@link #NO_INDEX} or {@link #RECURRING}
+     */
+    public int getIndex(final int segment) {
+        return indexes[segment];
+    }
+
+    /**
+     * @return '|' suffix of the path, including the pipe, or null if there's none
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    public boolean hasRecurring() {
+        for (final int index : indexes) {
+            if (index == RECURRING) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return right-most occurrence index or -1 if none of the segments has one
+     */
+    public int getLastIndex() {
+        for (int i = indexes.length - 1; i >= 0; i--) {
+            if (indexes[i] >= 0) {
+                return indexes[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces the first recurring syntax '[n]' with the given index, i.e. a[n]/b[n] with 1 becomes a:1/b[n].
+     */
+    public FlatPath withFirstRecurringIndex(final int index) {
+        for (int i = 0; i < indexes.length; i++) {
+            if (indexes[i] == RECURRING) {
+                return withIndex(i, index);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Replaces the last recurring syntax '[n]' with the given index, i.e. a[n]/b[n] with 1 becomes a[n]/b:1.
+     */
+    public FlatPath withLastRecurringIndex(final int index) {
+        for (int i = indexes.length - 1; i >= 0; i--) {
+            if (indexes[i] == RECURRING) {
+                return withIndex(i, index);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Replaces all recurring syntax '[n]' with the given index, i.e. a[n]/b[n] with 0 becomes a:0/b:0.
+     */
+    public FlatPath withAllRecurringIndexes(final int index) {
+        if (!hasRecurring()) {
+            return this;
+        }
+        final int[] replaced = indexes.clone();
+        for (int i = 0; i < replaced.length; i++) {
+            if (replaced[i] == RECURRING) {
+                replaced[i] = index;
+            }
+        }
+        return new FlatPath(names, replaced, suffix, null);
+    }
+
+    /**
+     * Replaces the right-most occurrence index that equals oldIndex with newIndex, i.e. a:0/b:0/c:1 with 0 and 2
+     * becomes a:0/b:2/c:1.
+     */
+    public FlatPath withLastIndexReplaced(final int oldIndex, final int newIndex) {
+        for (int i = indexes.length - 1; i >= 0; i--) {
+            if (indexes[i] == oldIndex) {
+                return withIndex(i, newIndex);
+            }
+        }
+        return this;
+    }
+
+    public FlatPath withIndex(final int segment, final int index) {
+        if (indexes[segment] == index) {
+            return this;
+        }
+        final int[] replaced = indexes.clone();
+        replaced[segment] = index;
+        return new FlatPath(names, replaced, suffix, null);
+    }
+
+    /**
+     * Whether this (child) path is the same as the parent path, up until a segment where this path has recurring
+     * syntax and parent has a concrete index for it. Suffix of the parent's last segment is considered a part of it.
+     * <p>
+     * i.e. medikamentenliste/medikationseintrag[n]/verabreichungsweg[n] has a recurring parent
+     * medikamentenliste/medikationseintrag:0/dosierung2[n]
+     */
+    public boolean hasRecurringParent(final FlatPath parent) {
+        for (int i = 0; i < names.length; i++) {
+            if (i >= parent.names.length) {
+                return true;
+            }
+            final boolean parentSuffixed = parent.suffix != null && i == parent.names.length - 1;
+            if (indexes[i] == RECURRING && parent.indexes[i] >= 0 && names[i].equals(parent.names[i])) {
+                return true;
+            }
+            if (parentSuffixed || indexes[i] != parent.indexes[i] || !names[i].equals(parent.names[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes concrete indexes of the given replacement path for segments of this path. Segment by segment:
+     * <ul>
+     *     <li>if the replacement segment has an index, the replacement segment is used</li>
+     *     <li>if the replacement segment ends with [digits], this segment is kept</li>
+     *     <li>otherwise the replacement segment is used if this segment (without '[n]') starts with it, else this
+     *     segment is kept</li>
+     * </ul>
+     * Segments beyond the length of the replacement are always kept.
+     */
+    public FlatPath withIndexesOf(final FlatPath replacement) {
+        final String[] resultNames = names.clone();
+        final int[] resultIndexes = indexes.clone();
+        String resultSuffix = suffix;
+        boolean changed = false;
+        for (int i = 0; i < names.length && i < replacement.names.length; i++) {
+            final boolean replacementLast = i == replacement.names.length - 1;
+            final String replacementSuffix = replacementLast ? replacement.suffix : null;
+            final int replacementIndex = replacement.indexes[i];
+            final boolean useReplacement;
+            if (replacementIndex >= 0 && replacementSuffix == null) {
+                useReplacement = true;
+            } else if (replacementIndex == NO_INDEX && replacementSuffix == null
+                    && endsWithNumericBrackets(replacement.names[i])) {
+                useReplacement = false;
+            } else {
+                useReplacement = segmentWithoutRecurring(i).startsWith(
+                        replacement.replacementPrefix(i, replacementSuffix));
+            }
+            if (!useReplacement) {
+                continue;
+            }
+            resultNames[i] = replacement.names[i];
+            resultIndexes[i] = replacementIndex;
+            if (i == names.length - 1) {
+                resultSuffix = replacementSuffix;
+            }
+            changed = true;
+        }
+        if (!changed) {
+            return this;
+        }
+        return new FlatPath(resultNames, resultIndexes, resultSuffix, null);
+    }
+
+    /**
+     * @return segment written as text, without recurring syntax but with the suffix if it's the last one
+     */
+    private String segmentWithoutRecurring(final int segment) {
+        final boolean last = segment == names.length - 1;
+        if (indexes[segment] < 0 && (!last || suffix == null)) {
+            return names[segment];
+        }
+        final StringBuilder sb = new StringBuilder(names[segment]);
+        if (indexes[segment] >= 0) {
+            sb.append(':').append(indexes[segment]);
+        }
+        if (last && suffix != null) {
+            sb.append(suffix);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return segment of a replacement path as it is compared with the original one; colons and the (last) index
+     *         digits removed from it
+     */
+    private String replacementPrefix(final int segment, final String segmentSuffix) {
+        final int index = indexes[segment];
+        if (index < 0 && segmentSuffix == null) {
+            return index == RECURRING ? names[segment] + RECURRING_SYNTAX : names[segment];
+        }
+        final String text = names[segment]
+                + (index >= 0 ? ":" + index : index == RECURRING ? RECURRING_SYNTAX : "")
+                + (segmentSuffix == null ? "" : segmentSuffix);
+        if (!text.contains(":")) {
+            return text;
+        }
+        return text.replace(":", "").replace(String.valueOf(OpenFhirStringUtils.lastOccurrenceIndex(text)), "");
+    }
+
+    private static boolean endsWithNumericBrackets(final String name) {
+        if (!name.endsWith("]")) {
+            return false;
+        }
+        final int open = name.lastIndexOf('[');
+        if (open == -1) {
+            return false;
+        }
+        for (int i = open + 1; i < name.length() - 1; i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        if (string == null) {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < names.length; i++) {
+                if (i > 0) {
+                    sb.append('/');
+                }
+                sb.append(names[i]);
+                if (indexes[i] >= 0) {
+                    sb.append(':').append(indexes[i]);
+                } else if (indexes[i] == RECURRING) {
+                    sb.append(RECURRING_SYNTAX);
+                }
+            }
+            if (suffix != null) {
+                sb.append(suffix);
+            }
+            string = sb.toString();
+        }
+        return string;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FlatPath other)) {
+            return false;
+        }
+        return Arrays.equals(names, other.names) && Arrays.equals(indexes, other.indexes)
+                && (suffix == null ? other.suffix == null : suffix.equals(other.suffix));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * Arrays.hashCode(names) + Arrays.hashCode(indexes)) + (suffix == null ? 0 : suffix.hashCode());
+    }
+}
@@ -0,0 +1,229 @@
+package com.medblocks.openfhir.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Segment trie of all keys of a flat path Composition, where occurrence indexes (':N') are stripped from segments
+ * when building the trie and kept per key on each node instead. A simplified flat path (as in fhir connect model
+ * mappings, i.e. without occurrence indexes) is then resolved by walking its segments instead of matching a regex
+ * against every key of the flat path Composition.
+ * <p>
+ * Results are the same as when the simplified path is matched with a regex from
+ * {@link OpenFhirStringUtils#addRegexPatternToSimplifiedFlatFormat(String)}: for each matching key, the key up until
+ * the last segment of the simplified path (including its index), unless that segment is the last one of the key, in
+ * which case the whole key is returned (including what's after the pipe). Keys are returned in their original order.
+ * <p>
+ * Like with the regex, the last segment of a simplified path also matches segments it is a prefix of (unless followed
+ * by a digit), i.e. 'a/content' matches 'a/content_name' as 'a/content'; mappings of parent elements rely on this.
+ * <p>
+ * Keys are additionally kept sorted, so that all keys starting with a given prefix are a contiguous range that's found
+ * with a binary search (see {@link #getAllStartingWith(String)}).
+ */
+public class FlatPathIndex {
+
+    private final Node root = new Node();
+    private final int size;
+    private final Match[] sorted;
+
+    public FlatPathIndex(final Collection<String> flatPaths) {
+        this.size = flatPaths.size();
+        this.sorted = new Match[size];
+        int ordinal = 0;
+        for (final String flatPath : flatPaths) {
+            sorted[ordinal] = new Match(ordinal, flatPath);
+            add(flatPath, ordinal++);
+        }
+        Arrays.sort(sorted, Comparator.comparing(Match::flatPath));
+    }
+
+    /**
+     * @return number of flat paths this index was built from
+     */
+    public int size() {
+        return size;
+    }
+
+    private void add(final String flatPath, final int ordinal) {
+        final int pipe = flatPath.indexOf('|');
+        final int pathEnd = pipe == -1 ? flatPath.length() : pipe;
+        Node node = root;
+        int segmentStart = 0;
+        while (segmentStart <= pathEnd) {
+            int segmentEnd = flatPath.indexOf('/', segmentStart);
+            if (segmentEnd == -1 || segmentEnd > pathEnd) {
+                segmentEnd = pathEnd;
+            }
+            final int indexStart = occurrenceIndexStart(flatPath, segmentStart, segmentEnd);
+            final String name = flatPath.substring(segmentStart, indexStart);
+            final int index = indexStart == segmentEnd ? -1
+                    : Integer.parseInt(flatPath.substring(indexStart + 1, segmentEnd));
+            node = node.children.computeIfAbsent(name, n -> new Node());
+            node.entries.add(new Entry(flatPath, ordinal, segmentStart, segmentEnd, index, segmentEnd == pathEnd));
+            segmentStart = segmentEnd + 1;
+        }
+    }
+
+    /**
+     * @return start of the ':N' occurrence index at the end of a segment or segmentEnd if the segment has no index
+     */
+    private static int occurrenceIndexStart(final String path, final int segmentStart, final int segmentEnd) {
+        int i = segmentEnd - 1;
+        while (i > segmentStart && Character.isDigit(path.charAt(i))) {
+            i--;
+        }
+        if (i < segmentEnd - 1 && i > segmentStart && path.charAt(i) == ':') {
+            return i;
+        }
+        return segmentEnd;
+    }
+
+    /**
+     * @param simplifiedFlat simplified flat path, segments optionally with an occurrence index and the last one
+     *         optionally with a '|' suffix
+     * @return all (partial) flat paths matching the simplified one
+     */
+    public List<String> getAllEntriesThatMatch(final String simplifiedFlat) {
+        final int pipe = simplifiedFlat.indexOf('|');
+        final String path = pipe == -1 ? simplifiedFlat : simplifiedFlat.substring(0, pipe);
+        final String suffix = pipe == -1 ? null : simplifiedFlat.substring(pipe);
+        final String[] segments = path.split("/");
+
+        final List<Node> nodes = new ArrayList<>();
+        final List<Integer> requiredIndexes = new ArrayList<>();
+        Node parent = root;
+        for (int i = 0; i < segments.length - 1; i++) {
+            final String segment = segments[i];
+            final int indexStart = occurrenceIndexStart(segment, 0, segment.length());
+            parent = parent.children.get(segment.substring(0, indexStart));
+            if (parent == null) {
+                return new ArrayList<>();
+            }
+            nodes.add(parent);
+            requiredIndexes.add(indexStart == segment.length() ? null
+                                        : Integer.valueOf(segment.substring(indexStart + 1)));
+        }
+        final String lastSegment = segments[segments.length - 1];
+        final int lastIndexStart = occurrenceIndexStart(lastSegment, 0, lastSegment.length());
+        final String lastName = lastSegment.substring(0, lastIndexStart);
+        final Integer lastRequiredIndex = lastIndexStart == lastSegment.length() ? null
+                : Integer.valueOf(lastSegment.substring(lastIndexStart + 1));
+
+        final List<Match> matching = new ArrayList<>();
+        final Node node = parent.children.get(lastName);
+        if (node != null) {
+            for (final Entry entry : node.entries) {
+                if (!hasRequiredIndexes(entry.flatPath, nodes, requiredIndexes)
+                        || (lastRequiredIndex != null && entry.index != lastRequiredIndex)) {
+                    continue;
+                }
+                if (suffix == null) {
+                    matching.add(new Match(entry.ordinal, entry.last ? entry.flatPath
+                            : entry.flatPath.substring(0, entry.segmentEnd)));
+                } else if (entry.last && entry.flatPath.startsWith(suffix, entry.segmentEnd)) {
+                    matching.add(new Match(entry.ordinal,
+                                           entry.flatPath.substring(0, entry.segmentEnd + suffix.length())));
+                }
+            }
+        }
+        if (suffix == null && lastRequiredIndex == null) {
+            addPrefixMatches(parent, lastName, nodes, requiredIndexes, matching);
+        }
+        matching.sort(Comparator.comparingInt(Match::ordinal));
+        return matching.stream().map(Match::flatPath).collect(Collectors.toList());
+    }
+
+    /**
+     * @param prefix plain String prefix (no segment semantics, i.e. 'a/b:1' is also a prefix of 'a/b:10/c')
+     * @return all flat paths starting with the given prefix, in their original order
+     */
+    public List<String> getAllStartingWith(final String prefix) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (sorted[middle].flatPath().compareTo(prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        final List<Match> range = new ArrayList<>();
+        for (int i = low; i < sorted.length && sorted[i].flatPath().startsWith(prefix); i++) {
+            range.add(sorted[i]);
+        }
+        range.sort(Comparator.comparingInt(Match::ordinal));
+        return range.stream().map(Match::flatPath).collect(Collectors.toList());
+    }
+
+    private void addPrefixMatches(final Node parent, final String lastName, final List<Node> nodes,
+                                  final List<Integer> requiredIndexes, final List<Match> matching) {
+        for (final Map.Entry<String, Node> child : parent.children.entrySet()) {
+            final String name = child.getKey();
+            if (name.length() <= lastName.length() || !name.startsWith(lastName)
+                    || Character.isDigit(name.charAt(lastName.length()))) {
+                continue;
+            }
+            for (final Entry entry : child.getValue().entries) {
+                if (hasRequiredIndexes(entry.flatPath, nodes, requiredIndexes)) {
+                    matching.add(new Match(entry.ordinal,
+                                           entry.flatPath.substring(0, entry.segmentStart + lastName.length())));
+                }
+            }
+        }
+    }
+
+    /**
+     * Only relevant when the simplified path explicitly defines an occurrence index for any of its segments, which
+     * is rare; then the flat path needs to have the same index on that segment.
+     */
+    private boolean hasRequiredIndexes(final String flatPath, final List<Node> nodes,
+                                       final List<Integer> requiredIndexes) {
+        for (int i = 0; i < requiredIndexes.size(); i++) {
+            final Integer required = requiredIndexes.get(i);
+            if (required == null) {
+                continue;
+            }
+            final Entry entry = nodes.get(i).find(flatPath);
+            if (entry == null || entry.index != required) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+        private final List<Entry> entries = new ArrayList<>();
+
+        private Entry find(final String flatPath) {
+            for (final Entry entry : entries) {
+                if (entry.flatPath.equals(flatPath)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param flatPath full flat path (key) passing through a node
+     * @param ordinal position of the flat path within the flat path Composition
+     * @param segmentStart start of this node's segment within the flat path
+     * @param segmentEnd end of this node's segment (including its occurrence index) within the flat path
+     * @param index occurrence index of the segment or -1 if it has none
+     * @param last whether this is the last segment of the flat path
+     */
+    private record Entry(String flatPath, int ordinal, int segmentStart, int segmentEnd, int index, boolean last) {
+    }
+
+    private record Match(int ordinal, String flatPath) {
+    }
+}
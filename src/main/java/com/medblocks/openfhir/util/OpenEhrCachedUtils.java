@@ -1,5 +1,8 @@
 package com.medblocks.openfhir.util;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.medblocks.openfhir.OpenFhirMappingContext;
 import com.medblocks.openfhir.db.entity.OptEntity;
 import com.medblocks.openfhir.db.repository.OptRepository;
@@ -9,60 +12,130 @@ import org.ehrbase.openehr.sdk.webtemplate.parser.OPTParser;
 import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
 import org.openehr.schemas.v1.TemplateDocument;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.stereotype.Component;
-import org.springframework.web.context.annotation.SessionScope;
 
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
  * Utility class used for cached OpenEhr RM that can be otherwise performance issue if
- * created/parsed every time
+ * created/parsed every time.
+ * <p>
+ * Caches are process wide and bounded. Parsed WebTemplates are keyed by template id and a hash of the OPT content,
+ * meaning a changed template in the db can never be served from a stale WebTemplate. The hash is computed once, from
+ * the raw content when a template is loaded from the db or upserted; OPT instances that weren't loaded through this
+ * class are serialized and hashed once per instance (a uid isn't enough, it can be missing or kept across
+ * revisions of a template). Operational templates are keyed by normalized template id only and need to be
+ * invalidated when a template is upserted.
+ * <p>
+ * A {@link WebTemplateIndex} is built for every WebTemplate as it's parsed and cached.
  */
 @Component
-@SessionScope
 @Slf4j
+// web template indexes are sized with the configured size of path caches
+@DependsOn("pathCaches")
 public class OpenEhrCachedUtils {
-    final Map<String, WebTemplate> webTemplates = new HashMap<>();
-    final Map<String, OPERATIONALTEMPLATE> operationalTemplates = new HashMap<>();
+
+    private static final long DEFAULT_MAX_SIZE = 100;
+
+    private final Cache<String, OPERATIONALTEMPLATE> operationalTemplates;
+    private final Cache<TemplateKey, WebTemplate> webTemplates;
+    /**
+     * keys (template id + content hash) of OPERATIONALTEMPLATE instances this cache has seen, by identity
+     */
+    private final Cache<OPERATIONALTEMPLATE, TemplateKey> templateKeys;
 
     private final OptRepository optRepository;
 
-    @Autowired
     public OpenEhrCachedUtils(OptRepository optRepository) {
+        this(optRepository, DEFAULT_MAX_SIZE);
+    }
+
+    @Autowired
+    public OpenEhrCachedUtils(OptRepository optRepository,
+                              @Value("${openfhir.cache.templates.max-size:100}") long maxSize) {
         this.optRepository = optRepository;
+        this.operationalTemplates = Caffeine.newBuilder().maximumSize(maxSize).recordStats().build();
+        this.webTemplates = Caffeine.newBuilder().maximumSize(maxSize).recordStats().build();
+        this.templateKeys = Caffeine.newBuilder().weakKeys().build();
     }
 
     public WebTemplate parseWebTemplate(final OPERATIONALTEMPLATE operationaltemplate) {
-        // todo: what if it's changed in the db?
-        if (webTemplates.containsKey(operationaltemplate.getTemplateId().getValue())) {
-            return webTemplates.get(operationaltemplate.getTemplateId().getValue());
-        }
+        final TemplateKey key = templateKeys.get(operationaltemplate, this::serializedKey);
+        return webTemplates.get(key, k -> createParser(operationaltemplate));
+    }
 
-        final WebTemplate parser = createParser(operationaltemplate);
-        webTemplates.put(operationaltemplate.getTemplateId().getValue(), parser);
-        return parser;
+    /**
+     * Parses WebTemplate of an operational template whose raw content is known already, i.e. when it's being
+     * upserted. Content is then used for the hash directly so the result is shared with subsequent loads from the db.
+     */
+    public WebTemplate parseWebTemplate(final OPERATIONALTEMPLATE operationaltemplate, final String content) {
+        final TemplateKey key = templateKey(operationaltemplate.getTemplateId().getValue(), content);
+        templateKeys.put(operationaltemplate, key);
+        return webTemplates.get(key, k -> createParser(operationaltemplate));
     }
 
     private WebTemplate createParser(final OPERATIONALTEMPLATE operationaltemplate) {
-        return new OPTParser(operationaltemplate).parse();
+        final WebTemplate webTemplate = new OPTParser(operationaltemplate).parse();
+        // node index is built together with the cached WebTemplate, so that requests don't have to
+        WebTemplateIndex.of(webTemplate);
+        return webTemplate;
     }
 
     public OPERATIONALTEMPLATE getOperationalTemplate(final String templateId) {
-        // todo: what if it's changed in the db?
         final String normalizedTemplateId = OpenFhirMappingContext.normalizeTemplateId(templateId);
-        if (operationalTemplates.containsKey(normalizedTemplateId)) {
-            return operationalTemplates.get(normalizedTemplateId);
-        }
+        return operationalTemplates.get(normalizedTemplateId, this::loadOperationalTemplate);
+    }
+
+    /**
+     * Invalidates cached operational template, needs to be invoked whenever a template is changed in the db.
+     * WebTemplates don't need to be invalidated as they are keyed by the content hash, stale ones are simply
+     * evicted over time.
+     */
+    public void invalidate(final String templateId) {
+        operationalTemplates.invalidate(OpenFhirMappingContext.normalizeTemplateId(templateId));
+        log.debug("Invalidated cached operational template {}. Cache statistics: {}", templateId, getStatistics());
+    }
+
+    /**
+     * @return hit/miss/eviction statistics of operational and web template caches
+     */
+    public Map<String, Map<String, Object>> getStatistics() {
+        final Map<String, Map<String, Object>> statistics = new LinkedHashMap<>();
+        statistics.put("operationalTemplates", toMap(operationalTemplates));
+        statistics.put("webTemplates", toMap(webTemplates));
+        return statistics;
+    }
+
+    private Map<String, Object> toMap(final Cache<?, ?> cache) {
+        final CacheStats stats = cache.stats();
+        final Map<String, Object> map = new LinkedHashMap<>();
+        map.put("size", cache.estimatedSize());
+        map.put("hits", stats.hitCount());
+        map.put("misses", stats.missCount());
+        map.put("hitRate", stats.hitRate());
+        map.put("evictions", stats.evictionCount());
+        return map;
+    }
+
+    private OPERATIONALTEMPLATE loadOperationalTemplate(final String normalizedTemplateId) {
         final OptEntity byTemplateIdAndUser = optRepository.findByTemplateId(normalizedTemplateId);
-        if (byTemplateIdAndUser != null) {
-            final OPERATIONALTEMPLATE operationalTemplate = parseOperationalTemplate(byTemplateIdAndUser.getContent());
-            if (operationalTemplate == null) {
-                return null;
-            }
-            operationalTemplates.put(normalizedTemplateId, operationalTemplate);
+        if (byTemplateIdAndUser == null) {
+            return null;
         }
-        return operationalTemplates.get(normalizedTemplateId);
+        final OPERATIONALTEMPLATE operationalTemplate = parseOperationalTemplate(byTemplateIdAndUser.getContent());
+        if (operationalTemplate != null) {
+            templateKeys.put(operationalTemplate,
+                             templateKey(operationalTemplate.getTemplateId().getValue(),
+                                         byTemplateIdAndUser.getContent()));
+        }
+        return operationalTemplate;
     }
 
     private OPERATIONALTEMPLATE parseOperationalTemplate(final String templateContent) {
@@ -73,4 +146,24 @@ public class OpenEhrCachedUtils {
             return null;
         }
     }
+
+    /**
+     * key of an OPT instance whose raw content isn't known, i.e. one that wasn't loaded through this class
+     */
+    private TemplateKey serializedKey(final OPERATIONALTEMPLATE operationaltemplate) {
+        return templateKey(operationaltemplate.getTemplateId().getValue(), operationaltemplate.xmlText());
+    }
+
+    private TemplateKey templateKey(final String templateId, final String content) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(content.getBytes(StandardCharsets.UTF_8));
+            return new TemplateKey(templateId, HexFormat.of().formatHex(digest));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private record TemplateKey(String templateId, String contentHash) {
+    }
 }
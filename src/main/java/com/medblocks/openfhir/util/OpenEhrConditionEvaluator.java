@@ -5,9 +5,9 @@ import com.google.gson.JsonPrimitive;
 import com.medblocks.openfhir.fc.FhirConnectConst;
 import com.medblocks.openfhir.fc.schema.model.Condition;
 import com.medblocks.openfhir.fc.schema.model.Mapping;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -70,40 +70,23 @@ public class OpenEhrConditionEvaluator {
             return fullFlatPath;
         }
         final String targetAttribute = openEhrCondition.getTargetAttribute() == null ? openEhrCondition.getTargetAttributes().get(0) : openEhrCondition.getTargetAttribute();
-        final JsonObject modifiedJsonObject = new JsonObject();
-        final Set<String> notAddingForThisCondition = new HashSet<>();
+        final String preparedTargetAttribute = openFhirStringUtils.prepareOpenEhrSyntax(targetAttribute, "");
+        final List<String> admitted = new ArrayList<>();
         for (final String extractedValueKey : extractedValueKeys) {
-            final String preparedTargetAttribute = openFhirStringUtils.prepareOpenEhrSyntax(
-                    targetAttribute,
-                    "");
             final String openEhrKey = preparedTargetAttribute == null ? extractedValueKey : String.format("%s/%s", extractedValueKey, preparedTargetAttribute);
             final JsonPrimitive extractedValueJson = fullFlatPath.getAsJsonPrimitive(openEhrKey);
             final String extractedValue = extractedValueJson == null ? "" : extractedValueJson.getAsString();
 
             if (openEhrCondition.getCriteria().contains(extractedValue)) {
-                fullFlatPath.entrySet().forEach((entry) -> {
-                    if (entry.getKey().startsWith(extractedValueKey)) {
-                        modifiedJsonObject.add(entry.getKey(), entry.getValue());
-                    }
-                });
+                admitted.add(extractedValueKey);
                 continue;
             }
 
             log.info(
                     "Flat path {} evaluated to {}, condition.criteria requires it to be {}, therefore excluding all {} from mapping.",
                     openEhrKey, extractedValue, openEhrCondition.getCriteria(), extractedValueKey);
-            notAddingForThisCondition.add(extractedValueKey);
-
-            fullFlatPath.entrySet().forEach((entry) -> {
-//                if (!entry.getKey().startsWith(extractedValueKey)) {
-//                    modifiedJsonObject.add(entry.getKey(), entry.getValue());
-//                }
-                if (notAddingForThisCondition.stream().noneMatch(extractedValueKey::startsWith)) {
-                    modifiedJsonObject.add(entry.getKey(), entry.getValue());
-                }
-            });
         }
-        return modifiedJsonObject;
+        return narrow(fullFlatPath, admitted);
     }
 
     private JsonObject handleEmptyOperatorSplit(final Condition openEhrCondition,
@@ -113,7 +96,7 @@ public class OpenEhrConditionEvaluator {
             // no such flat path even exists, so let's just consider all entries?
             return fullFlatPath;
         }
-        final JsonObject modifiedJsonObject = new JsonObject();
+        final List<String> admitted = new ArrayList<>();
         for (final String extractedValueKey : extractedValueKeys) {
             for (final String targetAttribute : openEhrCondition.getTargetAttributes()) {
                 final String preparedTargetAttribute = openFhirStringUtils.prepareOpenEhrSyntax(
@@ -130,18 +113,34 @@ public class OpenEhrConditionEvaluator {
                     continue;
                 }
 
-
-                fullFlatPath.entrySet().forEach((entry) -> {
-                    if (entry.getKey().startsWith(extractedValueKey)) {
-                        modifiedJsonObject.add(entry.getKey(), entry.getValue());
-                    }
-                });
+                admitted.add(extractedValueKey);
             }
 
         }
-        return modifiedJsonObject;
+        return narrow(fullFlatPath, admitted);
     }
 
+    /**
+     * Narrows the flat path Composition down to entries that are any of the admitted prefixes or nested under them
+     * (so 'result:1' doesn't admit 'result:10'). Each prefix is resolved as a range of sorted keys of the (shared) flat
+     * path index of fullFlatPath, rather than by iterating all of its entries once per prefix. Values are not copied,
+     * the narrowed JsonObject references the same elements as fullFlatPath.
+     *
+     * @param fullFlatPath flat path Composition being narrowed
+     * @param admittedPrefixes prefixes of entries that are kept, in the order they're to be added
+     * @return narrowed flat path Composition
+     */
+    private JsonObject narrow(final JsonObject fullFlatPath, final List<String> admittedPrefixes) {
+        final JsonObject narrowed = new JsonObject();
+        for (final String prefix : new LinkedHashSet<>(admittedPrefixes)) {
+            for (final String key : openFhirStringUtils.getAllEntriesUnder(prefix, fullFlatPath)) {
+                if (!narrowed.has(key)) {
+                    narrowed.add(key, fullFlatPath.get(key));
+                }
+            }
+        }
+        return narrowed;
+    }
 
     /**
      * If a mapping has openehrCondition, then the whole JsonObject representing flatPath Composition needs to be split
@@ -175,9 +174,8 @@ public class OpenEhrConditionEvaluator {
         final String openEhrPath = openFhirStringUtils.prepareOpenEhrSyntax(openEhrCondition.getTargetRoot(),
                                                                             firstFlatPath);
 
-        final String withRegex = openFhirStringUtils.addRegexPatternToSimplifiedFlatFormat(openEhrPath);
-        return openFhirStringUtils.getAllEntriesThatMatch(withRegex, fullFlatPath).stream().distinct().collect(
-                Collectors.toList());
+        return openFhirStringUtils.getAllEntriesThatMatchSimplified(openEhrPath, fullFlatPath).stream().distinct()
+                .collect(Collectors.toList());
 
     }
 
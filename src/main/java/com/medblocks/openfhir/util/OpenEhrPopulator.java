@@ -4,12 +4,14 @@ import static com.medblocks.openfhir.fc.FhirConnectConst.OPENEHR_TYPE_CLUSTER;
 import static com.medblocks.openfhir.fc.FhirConnectConst.OPENEHR_TYPE_NONE;
 import static com.medblocks.openfhir.util.OpenFhirStringUtils.RECURRING_SYNTAX;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import com.medblocks.openfhir.fc.FhirConnectConst;
 import java.util.Base64;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.Address;
@@ -496,6 +498,27 @@ public class OpenEhrPopulator {
         constructingFlat.add(key, new JsonPrimitive(value));
     }
 
+    /**
+     * Adds all values of a flat fragment (i.e. one created from a single Resource) to the composition in a flat path
+     * format that's being constructed, the same way as if they were added to it directly, meaning context start and
+     * end time keep the earliest and the latest value respectively.
+     *
+     * @param fragment flat path values to be added
+     * @param constructingFlat composition in a flat path format that's being constructed
+     */
+    public void mergeIntoConstructingFlat(final JsonObject fragment, final JsonObject constructingFlat) {
+        for (final Map.Entry<String, JsonElement> value : fragment.entrySet()) {
+            final String key = value.getKey();
+            if (value.getValue().isJsonPrimitive() && isContextStartKey(key)) {
+                toUpdateContextBoundary(key, value.getValue().getAsString(), constructingFlat, true);
+            } else if (value.getValue().isJsonPrimitive() && isContextEndKey(key)) {
+                toUpdateContextBoundary(key, value.getValue().getAsString(), constructingFlat, false);
+            } else {
+                constructingFlat.add(key, value.getValue());
+            }
+        }
+    }
+
     private boolean isContextStartKey(final String key) {
         return key.contains("/context/") && key.endsWith("start_time");
     }
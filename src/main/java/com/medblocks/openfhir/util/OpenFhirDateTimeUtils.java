@@ -0,0 +1,131 @@
+package com.medblocks.openfhir.util;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.Year;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+
+/**
+ * Formats and parses openEHR and FHIR date, dateTime and time strings. Formatters are immutable and shared, so
+ * everything in here is thread safe.
+ * <p>
+ * Dates are formatted and parsed in the system default time zone.
+ */
+public final class OpenFhirDateTimeUtils {
+
+    public static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("uuuu-MM-dd");
+    public static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss");
+    public static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    private OpenFhirDateTimeUtils() {
+    }
+
+    public static String formatDate(final Date date) {
+        return date == null ? null : DATE.format(toLocalDateTime(date));
+    }
+
+    public static String formatDateTime(final Date date) {
+        return date == null ? null : DATE_TIME.format(toLocalDateTime(date));
+    }
+
+    public static String formatTime(final Date date) {
+        return date == null ? null : TIME.format(toLocalDateTime(date));
+    }
+
+    /**
+     * Parses a date or dateTime string into a Date in the system default time zone.
+     *
+     * @see #parseLocalDateTime(String)
+     */
+    public static Date parseDate(final String value) {
+        final LocalDateTime parsed = parseLocalDateTime(value);
+        return parsed == null ? null : Date.from(parsed.atZone(ZoneId.systemDefault()).toInstant());
+    }
+
+    /**
+     * Parses a date or dateTime string with as much precision as it has, i.e. '2024', '2024-03', '2024-03-05',
+     * '2024-03-05T10:15' or '2024-03-05T10:15:30'. Anything following the day or the seconds (fractions, time zones)
+     * is ignored. If what follows the day isn't a valid time, only the date is taken.
+     *
+     * @return parsed date time (missing parts are the start of the period) or null if the value is not a valid date
+     */
+    public static LocalDateTime parseLocalDateTime(final String value) {
+        if (value == null) {
+            return null;
+        }
+        final int length = value.length();
+        final int year = digits(value, 0, 4);
+        if (year == -1) {
+            return null;
+        }
+        if (length == 4) {
+            return LocalDateTime.of(year, 1, 1, 0, 0);
+        }
+        if (value.charAt(4) != '-') {
+            return null;
+        }
+        final int month = digits(value, 5, 2);
+        if (month < 1 || month > 12) {
+            return null;
+        }
+        if (length == 7) {
+            return LocalDateTime.of(year, month, 1, 0, 0);
+        }
+        if (value.charAt(7) != '-') {
+            return null;
+        }
+        final int day = digits(value, 8, 2);
+        if (day < 1 || day > lengthOfMonth(year, month)) {
+            return null;
+        }
+        if (length < 16 || value.charAt(10) != 'T' || value.charAt(13) != ':') {
+            return LocalDateTime.of(year, month, day, 0, 0);
+        }
+        final int hour = digits(value, 11, 2);
+        final int minute = digits(value, 14, 2);
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+            return LocalDateTime.of(year, month, day, 0, 0);
+        }
+        if (length < 19 || value.charAt(16) != ':') {
+            return LocalDateTime.of(year, month, day, hour, minute);
+        }
+        final int second = digits(value, 17, 2);
+        if (second < 0 || second > 59) {
+            return LocalDateTime.of(year, month, day, hour, minute);
+        }
+        return LocalDateTime.of(year, month, day, hour, minute, second);
+    }
+
+    private static LocalDateTime toLocalDateTime(final Date date) {
+        // not Date.toInstant(), as java.sql.Date doesn't support it
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(date.getTime()), ZoneId.systemDefault());
+    }
+
+    private static int lengthOfMonth(final int year, final int month) {
+        return switch (month) {
+            case 2 -> Year.isLeap(year) ? 29 : 28;
+            case 4, 6, 9, 11 -> 30;
+            default -> 31;
+        };
+    }
+
+    /**
+     * @return number written with count digits starting at from, or -1 if there aren't as many digits there
+     */
+    private static int digits(final String value, final int from, final int count) {
+        if (value.length() < from + count) {
+            return -1;
+        }
+        int result = 0;
+        for (int i = from; i < from + count; i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+}
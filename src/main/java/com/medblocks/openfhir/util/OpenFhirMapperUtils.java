@@ -10,8 +10,6 @@ import com.medblocks.openfhir.fc.schema.model.Condition;
 import com.medblocks.openfhir.fc.schema.model.FhirConnectReference;
 import com.medblocks.openfhir.fc.schema.model.Mapping;
 import com.medblocks.openfhir.fc.schema.model.With;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
@@ -33,12 +31,6 @@ import org.springframework.stereotype.Component;
 @Component
 public class OpenFhirMapperUtils {
 
-    final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-    final SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss");
-    final SimpleDateFormat time2 = new SimpleDateFormat("HH:mm");
-    final SimpleDateFormat sdf2 = new SimpleDateFormat("yyyy-MM-dd");
-
-
     public String getFhirConnectTypeToFhir(final String fhirConnectType) {
         if (fhirConnectType == null) {
             return null;
@@ -118,41 +110,26 @@ public class OpenFhirMapperUtils {
     }
 
     public String dateToString(final Date date) {
-        if (date == null) {
-            return null;
-        }
-        return sdf2.format(date);
+        return OpenFhirDateTimeUtils.formatDate(date);
     }
 
     public String dateTimeToString(final Date date) {
-        if (date == null) {
-            return null;
-        }
-        return sdf.format(date);
+        return OpenFhirDateTimeUtils.formatDateTime(date);
     }
 
     public String timeToString(final Date date) {
-        if (date == null) {
-            return null;
-        }
-        return time.format(date);
+        return OpenFhirDateTimeUtils.formatTime(date);
     }
 
     public Date stringToDate(final String date) {
         if (date == null) {
             return null;
         }
-        try {
-            return sdf.parse(date);
-        } catch (ParseException e) {
-            log.error("Couldn't parse date: {}", date, e);
-            try {
-                return sdf2.parse(date);
-            } catch (ParseException ex) {
-                log.error("Couldn't parse date: {}", date, e);
-            }
+        final Date parsed = OpenFhirDateTimeUtils.parseDate(date);
+        if (parsed == null) {
+            log.warn("Couldn't parse date: {}", date);
         }
-        return null;
+        return parsed;
     }
 
     /**
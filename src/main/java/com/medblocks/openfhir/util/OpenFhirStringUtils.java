@@ -4,6 +4,8 @@ import static com.medblocks.openfhir.fc.FhirConnectConst.CONDITION_OPERATOR_EMPT
 import static com.medblocks.openfhir.fc.FhirConnectConst.CONDITION_OPERATOR_NOT_EMPTY;
 import static com.medblocks.openfhir.fc.FhirConnectConst.FHIR_ROOT_FC;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.medblocks.openfhir.fc.FhirConnectConst;
@@ -30,7 +32,6 @@ import org.springframework.stereotype.Component;
 public class OpenFhirStringUtils {
 
     private final String TYPE_PATTERN = "\\[TYPE:[^]]+]";
-    private final String ALL_INDEXES = ":(\\d+)";
     public static final String RESOLVE = "resolve()";
     public static final String WHERE = "where";
     public static final String RECURRING_SYNTAX = "[n]";
@@ -40,6 +41,13 @@ public class OpenFhirStringUtils {
 
     public static final String FALSE_CLAUSE = "=false";
 
+    private static final String REGEX_SPECIAL_CHARS = "\\^$*+?()[]{}";
+
+    /**
+     * flat path indexes per flat path Composition; weakly keyed by identity, so they go away together with it
+     */
+    private final Cache<JsonObject, FlatPathIndex> flatPathIndexes = Caffeine.newBuilder().weakKeys().build();
+
     /**
      * Adds regex pattern to the simplified flat path so that we can match all entries in a flat json
      *
@@ -103,7 +111,11 @@ public class OpenFhirStringUtils {
     }
 
     public String replaceFirstIndex(String path, int newIndex) {
-        return path.replaceFirst(":(\\d+)", ":" + newIndex);
+        final int colon = nextIndexColon(path, 0);
+        if (colon == -1) {
+            return path;
+        }
+        return path.substring(0, colon + 1) + newIndex + path.substring(indexEnd(path, colon));
     }
 
     /**
@@ -139,12 +151,40 @@ public class OpenFhirStringUtils {
      * @return index as Integer extracted from the given openEHR path
      */
     public Integer getLastIndex(final String path) {
-        String RIGHT_MOST_INDEX = ":(\\d+)(?!.*:)";
-        final String match = getByRegex(path, RIGHT_MOST_INDEX);
-        if (match == null) {
+        return lastOccurrenceIndex(path);
+    }
+
+    /**
+     * @return index after the last ':' in the path (only if there's no other ':' after it), -1 otherwise
+     */
+    static int lastOccurrenceIndex(final String path) {
+        final int colon = path.lastIndexOf(':');
+        if (colon == -1 || indexEnd(path, colon) == colon + 1) {
             return -1;
         }
-        return Integer.valueOf(match);
+        return Integer.parseInt(path, colon + 1, indexEnd(path, colon), 10);
+    }
+
+    /**
+     * @return position of the next ':' (starting at from) that is followed by an index, -1 if there's none
+     */
+    private static int nextIndexColon(final String path, final int from) {
+        int colon = path.indexOf(':', from);
+        while (colon != -1 && indexEnd(path, colon) == colon + 1) {
+            colon = path.indexOf(':', colon + 1);
+        }
+        return colon;
+    }
+
+    /**
+     * @return end of digits following the ':' at the given position
+     */
+    private static int indexEnd(final String path, final int colon) {
+        int end = colon + 1;
+        while (end < path.length() && Character.isDigit(path.charAt(end))) {
+            end++;
+        }
+        return end;
     }
 
     /**
@@ -214,19 +254,22 @@ public class OpenFhirStringUtils {
      * @return index as Integer extracted from the given openEHR path
      */
     public Integer getFirstIndex(final String path) {
-        final String byRegex = getByRegex(path, ALL_INDEXES);
-        if (byRegex == null) {
+        final int colon = nextIndexColon(path, 0);
+        if (colon == -1) {
             return null;
         }
-        return Integer.valueOf(byRegex);
+        return Integer.parseInt(path, colon + 1, indexEnd(path, colon), 10);
     }
 
     public List<Integer> getAllIndexes(final String path) {
-        final List<String> matches = getByRegexAll(path, ALL_INDEXES);
-        if (matches == null) {
-            return Collections.emptyList();
+        List<Integer> indexes = null;
+        for (int colon = nextIndexColon(path, 0); colon != -1; colon = nextIndexColon(path, colon + 1)) {
+            if (indexes == null) {
+                indexes = new ArrayList<>();
+            }
+            indexes.add(Integer.parseInt(path, colon + 1, indexEnd(path, colon), 10));
         }
-        return matches.stream().map(Integer::parseInt).collect(Collectors.toList());
+        return indexes == null ? Collections.emptyList() : indexes;
     }
 
     /**
@@ -236,16 +279,15 @@ public class OpenFhirStringUtils {
      * @return this will return last index matching this path
      */
     public int getIndexOfElement(final String element, final String fullPath) {
-        final String[] splitFullPath = fullPath.split("/");
-        final String[] splitElement = element.split("/");
-        for (int i = 0; i < splitElement.length; i++) {
-            final String el = splitElement[i];
-            final String path = splitFullPath[i];
-            final String[] splitByColon = path.split(":");
-            final String toMatch = splitByColon[0];
-            if (toMatch.equals(el) && i == splitElement.length - 1 && splitByColon.length > 1) {
-                return Integer.parseInt(splitByColon[1]);
-            }
+        final FlatPath full = FlatPath.of(fullPath);
+        final int last = StringUtils.countMatches(element, '/');
+        if (last >= full.size() || full.getIndex(last) < 0) {
+            return -1;
+        }
+        final String name = full.getName(last);
+        final int elementStart = element.lastIndexOf('/') + 1;
+        if (element.length() - elementStart == name.length() && element.startsWith(name, elementStart)) {
+            return full.getIndex(last);
         }
         return -1;
     }
@@ -472,20 +514,76 @@ public class OpenFhirStringUtils {
         return match;
     }
 
+    /**
+     * Same as {@link #getAllEntriesThatMatch(String, JsonObject)} with a regex from
+     * {@link #addRegexPatternToSimplifiedFlatFormat(String)}, but resolved by walking the segments of the simplified
+     * path in a {@link FlatPathIndex} of compositionFlatPath instead of matching a regex against every one of its keys.
+     * The index is built once per compositionFlatPath.
+     *
+     * @param simplifiedFlat simplified path as given in the fhir connect model mappings
+     * @param compositionFlatPath flat path Composition
+     * @return matching (partial) flat paths
+     */
+    public List<String> getAllEntriesThatMatchSimplified(final String simplifiedFlat,
+                                                         final JsonObject compositionFlatPath) {
+        final String unescaped = simplifiedFlat.replace("\\.", ".");
+        if (StringUtils.containsAny(unescaped, REGEX_SPECIAL_CHARS)) {
+            // not just a path, needs to be evaluated as a regex
+            return getAllEntriesThatMatch(addRegexPatternToSimplifiedFlatFormat(simplifiedFlat), compositionFlatPath);
+        }
+        return getFlatPathIndex(compositionFlatPath).getAllEntriesThatMatch(unescaped);
+    }
+
+    private FlatPathIndex getFlatPathIndex(final JsonObject compositionFlatPath) {
+        final FlatPathIndex index = flatPathIndexes.getIfPresent(compositionFlatPath);
+        if (index != null && index.size() == compositionFlatPath.size()) {
+            return index;
+        }
+        // keys of a flat path Composition are not expected to change once the mapping starts, but just in case
+        final FlatPathIndex built = new FlatPathIndex(compositionFlatPath.keySet());
+        flatPathIndexes.put(compositionFlatPath, built);
+        return built;
+    }
+
     /**
      * Will return all entries from compositionFlatPath where key starts with path. However all up until the pipe
      * need to match
      */
     public List<String> getAllEntriesThatMatchIgnoringPipe(final String path, final JsonObject compositionFlatPath) {
+        final String withoutPipe = path.split("\\|")[0];
         final List<String> match = new ArrayList<>();
-        for (final Map.Entry<String, JsonElement> flatEntry : compositionFlatPath.entrySet()) {
-            if (flatEntry.getKey().split("\\|")[0].equals(path.split("\\|")[0])) {
-                match.add(flatEntry.getValue().getAsString());
+        for (final String key : getAllEntriesStartingWith(withoutPipe, compositionFlatPath)) {
+            if (key.split("\\|")[0].equals(withoutPipe)) {
+                match.add(compositionFlatPath.get(key).getAsString());
             }
         }
         return match;
     }
 
+    /**
+     * Keys of compositionFlatPath that start with the given (plain String) prefix, in their original order. Resolved
+     * as a range of sorted keys of a {@link FlatPathIndex} of compositionFlatPath.
+     */
+    public List<String> getAllEntriesStartingWith(final String prefix, final JsonObject compositionFlatPath) {
+        return getFlatPathIndex(compositionFlatPath).getAllStartingWith(prefix);
+    }
+
+    /**
+     * Keys of compositionFlatPath that are the given path itself or are nested under it, in their original order.
+     * Unlike {@link #getAllEntriesStartingWith(String, JsonObject)}, the path has to end on a segment boundary, i.e.
+     * 'a/b:1' matches 'a/b:1', 'a/b:1|code' and 'a/b:1/c', but not 'a/b:10/c'.
+     */
+    public List<String> getAllEntriesUnder(final String path, final JsonObject compositionFlatPath) {
+        final List<String> under = new ArrayList<>();
+        for (final String key : getAllEntriesStartingWith(path, compositionFlatPath)) {
+            if (key.length() == path.length() || key.charAt(path.length()) == '/'
+                    || key.charAt(path.length()) == '|') {
+                under.add(key);
+            }
+        }
+        return under;
+    }
+
 
     /**
      * If the only difference is a digit, for example
@@ -870,44 +968,7 @@ public class OpenFhirStringUtils {
      * @return a new string where parts from the original are replaced with parts from the replacement
      */
     public String replacePattern(String original, String replacement) {
-        // Split the original and replacement strings into parts based on "/"
-        String[] originalParts = original.split("/");
-        String[] replacementParts = replacement.split("/");
-
-        StringBuilder result = new StringBuilder();
-
-        // Iterate through the parts and replace the parts from the original with the replacement, when needed
-        for (int i = 0; i < originalParts.length; i++) {
-            if (i < replacementParts.length && replacementParts[i].matches(".*:\\d+")) {
-                // If replacement part has a numeric suffix, use it
-                result.append(replacementParts[i]);
-            } else if (i < replacementParts.length && replacementParts[i].matches(".*\\[\\d*]")) {
-                // If the replacement part has a [n] suffix, use the original structure
-                result.append(originalParts[i]);
-            } else if (i < replacementParts.length) {
-                // Use the original part
-                final String orig = originalParts[i].contains(RECURRING_SYNTAX) ? replaceLastIndexOf(originalParts[i],
-                                                                                                     RECURRING_SYNTAX,
-                                                                                                     "")
-                        : originalParts[i];
-                final String repl = replacementParts[i].contains(":") ? replacementParts[i].replace(":", "")
-                        .replace(String.valueOf(getLastIndex(replacementParts[i])), "") : replacementParts[i];
-                if (!orig.startsWith(repl)) { // means it's a completely different one, need to take original
-                    result.append(originalParts[i]);
-                } else {
-                    result.append(replacementParts[i]);
-                }
-            } else {
-                // If no matching replacement, use the original part
-                result.append(originalParts[i]);
-            }
-
-            // Add the separator
-            if (i < originalParts.length - 1) {
-                result.append("/");
-            }
-        }
-        return result.toString();
+        return FlatPath.of(original).withIndexesOf(FlatPath.of(replacement)).toString();
     }
 
     /**
@@ -934,30 +995,7 @@ public class OpenFhirStringUtils {
     }
 
     public boolean childHasParentRecurring(final String child, final String parent) {
-        final List<String> childSplit = Arrays.asList(child.split("/"));
-        final List<String> parentSplit = Arrays.asList(parent.split("/"));
-
-        for (int i = 0; i < childSplit.size(); i++) {
-            String childPath = childSplit.get(i);
-            if (i >= parentSplit.size()) {
-                return true;
-            }
-            if (childPath.contains("|")) {
-                childPath = childPath.split("\\|")[0];
-            }
-            final String parentPath = parentSplit.get(i);
-            if (childPath.endsWith("[n]") && parentPath.contains(":")) {
-                final String baseChildPath = childPath.replace("[n]", "");
-                final String baseParentPath = parentPath.substring(0, parentPath.indexOf(":"));
-                if (baseChildPath.equals(baseParentPath)) {
-                    return true;
-                }
-            }
-            if (!childPath.equals(parentPath)) {
-                return false;
-            }
-        }
-        return true;
+        return FlatPath.of(child).hasRecurringParent(FlatPath.of(parent));
     }
 
 }
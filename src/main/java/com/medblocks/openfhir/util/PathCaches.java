@@ -0,0 +1,51 @@
+package com.medblocks.openfhir.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Size of caches of parsed and compiled paths of fhir connect mappings (flat paths, formatted AQL paths, paths
+ * resolved against a web template and FHIR instantiation steps), configured with openfhir.cache.paths.max-size.
+ * <p>
+ * Process wide caches are created before the configuration is known, so they're resized once it is.
+ */
+@Component
+public class PathCaches {
+
+    public static final long DEFAULT_MAX_SIZE = 10_000;
+
+    private static final List<Cache<?, ?>> PROCESS_WIDE = new CopyOnWriteArrayList<>();
+    private static volatile long maxSize = DEFAULT_MAX_SIZE;
+
+    @Autowired
+    public PathCaches(@Value("${openfhir.cache.paths.max-size:10000}") final long maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * @return process wide cache bounded by the configured size, now and after it's changed
+     */
+    public static <K, V> Cache<K, V> newProcessWideCache() {
+        final Cache<K, V> cache = Caffeine.newBuilder().maximumSize(maxSize).build();
+        PROCESS_WIDE.add(cache);
+        return cache;
+    }
+
+    /**
+     * @return configured size of a single cache of paths
+     */
+    public static long getMaxSize() {
+        return maxSize;
+    }
+
+    static void setMaxSize(final long newMaxSize) {
+        maxSize = newMaxSize;
+        PROCESS_WIDE.forEach(cache -> cache.policy().eviction()
+                .ifPresent(eviction -> eviction.setMaximum(newMaxSize)));
+    }
+}
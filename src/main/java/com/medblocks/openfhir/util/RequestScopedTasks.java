@@ -0,0 +1,108 @@
+package com.medblocks.openfhir.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import org.springframework.aop.scope.ScopedObject;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+/**
+ * Pools that run parts of a single request (or of a batch) and tasks handed over to them.
+ * <p>
+ * The mapping context is request scoped and references are resolved through the {@link BundleReferenceIndex} bound
+ * to the thread mapping a Bundle, so both are handed over from the thread submitting a task to the pool thread
+ * running it.
+ */
+public final class RequestScopedTasks {
+
+    private RequestScopedTasks() {
+    }
+
+    /**
+     * @param name prefix of names of the pool's threads
+     * @param parallelism amount of threads; at least one is used
+     * @return pool of daemon threads named after the pool, i.e. 'openfhir-entries-1'
+     */
+    public static ForkJoinPool newPool(final String name, final int parallelism) {
+        return new ForkJoinPool(Math.max(1, parallelism), pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(name + "-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * @param name prefix of names of the pool's threads
+     * @param parallelism amount of threads; 0 or 1 means the work is done sequentially by the requesting thread
+     * @return pool or null if the work shouldn't be done concurrently
+     */
+    public static ForkJoinPool newOptionalPool(final String name, final int parallelism) {
+        return parallelism > 1 ? newPool(name, parallelism) : null;
+    }
+
+    /**
+     * Resolves targets of request scoped beans on the calling request thread, before any tasks using them are handed
+     * over to a pool. Request scope doesn't synchronize creating a bean, so tasks that are the first ones to use it
+     * could each end up with an instance of their own (i.e. one with a mapping plan and one without).
+     *
+     * @param scopedProxies scoped proxies of request scoped beans; anything else (i.e. null) is ignored
+     */
+    public static void resolveScoped(final Object... scopedProxies) {
+        for (final Object scopedProxy : scopedProxies) {
+            if (scopedProxy instanceof ScopedObject scopedObject) {
+                scopedObject.getTargetObject();
+            }
+        }
+    }
+
+    /**
+     * @return task that runs with request attributes and the reference index of the thread invoking this method
+     */
+    public static <T> Callable<T> wrap(final Callable<T> task) {
+        final RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+        final BundleReferenceIndex referenceIndex = BundleReferenceIndex.current();
+        return () -> {
+            // a task can also end up being run by the submitting thread, so its own attributes are put back
+            final RequestAttributes previous = RequestContextHolder.getRequestAttributes();
+            RequestContextHolder.setRequestAttributes(requestAttributes);
+            try (BundleReferenceIndex.Scope ignored = BundleReferenceIndex.bind(referenceIndex)) {
+                return task.call();
+            } finally {
+                RequestContextHolder.setRequestAttributes(previous);
+            }
+        };
+    }
+
+    /**
+     * Runs wrapped tasks on the pool and waits for all of them.
+     *
+     * @param what what the tasks do, for messages of exceptions, i.e. 'mapping Bundle entries'
+     * @return results in the order of tasks
+     */
+    public static <T> List<T> invokeAll(final ForkJoinPool pool, final List<Callable<T>> tasks, final String what) {
+        final List<Future<T>> futures = pool.invokeAll(tasks.stream()
+                                                               .map(RequestScopedTasks::wrap)
+                                                               .collect(Collectors.toList()));
+        final List<T> results = new ArrayList<>(futures.size());
+        for (final Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(String.format("Interrupted while %s.", what), e);
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                throw new IllegalStateException(String.format("Failed %s.", what), e.getCause());
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,254 @@
+package com.medblocks.openfhir.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import org.ehrbase.openehr.sdk.aql.webtemplatepath.AqlPath;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplateNode;
+
+/**
+ * Index of all nodes of a WebTemplate, so that children of a node can be looked up by their id or AQL path with a
+ * hash lookup instead of scanning (and formatting AQL paths of) all of the children every time a path is resolved.
+ * <p>
+ * Built once per WebTemplate (see {@link #of(WebTemplate)}), which is when it's being cached in
+ * {@link OpenEhrCachedUtils}. WebTemplates are not modified once parsed, so the index never needs to be rebuilt.
+ * <p>
+ * It also holds resolutions of simplified openEHR paths to flat paths of the template (see
+ * {@link #getResolvedPath(String, String, Function)}), so they live exactly as long as the template itself.
+ */
+public final class WebTemplateIndex {
+
+    /**
+     * ids of children that hold the actual value of an element, in order of preference as they appear in the template
+     */
+    private static final Set<String> VALUE_IDS = Set.of("value", "identifier_value", "coded_text_value",
+                                                        "quantity_value", "date_time_value");
+
+    /**
+     * indexes per WebTemplate; weakly keyed by identity, so they go away together with the WebTemplate
+     */
+    private static final Cache<WebTemplate, WebTemplateIndex> INDEXES = Caffeine.newBuilder().weakKeys().build();
+
+    /**
+     * formatted AQL paths, bounded by {@link PathCaches}
+     */
+    private static final Cache<String, FormattedAqlPath> AQL_PATHS = PathCaches.newProcessWideCache();
+
+    private final String treeId;
+    private final Children root;
+
+    /**
+     * resolved paths by (simplified openEHR path, forced RM type); result only depends on those and the template
+     */
+    private final Cache<PathToResolve, ResolvedPath> resolvedPaths = Caffeine.newBuilder()
+            .maximumSize(PathCaches.getMaxSize())
+            .build();
+
+    private WebTemplateIndex(final WebTemplate webTemplate) {
+        this.treeId = webTemplate.getTree().getId();
+        this.root = new Children(webTemplate.getTree().getChildren());
+    }
+
+    /**
+     * @return index of the WebTemplate, built the first time it's requested for a given WebTemplate instance
+     */
+    public static WebTemplateIndex of(final WebTemplate webTemplate) {
+        return INDEXES.get(webTemplate, WebTemplateIndex::new);
+    }
+
+    /**
+     * @return children of the WebTemplate's tree (the Composition)
+     */
+    public Children getRoot() {
+        return root;
+    }
+
+    /**
+     * Whether a flat path is in the form Compositions are marshalled to: within the template's tree, every segment
+     * is a node of the template and every node that can occur multiple times has an index. Checking stops at an RM
+     * attribute that's not a node of the template (an underscore prefixed one, i.e. context/_health_care_facility).
+     * ctx/ shortcuts, index-less or unknown paths are not canonical.
+     *
+     * @param flatPath key of a flat Composition
+     */
+    public boolean isCanonicalFlatPath(final String flatPath) {
+        final int suffix = flatPath.indexOf('|');
+        final String[] segments = (suffix == -1 ? flatPath : flatPath.substring(0, suffix)).split("/");
+        if (segments.length < 2 || !treeId.equals(segments[0])) {
+            return false;
+        }
+        Children children = root;
+        for (int i = 1; i < segments.length; i++) {
+            final String segment = segments[i];
+            final int index = segment.indexOf(':');
+            final String id = index == -1 ? segment : segment.substring(0, index);
+            final Node node = children.getById(id);
+            if (node == null) {
+                return id.startsWith("_");
+            }
+            if (node.multi() && index == -1) {
+                return false;
+            }
+            children = node.children();
+        }
+        return true;
+    }
+
+    /**
+     * @param openEhrPath simplified openEHR path being resolved
+     * @param openEhrType RM type forced by a mapping or null if there's none
+     * @param resolver resolves the path against the template when it hasn't been resolved before
+     * @return memoized resolution of the path for this template
+     */
+    public ResolvedPath getResolvedPath(final String openEhrPath, final String openEhrType,
+                                        final Function<PathToResolve, ResolvedPath> resolver) {
+        return resolvedPaths.get(new PathToResolve(openEhrPath, openEhrType), resolver);
+    }
+
+    /**
+     * @return number of memoized path resolutions
+     */
+    public long getResolvedPathsSize() {
+        return resolvedPaths.estimatedSize();
+    }
+
+    /**
+     * @param openEhrPath simplified openEHR path
+     * @param openEhrType RM type forced by a mapping or null if there's none
+     */
+    public record PathToResolve(String openEhrPath, String openEhrType) {
+    }
+
+    /**
+     * @param openEhrPath flat path (with recurring syntax) the simplified path resolved to
+     * @param openEhrType RM type of the resolved path
+     */
+    public record ResolvedPath(String openEhrPath, String openEhrType) {
+    }
+
+    /**
+     * @param path AQL path
+     * @return AQL path as formatted by {@link AqlPath}, with and without other predicates
+     */
+    public static FormattedAqlPath formatAqlPath(final String path) {
+        return AQL_PATHS.get(path, p -> {
+            final AqlPath aqlPath = AqlPath.parse(p);
+            return new FormattedAqlPath(aqlPath.format(true), aqlPath.format(false));
+        });
+    }
+
+    /**
+     * @param withOtherPredicates AQL path including other predicates (i.e. name/value)
+     * @param withoutOtherPredicates AQL path without other predicates
+     */
+    public record FormattedAqlPath(String withOtherPredicates, String withoutOtherPredicates) {
+    }
+
+    /**
+     * A WebTemplateNode together with what's repeatedly needed from it when resolving paths.
+     *
+     * @param webTemplateNode node as it exists on the WebTemplate
+     * @param id id of the node (including its optional id number)
+     * @param rmType RM type of the node
+     * @param multi whether the node can occur multiple times
+     * @param children indexed children of the node
+     */
+    public record Node(WebTemplateNode webTemplateNode, String id, String rmType, boolean multi, Children children) {
+    }
+
+    /**
+     * Indexed children of a single WebTemplateNode. Where multiple children would match, the first one (in the order
+     * they appear on the template) is returned, the same as when streaming through them with a findAny.
+     */
+    public static final class Children {
+
+        private final List<Node> nodes;
+        private final Map<String, Node> byId = new HashMap<>();
+        private final Map<String, Integer> byAqlPath = new HashMap<>();
+        private final Map<String, Integer> byAqlPathWithoutPredicates = new HashMap<>();
+        private final Map<String, Integer> idsPerAqlPathWithoutPredicates = new HashMap<>();
+        private final Node valueNode;
+
+        private Children(final List<WebTemplateNode> webTemplateNodes) {
+            final List<Node> built = new ArrayList<>(webTemplateNodes.size());
+            final Map<String, Set<String>> ids = new HashMap<>();
+            Node value = null;
+            for (int i = 0; i < webTemplateNodes.size(); i++) {
+                final WebTemplateNode webTemplateNode = webTemplateNodes.get(i);
+                final Node node = new Node(webTemplateNode, webTemplateNode.getId(), webTemplateNode.getRmType(),
+                                           webTemplateNode.isMulti(), new Children(webTemplateNode.getChildren()));
+                built.add(node);
+                byId.putIfAbsent(node.id(), node);
+                byAqlPath.putIfAbsent(webTemplateNode.getAqlPath(true), i);
+                final String withoutPredicates = webTemplateNode.getAqlPath(false);
+                byAqlPathWithoutPredicates.putIfAbsent(withoutPredicates, i);
+                ids.computeIfAbsent(withoutPredicates, k -> new HashSet<>()).add(webTemplateNode.getId(false));
+                if (value == null && VALUE_IDS.contains(node.id())) {
+                    value = node;
+                }
+            }
+            ids.forEach((aqlPath, idsOfAqlPath) -> idsPerAqlPathWithoutPredicates.put(aqlPath, idsOfAqlPath.size()));
+            this.nodes = Collections.unmodifiableList(built);
+            this.valueNode = value;
+        }
+
+        public List<Node> getNodes() {
+            return nodes;
+        }
+
+        public boolean isEmpty() {
+            return nodes.isEmpty();
+        }
+
+        /**
+         * @return first child with the given id or null if there's none
+         */
+        public Node getById(final String id) {
+            return byId.get(id);
+        }
+
+        public boolean hasId(final String id) {
+            return byId.containsKey(id);
+        }
+
+        /**
+         * @return first child holding the value of an element (value, identifier_value, coded_text_value,
+         *         quantity_value or date_time_value) or null if there's none
+         */
+        public Node getValueNode() {
+            return valueNode;
+        }
+
+        /**
+         * Finds the first child whose AQL path equals the given one including other predicates or, if the AQL path
+         * without other predicates is unambiguous among the children (they all share the same id), without them.
+         *
+         * @return matching child or null if there's none
+         */
+        public Node getByAqlPath(final FormattedAqlPath aqlPath) {
+            final Integer withPredicates = byAqlPath.get(aqlPath.withOtherPredicates());
+            Integer withoutPredicates = null;
+            if (idsPerAqlPathWithoutPredicates.getOrDefault(aqlPath.withoutOtherPredicates(), 0) <= 1) {
+                withoutPredicates = byAqlPathWithoutPredicates.get(aqlPath.withoutOtherPredicates());
+            }
+            if (withPredicates == null && withoutPredicates == null) {
+                return null;
+            }
+            if (withPredicates == null) {
+                return nodes.get(withoutPredicates);
+            }
+            if (withoutPredicates == null) {
+                return nodes.get(withPredicates);
+            }
+            return nodes.get(Math.min(withPredicates, withoutPredicates));
+        }
+    }
+}
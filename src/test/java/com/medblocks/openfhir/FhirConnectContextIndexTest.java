@@ -0,0 +1,100 @@
+package com.medblocks.openfhir;
+
+import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
+import com.medblocks.openfhir.db.repository.FhirConnectContextRepository;
+import com.medblocks.openfhir.fc.schema.context.Context;
+import com.medblocks.openfhir.fc.schema.context.ContextProfile;
+import com.medblocks.openfhir.fc.schema.context.ContextTemplate;
+import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
+import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FhirConnectContextIndexTest {
+
+    @Test
+    public void findByProfiles() {
+        final List<FhirConnectContextEntity> contexts = new ArrayList<>();
+        contexts.add(context("1", "http://example.org/StructureDefinition/a"));
+        contexts.add(context("2", "[http://example.org/StructureDefinition/b, http://example.org/StructureDefinition/c]"));
+        contexts.add(context("3", "http://example.org/StructureDefinition/a"));
+        contexts.add(context("4", null));
+        final AtomicInteger findAllInvocations = new AtomicInteger();
+        final FhirConnectContextIndex index = new FhirConnectContextIndex(repository(contexts, findAllInvocations),
+                                                                          new OpenFhirStringUtils());
+
+        Assert.assertEquals("1", index.findByProfiles(List.of("http://example.org/StructureDefinition/a")).getId());
+        Assert.assertEquals("2", index.findByProfiles(List.of("http://example.org/StructureDefinition/c")).getId());
+        // when more than one matches, first one in the db wins
+        Assert.assertEquals("1", index.findByProfiles(List.of("http://example.org/StructureDefinition/c",
+                                                              "http://example.org/StructureDefinition/a")).getId());
+        Assert.assertNull(index.findByProfiles(List.of("http://example.org/StructureDefinition/x")));
+        Assert.assertEquals(1, index.contextsWithoutProfile().size());
+        Assert.assertEquals("4", index.contextsWithoutProfile().get(0).getId());
+        Assert.assertEquals(1, findAllInvocations.get());
+
+        contexts.remove(0);
+        index.invalidate();
+        Assert.assertEquals("3", index.findByProfiles(List.of("http://example.org/StructureDefinition/a")).getId());
+        Assert.assertEquals(2, findAllInvocations.get());
+    }
+
+    @Test
+    public void hasTemplate() {
+        final FhirConnectContextEntity withTemplate = context("1", null);
+        final ContextTemplate template = new ContextTemplate();
+        template.setId("KDS Laborbericht");
+        withTemplate.getFhirConnectContext().getContext().setTemplate(template);
+        final FhirConnectContextIndex index = new FhirConnectContextIndex(
+                repository(List.of(withTemplate, context("2", null)), new AtomicInteger()),
+                new OpenFhirStringUtils());
+
+        Assert.assertTrue(index.hasTemplate("KDS Laborbericht"));
+        Assert.assertTrue(index.hasTemplate("kds_laborbericht"));
+        Assert.assertFalse(index.hasTemplate("unknown"));
+        Assert.assertFalse(index.hasTemplate(null));
+    }
+
+    private FhirConnectContextEntity context(final String id, final String profileUrl) {
+        final ContextProfile profile = new ContextProfile();
+        profile.setUrl(profileUrl);
+        final Context context = new Context();
+        context.setProfile(profile);
+        final FhirConnectContext fhirConnectContext = new FhirConnectContext();
+        fhirConnectContext.setContext(context);
+        return FhirConnectContextEntity.builder().id(id).fhirConnectContext(fhirConnectContext).build();
+    }
+
+    private FhirConnectContextRepository repository(final List<FhirConnectContextEntity> contexts,
+                                                    final AtomicInteger findAllInvocations) {
+        return new FhirConnectContextRepository() {
+            @Override
+            public FhirConnectContextEntity findByTemplateId(final String templateId) {
+                return null;
+            }
+
+            @Override
+            public List<FhirConnectContextEntity> findAll() {
+                findAllInvocations.incrementAndGet();
+                return new ArrayList<>(contexts);
+            }
+
+            @Override
+            public FhirConnectContextEntity save(final FhirConnectContextEntity entity) {
+                return entity;
+            }
+
+            @Override
+            public FhirConnectContextEntity byId(final String id) {
+                return null;
+            }
+
+            @Override
+            public void deleteAll() {
+            }
+        };
+    }
+}
@@ -11,10 +11,13 @@ import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
 import com.medblocks.openfhir.tofhir.IntermediateCacheProcessing;
 import com.medblocks.openfhir.tofhir.OpenEhrToFhir;
 import com.medblocks.openfhir.toopenehr.FhirToOpenEhr;
+import com.medblocks.openfhir.util.CachingFhirPathR4;
 import com.medblocks.openfhir.util.FhirConnectModelMerger;
 import com.medblocks.openfhir.util.FhirInstanceCreator;
 import com.medblocks.openfhir.util.FhirInstanceCreatorUtility;
 import com.medblocks.openfhir.util.FhirInstancePopulator;
+import com.medblocks.openfhir.util.FlatJsonObjectMarshaller;
+import com.medblocks.openfhir.util.FlatJsonObjectUnmarshaller;
 import com.medblocks.openfhir.util.OpenEhrCachedUtils;
 import com.medblocks.openfhir.util.OpenEhrConditionEvaluator;
 import com.medblocks.openfhir.util.OpenEhrPopulator;
@@ -26,8 +29,6 @@ import jakarta.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import org.apache.commons.io.IOUtils;
-import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.marshal.FlatJsonMarshaller;
-import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IIdType;
@@ -43,7 +44,7 @@ public abstract class GenericTest {
     final OpenFhirStringUtils openFhirStringUtils = new OpenFhirStringUtils();
     final OpenFhirMapperUtils openFhirMapperUtils = new OpenFhirMapperUtils();
     final FhirConnectModelMerger fhirConnectModelMerger = new FhirConnectModelMerger();
-    protected final FhirPathR4 fhirPath = new FhirPathR4(FhirContext.forR4());
+    protected final FhirPathR4 fhirPath = new CachingFhirPathR4(FhirContext.forR4(), 10000);
     final JsonParser jsonParser = (JsonParser) FhirContext.forR4().newJsonParser();
 
     protected TestOpenFhirMappingContext repo;
@@ -66,7 +67,8 @@ public abstract class GenericTest {
         });
 
         final FhirInstanceCreatorUtility fhirInstanceCreatorUtility = new FhirInstanceCreatorUtility(openFhirStringUtils);
-        openEhrToFhir = new OpenEhrToFhir(new FlatJsonMarshaller(),
+        openEhrToFhir = new OpenEhrToFhir(new FlatJsonObjectMarshaller(),
+                                          new FlatJsonObjectUnmarshaller(),
                                           repo,
                                           new OpenEhrCachedUtils(null),
                                           new Gson(),
@@ -81,7 +83,7 @@ public abstract class GenericTest {
                                           new OpenEhrConditionEvaluator(openFhirStringUtils));
         fhirToOpenEhr = new FhirToOpenEhr(fhirPath,
                                           new OpenFhirStringUtils(),
-                                          new FlatJsonUnmarshaller(),
+                                          new FlatJsonObjectUnmarshaller(),
                                           new Gson(),
                                           new OpenEhrRmWorker(openFhirStringUtils, openFhirMapperUtils),
                                           openFhirStringUtils,
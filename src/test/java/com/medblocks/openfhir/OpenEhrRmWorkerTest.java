@@ -0,0 +1,42 @@
+package com.medblocks.openfhir;
+
+import com.medblocks.openfhir.toopenehr.FhirToOpenEhrHelper;
+import com.medblocks.openfhir.util.OpenFhirMapperUtils;
+import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import com.medblocks.openfhir.util.WebTemplateIndex;
+import java.io.IOException;
+import java.util.List;
+import org.apache.xmlbeans.XmlException;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.ehrbase.openehr.sdk.webtemplate.parser.OPTParser;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openehr.schemas.v1.TemplateDocument;
+
+public class OpenEhrRmWorkerTest {
+
+    private final OpenEhrRmWorker openEhrRmWorker = new OpenEhrRmWorker(new OpenFhirStringUtils(),
+                                                                        new OpenFhirMapperUtils());
+
+    @Test
+    public void resolutionsAreMemoizedPerTemplate() throws IOException, XmlException {
+        final WebTemplate webTemplate = new OPTParser(TemplateDocument.Factory.parse(
+                getClass().getResourceAsStream("/growth_chart/Growth chart.opt")).getTemplate()).parse();
+        final String path = "growth_chart/content[openEHR-EHR-OBSERVATION.body_weight.v2]/data[at0002]/events[at0003]/data[at0001]/items[at0004]";
+
+        final FhirToOpenEhrHelper helper = FhirToOpenEhrHelper.builder().openEhrPath(path).build();
+        openEhrRmWorker.fixFlatWithOccurrences(List.of(helper), webTemplate);
+        Assert.assertEquals("growth_chart/body_weight/any_event[n]/weight", helper.getOpenEhrPath());
+        Assert.assertEquals("DV_QUANTITY", helper.getOpenEhrType());
+        Assert.assertEquals(1, WebTemplateIndex.of(webTemplate).getResolvedPathsSize());
+
+        final WebTemplateIndex.ResolvedPath resolved = openEhrRmWorker.resolve(path, null, webTemplate);
+        Assert.assertEquals(helper.getOpenEhrPath(), resolved.openEhrPath());
+        Assert.assertSame(resolved, openEhrRmWorker.resolve(path, null, webTemplate));
+        Assert.assertEquals(1, WebTemplateIndex.of(webTemplate).getResolvedPathsSize());
+
+        // forced type is a part of the key
+        openEhrRmWorker.resolve(path, "QUANTITY", webTemplate);
+        Assert.assertEquals(2, WebTemplateIndex.of(webTemplate).getResolvedPathsSize());
+    }
+}
@@ -19,8 +19,8 @@ public class OpenFhirEngineTest {
                 null,
                 null,
                 null,
-                null,
-                new Gson());
+                new Gson(),
+                null);
         final String flatJson = IOUtils.toString(getClass().getResourceAsStream("/growth_chart/growth_chart_flat.json"));
         final String templateIdFromOpenEhr = openFhirEngine.getTemplateIdFromOpenEhr(flatJson);
         Assert.assertEquals("growth_chart", templateIdFromOpenEhr);
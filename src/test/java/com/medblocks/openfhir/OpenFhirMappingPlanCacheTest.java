@@ -0,0 +1,124 @@
+package com.medblocks.openfhir;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OpenFhirMappingPlanCacheTest {
+
+    @Test
+    public void planIsBuiltOnceAndSharedUntilInvalidated() {
+        final OpenFhirMappingPlanCache cache = new OpenFhirMappingPlanCache();
+        final AtomicInteger builds = new AtomicInteger();
+
+        final OpenFhirContextRepository first = cache.getOrBuild("Growth chart", id -> {
+            builds.incrementAndGet();
+            Assert.assertEquals("growth_chart", id);
+            return new OpenFhirContextRepository();
+        });
+        final OpenFhirContextRepository second = cache.getOrBuild("growth_chart", id -> {
+            builds.incrementAndGet();
+            return new OpenFhirContextRepository();
+        });
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, builds.get());
+
+        cache.invalidate("Growth chart");
+        Assert.assertEquals(0, cache.size());
+        final OpenFhirContextRepository third = cache.getOrBuild("growth_chart", id -> {
+            builds.incrementAndGet();
+            return new OpenFhirContextRepository();
+        });
+        Assert.assertNotSame(first, third);
+        Assert.assertEquals(2, builds.get());
+    }
+
+    @Test
+    public void invalidateOnlyAffectsGivenTemplate() {
+        final OpenFhirMappingPlanCache cache = new OpenFhirMappingPlanCache();
+        final OpenFhirContextRepository growthChart = cache.getOrBuild("growth_chart",
+                                                                       id -> new OpenFhirContextRepository());
+        final OpenFhirContextRepository bloodPressure = cache.getOrBuild("blood_pressure",
+                                                                         id -> new OpenFhirContextRepository());
+
+        cache.invalidate("blood_pressure");
+        Assert.assertSame(growthChart, cache.getOrBuild("growth_chart", id -> new OpenFhirContextRepository()));
+        Assert.assertNotSame(bloodPressure, cache.getOrBuild("blood_pressure", id -> new OpenFhirContextRepository()));
+
+        final long revisionBefore = cache.revision("growth_chart");
+        cache.invalidateAll();
+        Assert.assertEquals(revisionBefore + 1, cache.revision("growth_chart"));
+        Assert.assertNotSame(growthChart, cache.getOrBuild("growth_chart", id -> new OpenFhirContextRepository()));
+    }
+
+    @Test
+    public void listenersRunOncePerBuiltPlan() {
+        final OpenFhirMappingPlanCache cache = new OpenFhirMappingPlanCache();
+        final List<OpenFhirContextRepository> built = new ArrayList<>();
+        cache.onPlanBuilt((templateId, plan) -> {
+            Assert.assertEquals("growth_chart", templateId);
+            built.add(plan);
+        });
+
+        final OpenFhirContextRepository first = cache.getOrBuild("Growth chart",
+                                                                 id -> new OpenFhirContextRepository());
+        cache.getOrBuild("growth_chart", id -> new OpenFhirContextRepository());
+        Assert.assertEquals(List.of(first), built);
+
+        cache.invalidate("growth_chart");
+        final OpenFhirContextRepository second = cache.getOrBuild("growth_chart",
+                                                                  id -> new OpenFhirContextRepository());
+        Assert.assertEquals(2, built.size());
+        Assert.assertSame(second, built.get(1));
+    }
+
+    @Test
+    public void buildingPlanDoesNotBlockOtherTemplates() throws Exception {
+        final OpenFhirMappingPlanCache cache = new OpenFhirMappingPlanCache();
+        final CountDownLatch building = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final OpenFhirContextRepository slow = new OpenFhirContextRepository();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<OpenFhirContextRepository> first = executor.submit(() -> cache.getOrBuild("slow", id -> {
+                building.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return slow;
+            }));
+            Assert.assertTrue(building.await(5, TimeUnit.SECONDS));
+            final Future<OpenFhirContextRepository> waiting = executor.submit(
+                    () -> cache.getOrBuild("slow", id -> new OpenFhirContextRepository()));
+
+            // another template is built while the slow one is still being built
+            cache.getOrBuild("other", id -> new OpenFhirContextRepository());
+            Assert.assertFalse(waiting.isDone());
+
+            release.countDown();
+            Assert.assertSame(slow, first.get(5, TimeUnit.SECONDS));
+            Assert.assertSame(slow, waiting.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedBuildIsRetried() {
+        final OpenFhirMappingPlanCache cache = new OpenFhirMappingPlanCache();
+        Assert.assertThrows(IllegalStateException.class, () -> cache.getOrBuild("growth_chart", id -> {
+            throw new IllegalStateException("No context");
+        }));
+        Assert.assertEquals(0, cache.size());
+        Assert.assertNotNull(cache.getOrBuild("growth_chart", id -> new OpenFhirContextRepository()));
+    }
+}
@@ -0,0 +1,49 @@
+package com.medblocks.openfhir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RequestEnvelopeTest {
+
+    @Test
+    public void sniffFlat() throws IOException {
+        final RequestEnvelope envelope = RequestEnvelope.sniff(read("/growth_chart/growth_chart_flat.json"));
+        Assert.assertEquals(RequestEnvelope.Format.FLAT, envelope.getFormat());
+        Assert.assertEquals("growth_chart", envelope.getTemplateId());
+        Assert.assertNull(envelope.getResourceType());
+    }
+
+    @Test
+    public void sniffCanonical() throws IOException {
+        final RequestEnvelope envelope = RequestEnvelope.sniff(read("/growth_chart/growth_chart_composition.json"));
+        Assert.assertTrue(envelope.isCanonicalComposition());
+        Assert.assertEquals("Growth chart", envelope.getTemplateId());
+
+        // _type doesn't have to be the first key
+        final RequestEnvelope typeLast = RequestEnvelope.sniff(
+                "{\"archetype_details\": {\"archetype_id\": {\"value\": \"openEHR-EHR-COMPOSITION.report.v1\"},"
+                        + " \"template_id\": {\"value\": \"test\"}}, \"content\": [], \"_type\": \"COMPOSITION\"}");
+        Assert.assertTrue(typeLast.isCanonicalComposition());
+        Assert.assertEquals("test", typeLast.getTemplateId());
+    }
+
+    @Test
+    public void sniffFhir() {
+        final RequestEnvelope envelope = RequestEnvelope.sniff(
+                "{\"meta\": {\"profile\": [\"http://example.org\"]}, \"resourceType\": \"Bundle\", \"entry\": []}");
+        Assert.assertTrue(envelope.isFhir());
+        Assert.assertEquals("Bundle", envelope.getResourceType());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sniffInvalid() {
+        RequestEnvelope.sniff("[{\"resourceType\": \"Bundle\"}]");
+    }
+
+    private String read(final String path) throws IOException {
+        return IOUtils.toString(getClass().getResourceAsStream(path), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,66 @@
+package com.medblocks.openfhir;
+
+import com.medblocks.openfhir.fc.OpenFhirFhirConfig;
+import com.medblocks.openfhir.fc.OpenFhirFhirConnectModelMapper;
+import com.medblocks.openfhir.fc.schema.model.Condition;
+import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResourceTypeMapperIndexTest {
+
+    @Test
+    public void candidatesByResourceType() {
+        final OpenFhirFhirConnectModelMapper observation = mapper("observation", "Observation", null);
+        final OpenFhirFhirConnectModelMapper bloodPressure = mapper("blood-pressure", "Observation",
+                                                                    condition("$resource.code.coding", "code",
+                                                                              "85354-9"));
+        final OpenFhirFhirConnectModelMapper patient = mapper("patient", "Patient", null);
+        final OpenFhirFhirConnectModelMapper anyResource = mapper("any", "DomainResource", null);
+        final OpenFhirFhirConnectModelMapper slot = OpenFhirFhirConnectModelMapper.builder().name("slot").build();
+
+        final Map<String, List<OpenFhirFhirConnectModelMapper>> mappers = new LinkedHashMap<>();
+        mappers.put("observations", List.of(observation, bloodPressure));
+        mappers.put("others", List.of(patient, anyResource, slot));
+
+        final ResourceTypeMapperIndex index = new ResourceTypeMapperIndex(mappers, new OpenFhirStringUtils());
+
+        final List<ResourceTypeMapperIndex.IndexedMapper> observationCandidates = index.getCandidates("Observation");
+        Assert.assertEquals(List.of(observation, bloodPressure, anyResource),
+                            observationCandidates.stream().map(ResourceTypeMapperIndex.IndexedMapper::mapper)
+                                    .toList());
+        Assert.assertEquals("Observation", observationCandidates.get(0).fhirPathWithCondition());
+        // condition is amended when the index is built
+        Assert.assertTrue(observationCandidates.get(1).fhirPathWithCondition().startsWith("Observation.code.coding"));
+        Assert.assertSame(observationCandidates, index.getCandidates("Observation"));
+
+        Assert.assertEquals(List.of(patient, anyResource),
+                            index.getCandidates("Patient").stream().map(ResourceTypeMapperIndex.IndexedMapper::mapper)
+                                    .toList());
+        Assert.assertEquals(List.of(anyResource),
+                            index.getCandidates("Condition").stream().map(ResourceTypeMapperIndex.IndexedMapper::mapper)
+                                    .toList());
+    }
+
+    private OpenFhirFhirConnectModelMapper mapper(final String name, final String resource,
+                                                  final Condition condition) {
+        final OpenFhirFhirConfig fhirConfig = new OpenFhirFhirConfig();
+        fhirConfig.setResource(resource);
+        if (condition != null) {
+            fhirConfig.setCondition(List.of(condition));
+        }
+        return OpenFhirFhirConnectModelMapper.builder().name(name).fhirConfig(fhirConfig).build();
+    }
+
+    private Condition condition(final String targetRoot, final String targetAttribute, final String criteria) {
+        final Condition condition = new Condition();
+        condition.setTargetRoot(targetRoot);
+        condition.setTargetAttribute(targetAttribute);
+        condition.setOperator("one of");
+        condition.setCriteria(criteria);
+        return condition;
+    }
+}
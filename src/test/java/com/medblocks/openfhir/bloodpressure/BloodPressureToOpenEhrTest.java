@@ -72,6 +72,18 @@ public class BloodPressureToOpenEhrTest extends GenericTest {
                                     .getAsString());
     }
 
+    @Test
+    public void testBloodPressure_flatRepeatedWithSharedMappers() {
+        final Observation observation = testBloodPressureObservation();
+        final JsonObject first = fhirToOpenEhr.fhirToFlatJsonObject(context, observation, operationaltemplate);
+        final JsonObject second = fhirToOpenEhr.fhirToFlatJsonObject(context, observation, operationaltemplate);
+        Assert.assertEquals(first, second);
+
+        // mappers are shared, not copied for every Resource
+        Assert.assertSame(repo.getMapperForResource(observation).get(0),
+                          repo.getMapperForResource(observation).get(0));
+    }
+
     @Test
     public void testBloodPressure_RM() {
         final Composition composition = fhirToOpenEhr.fhirToCompositionRm(context,
@@ -1,8 +1,13 @@
 package com.medblocks.openfhir.growthchart;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import com.medblocks.openfhir.GenericTest;
 import com.medblocks.openfhir.util.OpenFhirMapperUtils;
 import com.nedap.archie.rm.composition.Composition;
+import com.nedap.archie.rm.composition.ContentItem;
 import java.io.IOException;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -106,5 +111,40 @@ public class GrowthChartToFhirTest extends GenericTest {
         Assert.assertEquals("m", thirdHead.getValueQuantity().getUnit());
     }
 
+    @Test
+    public void growthChartFlatToFhir() {
+        final String flat = getFlat(HELPER_LOCATION + FLAT);
+        final Composition composition = new FlatJsonUnmarshaller().unmarshal(flat, webTemplate);
+        final Bundle fromComposition = openEhrToFhir.compositionToFhir(context, composition, operationaltemplate);
+
+        final Bundle fromFlat = openEhrToFhir.flatToFhir(context, new Gson().fromJson(flat, JsonObject.class),
+                                                         operationaltemplate);
+
+        Assert.assertEquals(12, fromFlat.getEntry().size());
+        final IParser parser = FhirContext.forR4().newJsonParser();
+        Assert.assertEquals(parser.encodeResourceToString(fromComposition), parser.encodeResourceToString(fromFlat));
+    }
 
+    @Test
+    public void toFhir_parallelArchetypes() {
+        final Composition composition = new FlatJsonUnmarshaller().unmarshal(getFlat(HELPER_LOCATION + FLAT),
+                                                                             webTemplate);
+        // body weight, height, BMI and head circumference are prepared concurrently
+        Assert.assertTrue(composition.getContent().stream().map(ContentItem::getArchetypeNodeId).distinct()
+                                  .count() > 1);
+        final IParser parser = FhirContext.forR4().newJsonParser();
+        final String sequential = parser.encodeResourceToString(
+                openEhrToFhir.compositionToFhir(context, composition, operationaltemplate));
+
+        openEhrToFhir.setArchetypeParallelism(4);
+        try {
+            for (int i = 0; i < 10; i++) {
+                final String parallel = parser.encodeResourceToString(
+                        openEhrToFhir.compositionToFhir(context, composition, operationaltemplate));
+                Assert.assertEquals(sequential, parallel);
+            }
+        } finally {
+            openEhrToFhir.shutdownArchetypePool();
+        }
+    }
 }
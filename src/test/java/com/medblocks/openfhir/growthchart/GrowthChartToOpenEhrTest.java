@@ -53,6 +53,25 @@ public class GrowthChartToOpenEhrTest extends GenericTest {
     }
 
 
+    @Test
+    public void toOpenEhr_parallelEntries() {
+        final Bundle bundle = growthChartTestBundle();
+        final JsonObject sequential = fhirToOpenEhr.fhirToFlatJsonObject(context, bundle, operationaltemplate);
+        // the head circumference mapper matches three Observations, each mapped to its own event
+        Assert.assertTrue(sequential.has("growth_chart/head_circumference/any_event:2/time"));
+
+        fhirToOpenEhr.setEntryParallelism(4);
+        try {
+            for (int i = 0; i < 10; i++) {
+                final JsonObject parallel = fhirToOpenEhr.fhirToFlatJsonObject(context, bundle,
+                                                                               operationaltemplate);
+                Assert.assertEquals(sequential.toString(), parallel.toString());
+            }
+        } finally {
+            fhirToOpenEhr.shutdownEntryPool();
+        }
+    }
+
     @Test
     public void growthChart_flat() {
         final Bundle bundle = growthChartTestBundle();
@@ -14,10 +14,13 @@ import com.medblocks.openfhir.kds.ehrbase.EhrBaseTestClient;
 import com.medblocks.openfhir.tofhir.IntermediateCacheProcessing;
 import com.medblocks.openfhir.tofhir.OpenEhrToFhir;
 import com.medblocks.openfhir.toopenehr.FhirToOpenEhr;
+import com.medblocks.openfhir.util.CachingFhirPathR4;
 import com.medblocks.openfhir.util.FhirConnectModelMerger;
 import com.medblocks.openfhir.util.FhirInstanceCreator;
 import com.medblocks.openfhir.util.FhirInstanceCreatorUtility;
 import com.medblocks.openfhir.util.FhirInstancePopulator;
+import com.medblocks.openfhir.util.FlatJsonObjectMarshaller;
+import com.medblocks.openfhir.util.FlatJsonObjectUnmarshaller;
 import com.medblocks.openfhir.util.OpenEhrCachedUtils;
 import com.medblocks.openfhir.util.OpenEhrConditionEvaluator;
 import com.medblocks.openfhir.util.OpenEhrPopulator;
@@ -33,7 +36,6 @@ import java.util.Arrays;
 import java.util.Map;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
-import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.marshal.FlatJsonMarshaller;
 import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
 import org.hl7.fhir.instance.model.api.IBase;
@@ -64,7 +66,7 @@ public abstract class KdsBidirectionalTest {
     final OpenFhirStringUtils openFhirStringUtils = new OpenFhirStringUtils();
     final OpenFhirMapperUtils openFhirMapperUtils = new OpenFhirMapperUtils();
     final FhirConnectModelMerger fhirConnectModelMerger = new FhirConnectModelMerger();
-    final FhirPathR4 fhirPath = new FhirPathR4(FhirContext.forR4());
+    final FhirPathR4 fhirPath = new CachingFhirPathR4(FhirContext.forR4(), 10000);
     final JsonParser jsonParser = (JsonParser) FhirContext.forR4().newJsonParser();
 
     TestOpenFhirMappingContext repo;
@@ -91,7 +93,8 @@ public abstract class KdsBidirectionalTest {
 
         final FhirInstanceCreatorUtility fhirInstanceCreatorUtility = new FhirInstanceCreatorUtility(
                 openFhirStringUtils);
-        openEhrToFhir = new OpenEhrToFhir(new FlatJsonMarshaller(),
+        openEhrToFhir = new OpenEhrToFhir(new FlatJsonObjectMarshaller(),
+                                          new FlatJsonObjectUnmarshaller(),
                                           repo,
                                           new OpenEhrCachedUtils(null),
                                           new Gson(),
@@ -106,7 +109,7 @@ public abstract class KdsBidirectionalTest {
                                           new OpenEhrConditionEvaluator(openFhirStringUtils));
         fhirToOpenEhr = new FhirToOpenEhr(fhirPath,
                                           new OpenFhirStringUtils(),
-                                          new FlatJsonUnmarshaller(),
+                                          new FlatJsonObjectUnmarshaller(),
                                           new Gson(),
                                           new OpenEhrRmWorker(openFhirStringUtils, openFhirMapperUtils),
                                           openFhirStringUtils,
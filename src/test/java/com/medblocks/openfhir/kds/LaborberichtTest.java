@@ -247,6 +247,20 @@ public class LaborberichtTest extends KdsBidirectionalTest {
 //        assertEquals("testmethode", observation.getMethod().getText());
     }
 
+    @Test
+    public void toOpenEhr_parallelEntries() {
+        final Bundle testBundle = getTestBundle(HELPER_LOCATION + BUNDLE);
+        final JsonObject sequential = fhirToOpenEhr.fhirToFlatJsonObject(context, testBundle, operationaltemplate);
+
+        fhirToOpenEhr.setEntryParallelism(4);
+        try {
+            final JsonObject parallel = fhirToOpenEhr.fhirToFlatJsonObject(context, testBundle, operationaltemplate);
+            Assert.assertEquals(sequential.toString(), parallel.toString());
+        } finally {
+            fhirToOpenEhr.setEntryParallelism(0);
+        }
+    }
+
     @Test
     public void toFhir_multiples() {
         final Composition compositionFromFlat = new FlatJsonUnmarshaller().unmarshal(
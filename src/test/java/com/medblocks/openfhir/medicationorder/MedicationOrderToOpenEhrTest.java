@@ -47,6 +47,16 @@ public class MedicationOrderToOpenEhrTest extends GenericTest {
         webTemplate = new OPTParser(operationaltemplate).parse();
     }
 
+    @Test
+    public void mapperForArchetypeIsWorkingCopy() {
+        final OpenFhirFhirConnectModelMapper shared = repo.getSharedMapperForArchetype(
+                "medication order", "openEHR-EHR-INSTRUCTION.medication_order.v2").get(0);
+        Assert.assertSame(shared, repo.getSharedMapperForArchetype(
+                "medication order", "openEHR-EHR-INSTRUCTION.medication_order.v2").get(0));
+        Assert.assertNotSame(shared, repo.getMapperForArchetype(
+                "medication order", "openEHR-EHR-INSTRUCTION.medication_order.v2").get(0));
+    }
+
     @Test
     public void medicationOrder_flat() {
         final List<FhirToOpenEhrHelper> helpers = new ArrayList<>();
@@ -1,6 +1,12 @@
 package com.medblocks.openfhir.new2;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import com.medblocks.openfhir.GenericTest;
+import com.medblocks.openfhir.util.FlatJsonObjectMarshaller;
+import com.medblocks.openfhir.util.WebTemplateIndex;
 import com.nedap.archie.rm.composition.Composition;
 import java.io.IOException;
 import java.util.List;
@@ -8,6 +14,7 @@ import java.util.stream.Collectors;
 import lombok.SneakyThrows;
 import org.apache.commons.io.IOUtils;
 import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
 import org.ehrbase.openehr.sdk.webtemplate.parser.OPTParser;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Observation;
@@ -181,6 +188,29 @@ public class News2ToFhirTest extends GenericTest {
         Assert.assertEquals("http://unitsofmeasure.org", poximetryObservation.get(0).getValueQuantity().getSystem());
     }
 
+    @Test
+    public void toFhir_flatWithContextShortcuts() {
+        final IParser parser = FhirContext.forR4().newJsonParser();
+        final JsonObject flat = new Gson().fromJson(getFlat(HELPER_LOCATION + FLAT), JsonObject.class);
+        // otherwise unmarshalling defaults it to now
+        flat.addProperty("ctx/time", "2024-08-25T08:21:39+02:00");
+        final WebTemplate parsed = new OPTParser(operationaltemplate).parse();
+        final Composition composition = new FlatJsonUnmarshaller().unmarshal(flat.toString(), parsed);
+        final String fromComposition = parser.encodeResourceToString(
+                openEhrToFhir.compositionToFhir(context, composition, operationaltemplate));
+
+        // ctx/ shortcuts and index-less paths aren't canonical, so they're unmarshalled first
+        Assert.assertFalse(flat.keySet().stream().allMatch(WebTemplateIndex.of(parsed)::isCanonicalFlatPath));
+        Assert.assertEquals(fromComposition, parser.encodeResourceToString(
+                openEhrToFhir.flatToFhir(context, flat, operationaltemplate)));
+
+        // whereas marshalled ones are mapped directly
+        final JsonObject canonical = new FlatJsonObjectMarshaller().toFlatJsonObject(composition, parsed);
+        Assert.assertTrue(canonical.keySet().stream().allMatch(WebTemplateIndex.of(parsed)::isCanonicalFlatPath));
+        Assert.assertEquals(fromComposition, parser.encodeResourceToString(
+                openEhrToFhir.flatToFhir(context, canonical, operationaltemplate)));
+    }
+
     private Observation.ObservationComponentComponent getComponentByCode(final Observation observation,
                                                                          final String code, boolean assertOnlyOne) {
         final List<Observation.ObservationComponentComponent> allMatching = observation.getComponent().stream()
@@ -0,0 +1,79 @@
+package com.medblocks.openfhir.rest;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.medblocks.openfhir.GenericTest;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import lombok.SneakyThrows;
+import org.apache.commons.io.IOUtils;
+import org.ehrbase.openehr.sdk.webtemplate.parser.OPTParser;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+/**
+ * Batch of flat growth chart Compositions mapped to FHIR with the real mapping engine, concurrently
+ */
+public class GrowthChartBatchToFhirTest extends GenericTest {
+
+    final String MODEL_MAPPINGS = "/growth_chart/";
+    final String CONTEXT_MAPPING = "/growth_chart/growth-chart.context.yml";
+    final String HELPER_LOCATION = "/growth_chart/";
+    final String OPT = "Growth chart.opt";
+    final String FLAT = "growth_chart_flat.json";
+
+    private final Gson gson = new Gson();
+    private final IParser parser = FhirContext.forR4().newJsonParser();
+
+    @SneakyThrows
+    @Override
+    protected void prepareState() {
+        context = getContext(CONTEXT_MAPPING);
+        operationaltemplateSerialized = IOUtils.toString(this.getClass().getResourceAsStream(HELPER_LOCATION + OPT));
+        operationaltemplate = getOperationalTemplate();
+        repo.initRepository(context, operationaltemplate, getClass().getResource(MODEL_MAPPINGS).getFile());
+        webTemplate = new OPTParser(operationaltemplate).parse();
+    }
+
+    @Test
+    public void batchMatchesSingleMappings() throws IOException {
+        final String flat = gson.fromJson(getFlat(HELPER_LOCATION + FLAT), JsonObject.class).toString();
+        final String single = toFhir(flat);
+
+        // a line that isn't json in the middle of the batch doesn't stop the rest
+        final String in = IntStream.range(0, 20)
+                .mapToObj(i -> i == 10 ? "{" : flat)
+                .collect(Collectors.joining("\n"));
+        final NdjsonToFhirBatch batch = new NdjsonToFhirBatch(
+                null, null, null, new MappingBulkheads(false, 4, 16, 5000, new MockEnvironment(), id -> true), 4);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            batch.convert(new ByteArrayInputStream(in.getBytes(StandardCharsets.UTF_8)), out, this::toFhir);
+        } finally {
+            batch.shutdown();
+        }
+
+        final List<String> lines = out.toString(StandardCharsets.UTF_8).lines().collect(Collectors.toList());
+        Assert.assertEquals(20, lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            if (i == 10) {
+                Assert.assertTrue(lines.get(i).startsWith("{\"line\":11,\"error\":"));
+            } else {
+                Assert.assertEquals(single, lines.get(i));
+            }
+        }
+    }
+
+    private String toFhir(final String flat) {
+        return parser.encodeResourceToString(
+                openEhrToFhir.flatToFhir(context, gson.fromJson(flat, JsonObject.class), operationaltemplate));
+    }
+}
@@ -0,0 +1,104 @@
+package com.medblocks.openfhir.rest;
+
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.env.MockEnvironment;
+
+public class MappingBulkheadsTest {
+
+    @Test
+    public void disabled() {
+        final MappingBulkheads bulkheads = new MappingBulkheads(false, 1, 0, 0, new MockEnvironment(), id -> true);
+        try (MappingBulkheads.Permit first = bulkheads.acquire("template", MappingBulkheads.Direction.TO_FHIR);
+                MappingBulkheads.Permit second = bulkheads.acquire("template", MappingBulkheads.Direction.TO_FHIR)) {
+            Assert.assertTrue(bulkheads.getStatistics().isEmpty());
+        }
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() {
+        final MappingBulkheads bulkheads = new MappingBulkheads(true, 1, 0, 1000, new MockEnvironment(), id -> true);
+        try (MappingBulkheads.Permit ignored = bulkheads.acquire("template", MappingBulkheads.Direction.TO_FHIR)) {
+            final BulkheadRejectedException rejected = Assert.assertThrows(BulkheadRejectedException.class,
+                    () -> bulkheads.acquire("template", MappingBulkheads.Direction.TO_FHIR));
+            Assert.assertEquals(HttpStatus.TOO_MANY_REQUESTS, rejected.getStatusCode());
+
+            // other templates and directions have their own bulkheads
+            bulkheads.acquire("other", MappingBulkheads.Direction.TO_FHIR).close();
+            bulkheads.acquire("template", MappingBulkheads.Direction.TO_OPENEHR).close();
+        }
+        bulkheads.acquire("template", MappingBulkheads.Direction.TO_FHIR).close();
+        Assert.assertEquals(1L, bulkheads.getStatistics().get("tofhir.template").get("rejected"));
+    }
+
+    @Test
+    public void timesOutWhileQueued() {
+        final MappingBulkheads bulkheads = new MappingBulkheads(true, 1, 1, 20, new MockEnvironment(), id -> true);
+        try (MappingBulkheads.Permit ignored = bulkheads.acquire(null, MappingBulkheads.Direction.TO_OPENEHR)) {
+            final BulkheadRejectedException rejected = Assert.assertThrows(BulkheadRejectedException.class,
+                    () -> bulkheads.acquire(null, MappingBulkheads.Direction.TO_OPENEHR));
+            Assert.assertEquals(HttpStatus.SERVICE_UNAVAILABLE, rejected.getStatusCode());
+        }
+        Assert.assertEquals(1L, bulkheads.getStatistics().get("toopenehr.*").get("timedOut"));
+        Assert.assertEquals(0, bulkheads.getStatistics().get("toopenehr.*").get("waiting"));
+    }
+
+    @Test
+    public void waitsForPermit() throws Exception {
+        final MappingBulkheads bulkheads = new MappingBulkheads(true, 1, 1, 5000, new MockEnvironment(), id -> true);
+        final MappingBulkheads.Permit first = bulkheads.acquire("template", MappingBulkheads.Direction.TO_FHIR);
+        final Thread releasing = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            first.close();
+        });
+        releasing.start();
+        bulkheads.acquire("template", MappingBulkheads.Direction.TO_FHIR).close();
+        releasing.join();
+    }
+
+    @Test
+    public void limitsOverriddenPerTemplate() {
+        final MockEnvironment environment = new MockEnvironment()
+                .withProperty("openfhir.bulkhead.toopenehr.heavy.max-concurrent", "2");
+        final MappingBulkheads bulkheads = new MappingBulkheads(true, 1, 0, 1000, environment, id -> true);
+        try (MappingBulkheads.Permit first = bulkheads.acquire("heavy", MappingBulkheads.Direction.TO_OPENEHR);
+                MappingBulkheads.Permit second = bulkheads.acquire("heavy", MappingBulkheads.Direction.TO_OPENEHR)) {
+            Assert.assertThrows(BulkheadRejectedException.class,
+                                () -> bulkheads.acquire("heavy", MappingBulkheads.Direction.TO_OPENEHR));
+        }
+        Assert.assertEquals(2, bulkheads.getStatistics().get("toopenehr.heavy").get("maxConcurrent"));
+    }
+
+    @Test
+    public void unknownTemplatesShareBulkhead() {
+        final MappingBulkheads bulkheads = new MappingBulkheads(true, 1, 0, 1000, new MockEnvironment(),
+                                                                "known"::equals);
+        try (MappingBulkheads.Permit ignored = bulkheads.acquire("unknown", MappingBulkheads.Direction.TO_FHIR)) {
+            Assert.assertThrows(BulkheadRejectedException.class,
+                                () -> bulkheads.acquire("another unknown", MappingBulkheads.Direction.TO_FHIR));
+            Assert.assertThrows(BulkheadRejectedException.class,
+                                () -> bulkheads.acquire(null, MappingBulkheads.Direction.TO_FHIR));
+            bulkheads.acquire("known", MappingBulkheads.Direction.TO_FHIR).close();
+        }
+        Assert.assertEquals(Set.of("tofhir.*", "tofhir.known"), bulkheads.getStatistics().keySet());
+    }
+
+    @Test
+    public void permitIsReleasedOnce() {
+        final MappingBulkheads bulkheads = new MappingBulkheads(true, 2, 0, 1000, new MockEnvironment(), id -> true);
+        final MappingBulkheads.Permit permit = bulkheads.acquire("template", MappingBulkheads.Direction.TO_FHIR);
+        permit.close();
+        permit.close();
+        try (MappingBulkheads.Permit first = bulkheads.acquire("template", MappingBulkheads.Direction.TO_FHIR);
+                MappingBulkheads.Permit second = bulkheads.acquire("template", MappingBulkheads.Direction.TO_FHIR)) {
+            Assert.assertThrows(BulkheadRejectedException.class,
+                                () -> bulkheads.acquire("template", MappingBulkheads.Direction.TO_FHIR));
+        }
+    }
+}
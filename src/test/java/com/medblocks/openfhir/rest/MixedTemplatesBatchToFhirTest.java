@@ -0,0 +1,197 @@
+package com.medblocks.openfhir.rest;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.IFhirPathEvaluationContext;
+import ca.uhn.fhir.parser.IParser;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.medblocks.openfhir.OpenEhrRmWorker;
+import com.medblocks.openfhir.RequestEnvelope;
+import com.medblocks.openfhir.TestOpenFhirMappingContext;
+import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
+import com.medblocks.openfhir.tofhir.IntermediateCacheProcessing;
+import com.medblocks.openfhir.tofhir.OpenEhrToFhir;
+import com.medblocks.openfhir.util.CachingFhirPathR4;
+import com.medblocks.openfhir.util.FhirConnectModelMerger;
+import com.medblocks.openfhir.util.FhirInstanceCreator;
+import com.medblocks.openfhir.util.FhirInstanceCreatorUtility;
+import com.medblocks.openfhir.util.FhirInstancePopulator;
+import com.medblocks.openfhir.util.FlatJsonObjectMarshaller;
+import com.medblocks.openfhir.util.FlatJsonObjectUnmarshaller;
+import com.medblocks.openfhir.util.OpenEhrCachedUtils;
+import com.medblocks.openfhir.util.OpenEhrConditionEvaluator;
+import com.medblocks.openfhir.util.OpenFhirMapperUtils;
+import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import com.medblocks.openfhir.util.OpenFhirTestUtility;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
+import org.openehr.schemas.v1.TemplateDocument;
+import org.springframework.aop.scope.ScopedObject;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.RequestScope;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+/**
+ * Batch of Compositions of two templates mapped with a real request scoped mapping context, where each line
+ * initializes the plan of its template in the context of the request (as the engine does) before mapping with it.
+ */
+public class MixedTemplatesBatchToFhirTest {
+
+    private final OpenFhirStringUtils openFhirStringUtils = new OpenFhirStringUtils();
+    private final FhirPathR4 fhirPath = new CachingFhirPathR4(FhirContext.forR4(), 10000);
+    private final IParser parser = FhirContext.forR4().newJsonParser();
+    private final Gson gson = new Gson();
+    private final Map<String, Template> templates = new HashMap<>();
+
+    private AnnotationConfigApplicationContext spring;
+    private TestOpenFhirMappingContext mappingContext;
+    private OpenEhrToFhir openEhrToFhir;
+
+    @Before
+    public void init() throws Exception {
+        fhirPath.setEvaluationContext(new IFhirPathEvaluationContext() {
+            @Override
+            public IBase resolveReference(@Nonnull IIdType theReference, @Nullable IBase theContext) {
+                return ((Reference) theContext).getResource();
+            }
+        });
+        spring = new AnnotationConfigApplicationContext();
+        spring.getBeanFactory().registerScope(WebApplicationContext.SCOPE_REQUEST, new RequestScope());
+        spring.registerBean("mappingContext", TestOpenFhirMappingContext.class,
+                            () -> new TestOpenFhirMappingContext(fhirPath, openFhirStringUtils,
+                                                                 new FhirConnectModelMerger()));
+        spring.refresh();
+        mappingContext = (TestOpenFhirMappingContext) spring.getBean("mappingContext");
+        Assert.assertTrue(mappingContext instanceof ScopedObject);
+
+        final FhirInstanceCreatorUtility fhirInstanceCreatorUtility = new FhirInstanceCreatorUtility(
+                openFhirStringUtils);
+        openEhrToFhir = new OpenEhrToFhir(new FlatJsonObjectMarshaller(),
+                                          new FlatJsonObjectUnmarshaller(),
+                                          mappingContext,
+                                          new OpenEhrCachedUtils(null),
+                                          gson,
+                                          openFhirStringUtils,
+                                          new OpenEhrRmWorker(openFhirStringUtils, new OpenFhirMapperUtils()),
+                                          new OpenFhirMapperUtils(),
+                                          new FhirInstancePopulator(),
+                                          new FhirInstanceCreator(openFhirStringUtils, fhirInstanceCreatorUtility),
+                                          fhirInstanceCreatorUtility,
+                                          fhirPath,
+                                          new IntermediateCacheProcessing(openFhirStringUtils),
+                                          new OpenEhrConditionEvaluator(openFhirStringUtils));
+
+        templates.put("growth_chart", new Template("/growth_chart/", "growth-chart.context.yml", "Growth chart.opt",
+                                                   "growth_chart_flat.json"));
+        templates.put("blood_pressure", new Template("/blood_pressure/", "simple-blood-pressure.context.yml",
+                                                     "Blood Pressure.opt", "blood-pressure_flat.json"));
+    }
+
+    @After
+    public void close() {
+        RequestContextHolder.resetRequestAttributes();
+        spring.close();
+    }
+
+    @Test
+    public void linesOfBothTemplatesMappedWithContextOfRequest() throws IOException {
+        final String growthChart = templates.get("growth_chart").flat;
+        final String bloodPressure = templates.get("blood_pressure").flat;
+
+        // expected Bundles are mapped in a request of their own, so that the batch's request starts without a context
+        final ServletRequestAttributes singleRequest = new ServletRequestAttributes(new MockHttpServletRequest());
+        RequestContextHolder.setRequestAttributes(singleRequest);
+        final String growthChartBundle = toFhir(growthChart, Collections.newSetFromMap(new IdentityHashMap<>()));
+        final String bloodPressureBundle = toFhir(bloodPressure, Collections.newSetFromMap(new IdentityHashMap<>()));
+        singleRequest.requestCompleted();
+
+        final ServletRequestAttributes batchRequest = new ServletRequestAttributes(new MockHttpServletRequest());
+        RequestContextHolder.setRequestAttributes(batchRequest);
+        final List<String> in = new ArrayList<>();
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            in.add(i % 2 == 0 ? growthChart : bloodPressure);
+            expected.add(i % 2 == 0 ? growthChartBundle : bloodPressureBundle);
+        }
+        final Set<Object> contextsOfLines = Collections.synchronizedSet(
+                Collections.newSetFromMap(new IdentityHashMap<>()));
+        final NdjsonToFhirBatch batch = new NdjsonToFhirBatch(
+                null, null, mappingContext, new MappingBulkheads(false, 4, 16, 5000, new MockEnvironment(),
+                                                                 id -> true), 4);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            batch.convert(new ByteArrayInputStream(String.join("\n", in).getBytes(StandardCharsets.UTF_8)), out,
+                          composition -> toFhir(composition, contextsOfLines));
+        } finally {
+            batch.shutdown();
+        }
+
+        Assert.assertEquals(expected, out.toString(StandardCharsets.UTF_8).lines().collect(Collectors.toList()));
+        // all lines were mapped with the one context of the batch's request
+        Assert.assertEquals(1, contextsOfLines.size());
+        Assert.assertSame(contextsOfLines.iterator().next(), ((ScopedObject) mappingContext).getTargetObject());
+        batchRequest.requestCompleted();
+    }
+
+    /**
+     * Initializes the plan of the Composition's template in the request's mapping context and maps it to FHIR
+     */
+    private String toFhir(final String flat, final Set<Object> contexts) {
+        contexts.add(((ScopedObject) mappingContext).getTargetObject());
+        final Template template = templates.get(RequestEnvelope.sniff(flat).getTemplateId());
+        mappingContext.initRepository(template.context, template.operationaltemplate, template.modelsDir);
+        return parser.encodeResourceToString(openEhrToFhir.flatToFhir(template.context,
+                                                                      gson.fromJson(flat, JsonObject.class),
+                                                                      template.operationaltemplate));
+    }
+
+    private final class Template {
+
+        private final FhirConnectContext context;
+        private final OPERATIONALTEMPLATE operationaltemplate;
+        private final String modelsDir;
+        private final String flat;
+
+        private Template(final String location, final String contextMapping, final String opt, final String flat)
+                throws Exception {
+            try (InputStream contextMappingStream = getClass().getResourceAsStream(location + contextMapping);
+                    InputStream optStream = getClass().getResourceAsStream(location + opt);
+                    InputStream flatStream = getClass().getResourceAsStream(location + flat)) {
+                this.context = OpenFhirTestUtility.getYaml().readValue(contextMappingStream,
+                                                                       FhirConnectContext.class);
+                this.operationaltemplate = TemplateDocument.Factory.parse(
+                        IOUtils.toString(optStream, StandardCharsets.UTF_8)).getTemplate();
+                this.modelsDir = getClass().getResource(location).getFile();
+                this.flat = gson.fromJson(IOUtils.toString(flatStream, StandardCharsets.UTF_8), JsonObject.class)
+                        .toString();
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.medblocks.openfhir.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+public class NdjsonToFhirBatchTest {
+
+    private final NdjsonToFhirBatch batch = new NdjsonToFhirBatch(
+            null, null, null, new MappingBulkheads(false, 4, 16, 5000, new MockEnvironment(), id -> true), 4);
+
+    @Test
+    public void linesInOrderWithErrors() throws IOException {
+        final String in = "{\"a\":1}\n\n{\"b\":2}\nfail\n{\"c\":3}";
+        final List<String> out = convert(in);
+        Assert.assertEquals(List.of("{\"a\":1}",
+                                    "{\"b\":2}",
+                                    "{\"line\":4,\"error\":\"Can't map fail\"}",
+                                    "{\"c\":3}"), out);
+    }
+
+    @Test
+    public void manyLines() throws IOException {
+        final String in = IntStream.range(0, 1000)
+                .mapToObj(i -> "{\"i\":" + i + "}")
+                .collect(Collectors.joining("\n"));
+        final List<String> out = convert(in);
+        Assert.assertEquals(1000, out.size());
+        for (int i = 0; i < out.size(); i++) {
+            Assert.assertEquals("{\"i\":" + i + "}", out.get(i));
+        }
+    }
+
+    @Test
+    public void linesRejectedByBulkhead() throws IOException {
+        // no permits at all, so every line is rejected before it's mapped
+        final NdjsonToFhirBatch saturated = new NdjsonToFhirBatch(
+                null, null, null, new MappingBulkheads(true, 0, 0, 1000, new MockEnvironment(), id -> true), 4);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        saturated.convert(new ByteArrayInputStream("{\"a\":1}\n{\"b\":2}".getBytes(StandardCharsets.UTF_8)), out,
+                          "template");
+        Assert.assertEquals(List.of("{\"line\":1,\"error\":\"Too many concurrent mappings of 'tofhir.template'.\"}",
+                                    "{\"line\":2,\"error\":\"Too many concurrent mappings of 'tofhir.template'.\"}"),
+                            out.toString(StandardCharsets.UTF_8).lines().collect(Collectors.toList()));
+        saturated.shutdown();
+    }
+
+    @Test
+    public void lineFailingWithError() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.convert(new ByteArrayInputStream("{\"a\":1}".getBytes(StandardCharsets.UTF_8)), out, composition -> {
+            throw new StackOverflowError();
+        });
+        Assert.assertEquals("{\"line\":1,\"error\":\"java.lang.StackOverflowError\"}\n",
+                            out.toString(StandardCharsets.UTF_8));
+    }
+
+    private List<String> convert(final String in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.convert(new ByteArrayInputStream(in.getBytes(StandardCharsets.UTF_8)), out, composition -> {
+            if (composition.equals("fail")) {
+                throw new IllegalArgumentException("Can't map fail");
+            }
+            // lines finish in a different order than they were read in
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return composition;
+        });
+        return out.toString(StandardCharsets.UTF_8).lines().collect(Collectors.toList());
+    }
+}
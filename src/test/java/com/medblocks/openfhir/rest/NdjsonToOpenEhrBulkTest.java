@@ -0,0 +1,147 @@
+package com.medblocks.openfhir.rest;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.medblocks.openfhir.producers.FhirProducer;
+import com.medblocks.openfhir.util.FhirJsonParserProvider;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.web.server.ResponseStatusException;
+
+public class NdjsonToOpenEhrBulkTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final NdjsonToOpenEhrBulk bulk = bulk(new MappingBulkheads(false, 4, 16, 5000, new MockEnvironment(),
+                                                                       id -> true));
+
+    @Test
+    public void groupByPatient() throws IOException {
+        final String in = String.join("\n",
+                                      "{\"resourceType\":\"Patient\",\"id\":\"1\"}",
+                                      "{\"resourceType\":\"Observation\",\"id\":\"a\",\"status\":\"final\",\"subject\":{\"reference\":\"Patient/1\"},\"performer\":[{\"reference\":\"Practitioner/p\"}]}",
+                                      "{\"resourceType\":\"Patient\",\"id\":\"2\"}",
+                                      "{\"resourceType\":\"Observation\",\"id\":\"b\",\"status\":\"final\",\"subject\":{\"reference\":\"Patient/2\"}}",
+                                      "",
+                                      "{\"resourceType\":\"Practitioner\",\"id\":\"p\",\"managingOrganization\":{\"reference\":\"Organization/o\"}}",
+                                      "{",
+                                      "{\"resourceType\":\"Observation\",\"status\":\"final\"}");
+        final List<String> out = convert(in, NdjsonToOpenEhrBulk.GROUP_BY_PATIENT);
+
+        Assert.assertEquals(4, out.size());
+        Assert.assertTrue(out.get(0).startsWith("{\"line\":7,\"error\":"));
+        Assert.assertTrue(out.get(1).startsWith("{\"line\":8,\"error\":"));
+        Assert.assertEquals("Patient/1,Observation/a,Practitioner/p", out.get(2));
+        Assert.assertEquals("Patient/2,Observation/b", out.get(3));
+    }
+
+    @Test
+    public void groupByEncounter() throws IOException {
+        final String in = String.join("\n",
+                                      "{\"resourceType\":\"Observation\",\"id\":\"a\",\"status\":\"final\",\"encounter\":{\"reference\":\"Encounter/e1\"}}",
+                                      "{\"resourceType\":\"Patient\",\"id\":\"1\"}",
+                                      "{\"resourceType\":\"Encounter\",\"id\":\"e1\",\"status\":\"finished\",\"subject\":{\"reference\":\"Patient/1\"}}",
+                                      "{\"resourceType\":\"Encounter\",\"id\":\"e2\",\"status\":\"finished\"}");
+        final List<String> out = convert(in, NdjsonToOpenEhrBulk.GROUP_BY_ENCOUNTER);
+
+        Assert.assertEquals(List.of("Observation/a,Encounter/e1,Patient/1", "Encounter/e2"), out);
+    }
+
+    @Test
+    public void unreferredWithoutGroup() throws IOException {
+        final String in = String.join("\n",
+                                      "{\"resourceType\":\"Organization\",\"id\":\"o\"}",
+                                      "{\"resourceType\":\"Patient\",\"id\":\"1\",\"managingOrganization\":{\"reference\":\"Organization/o\"}}",
+                                      "{\"resourceType\":\"Practitioner\",\"id\":\"p\"}",
+                                      "{\"resourceType\":\"Organization\",\"id\":\"other\"}");
+        final List<String> out = convert(in, NdjsonToOpenEhrBulk.GROUP_BY_PATIENT);
+
+        Assert.assertEquals(List.of("Patient/1,Organization/o",
+                                    "{\"line\":3,\"error\":\"Practitioner has no patient and isn't referred to by any group.\"}",
+                                    "{\"line\":4,\"error\":\"Organization has no patient and isn't referred to by any group.\"}"),
+                            out);
+    }
+
+    @Test
+    public void groupRejectedByBulkhead() throws IOException {
+        // no permits at all, so every group is rejected before it's mapped
+        final NdjsonToOpenEhrBulk saturated = bulk(new MappingBulkheads(true, 0, 0, 1000, new MockEnvironment(),
+                                                                        id -> true));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        saturated.convert(new ByteArrayInputStream("{\"resourceType\":\"Patient\",\"id\":\"1\"}".getBytes(StandardCharsets.UTF_8)),
+                          out, null, null, false);
+        Assert.assertEquals("{\"group\":\"Patient/1\",\"error\":\"Too many concurrent mappings of 'toopenehr.*'.\"}\n",
+                            out.toString(StandardCharsets.UTF_8));
+        saturated.shutdown();
+    }
+
+    @Test
+    public void groupFailingWithError() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bulk.convert(new ByteArrayInputStream("{\"resourceType\":\"Patient\",\"id\":\"1\"}".getBytes(StandardCharsets.UTF_8)),
+                     out, NdjsonToOpenEhrBulk.GROUP_BY_PATIENT, bundle -> {
+                    throw new StackOverflowError();
+                });
+        Assert.assertEquals("{\"group\":\"Patient/1\",\"error\":\"java.lang.StackOverflowError\"}\n",
+                            out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void groupFailing() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bulk.convert(new ByteArrayInputStream("{\"resourceType\":\"Patient\",\"id\":\"1\"}".getBytes(StandardCharsets.UTF_8)),
+                     out, NdjsonToOpenEhrBulk.GROUP_BY_PATIENT, bundle -> {
+                    throw new IllegalArgumentException("No context");
+                });
+        Assert.assertEquals("{\"group\":\"Patient/1\",\"error\":\"No context\"}\n",
+                            out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void invalidGroupBy() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            bulk.convert(new ByteArrayInputStream("{\"resourceType\":\"Patient\",\"id\":\"1\"}".getBytes(StandardCharsets.UTF_8)),
+                         out, null, "subject.(", false);
+            Assert.fail();
+        } catch (final ResponseStatusException e) {
+            Assert.assertEquals(HttpStatus.BAD_REQUEST, e.getStatusCode());
+        }
+        Assert.assertEquals(0, out.size());
+    }
+
+    @Test
+    public void groupByFailingOnLine() throws IOException {
+        final String in = String.join("\n",
+                                      "{\"resourceType\":\"Patient\",\"id\":\"1\",\"identifier\":[{\"value\":\"x\"}]}",
+                                      "{\"resourceType\":\"Patient\",\"id\":\"2\",\"identifier\":[{\"value\":\"y\"},{\"value\":\"z\"}]}",
+                                      "{\"resourceType\":\"Patient\",\"id\":\"3\",\"identifier\":[{\"value\":\"x\"}]}");
+        final List<String> out = convert(in, "identifier.value.single()");
+
+        Assert.assertEquals(2, out.size());
+        Assert.assertTrue(out.get(0).startsWith("{\"line\":2,\"error\":"));
+        Assert.assertEquals("Patient/1,Patient/3", out.get(1));
+    }
+
+    private NdjsonToOpenEhrBulk bulk(final MappingBulkheads bulkheads) {
+        return new NdjsonToOpenEhrBulk(null, null, null, new FhirJsonParserProvider(fhirContext),
+                                       new FhirProducer().getFhirPath(fhirContext, 100), bulkheads,
+                                       NdjsonToOpenEhrBulk.GROUP_BY_PATIENT, 4);
+    }
+
+    private List<String> convert(final String in, final String groupBy) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bulk.convert(new ByteArrayInputStream(in.getBytes(StandardCharsets.UTF_8)), out, groupBy,
+                     bundle -> bundle.getEntry().stream()
+                             .map(Bundle.BundleEntryComponent::getFullUrl)
+                             .collect(Collectors.joining(",")));
+        return out.toString(StandardCharsets.UTF_8).lines().collect(Collectors.toList());
+    }
+}
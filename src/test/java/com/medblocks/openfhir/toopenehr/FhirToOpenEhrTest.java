@@ -6,13 +6,13 @@ import com.google.gson.JsonObject;
 import com.medblocks.openfhir.OpenEhrRmWorker;
 import com.medblocks.openfhir.TestOpenFhirMappingContext;
 import com.medblocks.openfhir.util.FhirConnectModelMerger;
+import com.medblocks.openfhir.util.FlatJsonObjectUnmarshaller;
 import com.medblocks.openfhir.util.OpenEhrCachedUtils;
 import com.medblocks.openfhir.util.OpenEhrPopulator;
 import com.medblocks.openfhir.util.OpenFhirMapperUtils;
 import com.medblocks.openfhir.util.OpenFhirStringUtils;
 import java.util.ArrayList;
 import java.util.Arrays;
-import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
 import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
 import org.hl7.fhir.r4.model.HumanName;
 import org.hl7.fhir.r4.model.Patient;
@@ -34,7 +34,7 @@ public class FhirToOpenEhrTest {
     public void init() {
         fhirToOpenEhr = new FhirToOpenEhr(fhirPathR4,
                                           new OpenFhirStringUtils(),
-                                          new FlatJsonUnmarshaller(),
+                                          new FlatJsonObjectUnmarshaller(),
                                           new Gson(),
                                           new OpenEhrRmWorker(openFhirStringUtils, new OpenFhirMapperUtils()),
                                           openFhirStringUtils,
@@ -0,0 +1,93 @@
+package com.medblocks.openfhir.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.medblocks.openfhir.producers.FhirProducer;
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.MedicationStatement;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BundleReferenceIndexTest {
+
+    @Test
+    public void resolve() {
+        final Patient patient = new Patient();
+        patient.setId("1");
+        final Practitioner practitioner = new Practitioner();
+        final Observation observation = new Observation();
+        final Medication contained = new Medication();
+        contained.setId("med");
+        observation.addContained(contained);
+        final Reference localReference = observation.addFocus().setReference("#med");
+
+        final Bundle bundle = new Bundle();
+        bundle.addEntry().setFullUrl("http://server/fhir/Patient/1").setResource(patient);
+        bundle.addEntry().setFullUrl("urn:uuid:6a4b2f0e-5b0c-4f7e-9a57-2a3c1f0d6e11").setResource(practitioner);
+        bundle.addEntry().setResource(observation);
+
+        final BundleReferenceIndex index = BundleReferenceIndex.of(bundle);
+        Assert.assertSame(patient, index.resolve(new IdType("Patient/1")));
+        Assert.assertSame(patient, index.resolve(new IdType("Patient/1/_history/2")));
+        Assert.assertSame(patient, index.resolve(new IdType("http://server/fhir/Patient/1")));
+        Assert.assertSame(practitioner, index.resolve(new IdType("urn:uuid:6a4b2f0e-5b0c-4f7e-9a57-2a3c1f0d6e11")));
+        Assert.assertSame(contained, index.resolve(new IdType("#med"), localReference));
+        Assert.assertNull(index.resolve(new IdType("#med")));
+        Assert.assertNull(index.resolve(new IdType("Patient/2")));
+        Assert.assertNull(index.resolve(null));
+    }
+
+    @Test
+    public void resolveWithFhirPath() {
+        final CachingFhirPathR4 fhirPathR4 = new FhirProducer().getFhirPath(FhirContext.forR4(), 100);
+        final Patient patient = new Patient();
+        patient.setId("1");
+        final Observation observation = new Observation();
+        observation.setSubject(new Reference("Patient/1"));
+
+        final Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(observation);
+        bundle.addEntry().setResource(patient);
+
+        Assert.assertTrue(fhirPathR4.evaluate(observation, "Observation.subject.resolve()", Base.class).isEmpty());
+        try (BundleReferenceIndex.Scope ignored = BundleReferenceIndex.open(bundle)) {
+            final List<Base> resolved = fhirPathR4.evaluate(observation, "Observation.subject.resolve()", Base.class);
+            Assert.assertEquals(List.of(patient), resolved);
+        }
+        Assert.assertNull(BundleReferenceIndex.current());
+    }
+
+    @Test
+    public void resolveContainedPerContainer() {
+        final CachingFhirPathR4 fhirPathR4 = new FhirProducer().getFhirPath(FhirContext.forR4(), 100);
+        final Bundle bundle = new Bundle();
+        final List<Medication> medications = new ArrayList<>();
+        for (final String code : List.of("a", "b")) {
+            final Medication medication = new Medication();
+            medication.setId("med");
+            medication.getCode().setText(code);
+            medications.add(medication);
+            final MedicationStatement statement = new MedicationStatement();
+            statement.addContained(medication);
+            statement.setMedication(new Reference("#med"));
+            bundle.addEntry().setResource(statement);
+        }
+
+        try (BundleReferenceIndex.Scope ignored = BundleReferenceIndex.open(bundle)) {
+            for (int i = 0; i < medications.size(); i++) {
+                final List<Base> resolved = fhirPathR4.evaluate(bundle.getEntry().get(i).getResource(),
+                                                                "MedicationStatement.medication.resolve()",
+                                                                Base.class);
+                Assert.assertEquals(List.of(medications.get(i)), resolved);
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.medblocks.openfhir.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
+import java.util.List;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CachingFhirPathR4Test {
+
+    private final CachingFhirPathR4 fhirPath = new CachingFhirPathR4(FhirContext.forR4(), 100);
+
+    @Test
+    public void parsedExpressionIsReused() {
+        final Patient first = new Patient();
+        first.addName().setFamily("Doe");
+        final Patient second = new Patient();
+        second.addName().setFamily("Smith");
+
+        final List<StringType> firstFamily = fhirPath.evaluate(first, "Patient.name.family", StringType.class);
+        final List<StringType> secondFamily = fhirPath.evaluate(second, "Patient.name.family", StringType.class);
+        Assert.assertEquals("Doe", firstFamily.get(0).getValue());
+        Assert.assertEquals("Smith", secondFamily.get(0).getValue());
+        Assert.assertTrue(fhirPath.evaluateFirst(second, "Patient.name.family", Base.class).isPresent());
+
+        Assert.assertSame(fhirPath.getParsedExpression("Patient.name.family"),
+                          fhirPath.getParsedExpression("Patient.name.family"));
+        Assert.assertEquals(1L, fhirPath.getStatistics().get("size"));
+        Assert.assertEquals(1L, fhirPath.getStatistics().get("misses"));
+        Assert.assertEquals(4L, fhirPath.getStatistics().get("hits"));
+    }
+
+    @Test(expected = FhirPathExecutionException.class)
+    public void invalidExpression() {
+        fhirPath.evaluate(new Patient(), "Patient.name.where(", Base.class);
+    }
+}
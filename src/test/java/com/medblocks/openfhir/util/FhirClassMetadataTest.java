@@ -0,0 +1,54 @@
+package com.medblocks.openfhir.util;
+
+import java.util.List;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Type;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FhirClassMetadataTest {
+
+    @Test
+    public void sameInstancePerClass() {
+        Assert.assertSame(FhirClassMetadata.of(Observation.class), FhirClassMetadata.of(Observation.class));
+        Assert.assertSame(Observation.class, FhirClassMetadata.forName("org.hl7.fhir.r4.model.Observation"));
+        Assert.assertNull(FhirClassMetadata.forName("org.hl7.fhir.r4.model.NonExisting"));
+    }
+
+    @Test
+    public void childFields() {
+        final FhirClassMetadata metadata = FhirClassMetadata.of(Observation.class);
+        Assert.assertNull(metadata.getChild("nonExisting"));
+
+        final FhirClassMetadata.ChildField category = metadata.getChild("category");
+        Assert.assertTrue(category.isList());
+
+        final FhirClassMetadata.ChildField value = metadata.getChild("value");
+        Assert.assertFalse(value.isList());
+        Assert.assertEquals(Type.class, value.getFieldType());
+        Assert.assertTrue(value.getTypes().length > 1);
+
+        final Observation observation = (Observation) metadata.newInstance();
+        category.set(observation, List.of());
+        Assert.assertEquals(List.of(), category.get(observation));
+    }
+
+    @Test
+    public void resolvedClassIsRemembered() {
+        final FhirClassMetadata.ChildField onset = FhirClassMetadata.of(Condition.class).getChild("onset");
+        final int[] resolved = {0};
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(String.class, onset.resolveClass("String", forcing -> {
+                resolved[0]++;
+                return String.class;
+            }));
+        }
+        Assert.assertEquals(1, resolved[0]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void abstractClassCantBeInstantiated() {
+        FhirClassMetadata.of(Type.class).newInstance();
+    }
+}
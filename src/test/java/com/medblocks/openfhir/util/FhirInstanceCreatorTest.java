@@ -96,6 +96,23 @@ public class FhirInstanceCreatorTest {
         Assert.assertEquals("This is medication text", medication.getCode().getText());
     }
 
+    @Test
+    public void testInstantiationAndSetting_samePathOnDifferentResources() {
+        final String fhirPath = "MedicationRequest.medication.resolve().code.text";
+        final MedicationRequest first = new MedicationRequest();
+        final MedicationRequest second = new MedicationRequest();
+        final FhirInstanceCreator.InstantiateAndSetReturn firstReturn = fhirInstanceCreator.instantiateAndSetElement(
+                first, MedicationRequest.class, fhirPath, null, "Medication");
+        final FhirInstanceCreator.InstantiateAndSetReturn secondReturn = fhirInstanceCreator.instantiateAndSetElement(
+                second, MedicationRequest.class, fhirPath, null, "Medication");
+        ((StringType) getLastReturn(firstReturn).getReturning()).setValue("first");
+        ((StringType) getLastReturn(secondReturn).getReturning()).setValue("second");
+
+        Assert.assertEquals(firstReturn.getPath(), secondReturn.getPath());
+        Assert.assertEquals("first", ((Medication) first.getMedicationReference().getResource()).getCode().getText());
+        Assert.assertEquals("second", ((Medication) second.getMedicationReference().getResource()).getCode().getText());
+    }
+
     private FhirInstanceCreator.InstantiateAndSetReturn getLastReturn(final FhirInstanceCreator.InstantiateAndSetReturn instantiateAndSetReturn) {
         if (instantiateAndSetReturn.getInner() == null) {
             return instantiateAndSetReturn;
@@ -0,0 +1,56 @@
+package com.medblocks.openfhir.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FhirJsonParserProviderTest {
+
+    private final FhirJsonParserProvider provider = new FhirJsonParserProvider(FhirContext.forR4());
+
+    @Test
+    public void idleParserIsReused() {
+        final Patient patient = new Patient();
+        patient.addName().setFamily("family");
+        final String json = provider.encodeResourceToString(patient);
+        provider.parseResource(json);
+        provider.encodeResourceToString(patient);
+
+        Assert.assertEquals(1, provider.idleParsers());
+    }
+
+    @Test
+    public void concurrentParsingAndEncoding() throws Exception {
+        final int threads = 16;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final String family = "family" + t;
+                tasks.add(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        final Patient patient = new Patient();
+                        patient.addName().setFamily(family + i);
+                        final String json = provider.encodeResourceToString(patient);
+                        final Patient parsed = (Patient) provider.parseResource(json);
+                        Assert.assertEquals(family + i, parsed.getNameFirstRep().getFamily());
+                    }
+                    return null;
+                });
+            }
+            for (final Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+            Assert.assertTrue(provider.idleParsers() <= threads);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
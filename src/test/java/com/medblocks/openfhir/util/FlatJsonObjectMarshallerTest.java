@@ -0,0 +1,38 @@
+package com.medblocks.openfhir.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.nedap.archie.rm.composition.Composition;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import org.apache.commons.io.IOUtils;
+import org.apache.xmlbeans.XmlException;
+import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.marshal.FlatJsonMarshaller;
+import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.ehrbase.openehr.sdk.webtemplate.parser.OPTParser;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openehr.schemas.v1.TemplateDocument;
+
+public class FlatJsonObjectMarshallerTest {
+
+    @Test
+    public void sameAsFlatJsonMarshaller() throws IOException, XmlException {
+        final WebTemplate webTemplate = new OPTParser(TemplateDocument.Factory.parse(
+                getClass().getResourceAsStream("/growth_chart/Growth chart.opt")).getTemplate()).parse();
+        final String flat = IOUtils.toString(getClass().getResourceAsStream("/growth_chart/growth_chart_flat.json"),
+                                             StandardCharsets.UTF_8);
+        final Composition composition = new FlatJsonUnmarshaller().unmarshal(flat, webTemplate);
+
+        final JsonObject expected = new Gson().fromJson(new FlatJsonMarshaller().toFlatJson(composition, webTemplate),
+                                                        JsonObject.class);
+        final JsonObject actual = new FlatJsonObjectMarshaller().toFlatJsonObject(composition, webTemplate);
+
+        Assert.assertEquals(expected, actual);
+        Assert.assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(actual.keySet()));
+        expected.entrySet().forEach(entry -> Assert.assertEquals(entry.getValue().getAsString(),
+                                                                 actual.get(entry.getKey()).getAsString()));
+    }
+}
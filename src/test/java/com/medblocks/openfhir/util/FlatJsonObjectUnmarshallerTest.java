@@ -0,0 +1,54 @@
+package com.medblocks.openfhir.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.nedap.archie.rm.composition.Composition;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.io.IOUtils;
+import org.apache.xmlbeans.XmlException;
+import org.ehrbase.openehr.sdk.serialisation.exception.UnmarshalException;
+import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
+import org.ehrbase.openehr.sdk.serialisation.jsonencoding.CanonicalJson;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.ehrbase.openehr.sdk.webtemplate.parser.OPTParser;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openehr.schemas.v1.TemplateDocument;
+
+public class FlatJsonObjectUnmarshallerTest {
+
+    @Test
+    public void sameAsFlatJsonUnmarshaller() throws IOException, XmlException {
+        final WebTemplate webTemplate = parseWebTemplate();
+        final String flat = IOUtils.toString(getClass().getResourceAsStream("/growth_chart/growth_chart_flat.json"),
+                                             StandardCharsets.UTF_8);
+
+        final Composition expected = new FlatJsonUnmarshaller().unmarshal(flat, webTemplate);
+        final Composition actual = new FlatJsonObjectUnmarshaller().unmarshal(new Gson().fromJson(flat,
+                                                                                                  JsonObject.class),
+                                                                              webTemplate);
+
+        Assert.assertEquals(new CanonicalJson().marshal(expected), new CanonicalJson().marshal(actual));
+    }
+
+    @Test
+    public void unconsumedPaths() throws IOException, XmlException {
+        final WebTemplate webTemplate = parseWebTemplate();
+        final JsonObject flat = new JsonObject();
+        flat.addProperty("growth_chart/non_existing_path", "value");
+
+        final UnmarshalException expected = Assert.assertThrows(UnmarshalException.class,
+                                                                () -> new FlatJsonUnmarshaller().unmarshal(
+                                                                        flat.toString(), webTemplate));
+        final UnmarshalException actual = Assert.assertThrows(UnmarshalException.class,
+                                                              () -> new FlatJsonObjectUnmarshaller().unmarshal(
+                                                                      flat, webTemplate));
+        Assert.assertEquals(expected.getMessage(), actual.getMessage());
+    }
+
+    private WebTemplate parseWebTemplate() throws IOException, XmlException {
+        return new OPTParser(TemplateDocument.Factory.parse(
+                getClass().getResourceAsStream("/growth_chart/Growth chart.opt")).getTemplate()).parse();
+    }
+}
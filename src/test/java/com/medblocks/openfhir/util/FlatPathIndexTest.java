@@ -0,0 +1,47 @@
+package com.medblocks.openfhir.util;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FlatPathIndexTest {
+
+    private final OpenFhirStringUtils openFhirStringUtils = new OpenFhirStringUtils();
+
+    @Test
+    public void sameAsRegex() {
+        final JsonObject flat = new JsonObject();
+        List.of("diagnose/diagnose:0/klinischer_status/klinischer_status|code",
+                "diagnose/diagnose:0/klinischer_status/klinischer_status|value",
+                "diagnose/diagnose:0/klinischer_status/klinischer_status2|code",
+                "diagnose/diagnose:1/klinischer_status/klinischer_status|code",
+                "diagnose/diagnose:1/klinischer_status/klinischer_status_time",
+                "diagnose/diagnose:1/klinischer_status/klinischer_status/nested:2/value",
+                "diagnose/diagnose:1/language|code",
+                "diagnose/context/start_time")
+                .forEach(key -> flat.add(key, new JsonPrimitive("value")));
+
+        for (final String simplified : List.of("diagnose/diagnose/klinischer_status/klinischer_status",
+                                               "diagnose/diagnose/klinischer_status/klinischer_status|code",
+                                               "diagnose/diagnose/klinischer_status/klinischer_status|val",
+                                               "diagnose/diagnose:1/klinischer_status/klinischer_status",
+                                               "diagnose/diagnose/klinischer_status/klinischer_status/nested",
+                                               "diagnose/diagnose",
+                                               "diagnose/diagnose/language",
+                                               "diagnose/context/start_time",
+                                               "diagnose/context/end_time",
+                                               "diagnose/non_existing/klinischer_status")) {
+            final List<String> withRegex = openFhirStringUtils.getAllEntriesThatMatch(
+                    openFhirStringUtils.addRegexPatternToSimplifiedFlatFormat(simplified), flat);
+            Assert.assertEquals(simplified, withRegex,
+                                openFhirStringUtils.getAllEntriesThatMatchSimplified(simplified, flat));
+        }
+
+        Assert.assertEquals(List.of("diagnose/diagnose:0/klinischer_status/klinischer_status|code",
+                                    "diagnose/diagnose:1/klinischer_status/klinischer_status|code"),
+                            new FlatPathIndex(flat.keySet()).getAllEntriesThatMatch(
+                                    "diagnose/diagnose/klinischer_status/klinischer_status|code"));
+    }
+}
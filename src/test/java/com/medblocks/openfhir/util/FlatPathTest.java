@@ -0,0 +1,55 @@
+package com.medblocks.openfhir.util;
+
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FlatPathTest {
+
+    @Test
+    public void parse() {
+        for (final String path : List.of("growth_chart/body_weight[n]/any_event:0/weight|magnitude",
+                                         "growth_chart/body_weight:10/any_event:01/weight",
+                                         "growth_chart",
+                                         "a/b[n]|code")) {
+            Assert.assertEquals(path, FlatPath.parse(path).toString());
+        }
+        final FlatPath flatPath = FlatPath.parse("growth_chart/body_weight[n]/any_event:2/weight|magnitude");
+        Assert.assertEquals(4, flatPath.size());
+        Assert.assertEquals("body_weight", flatPath.getName(1));
+        Assert.assertEquals(FlatPath.RECURRING, flatPath.getIndex(1));
+        Assert.assertEquals(2, flatPath.getIndex(2));
+        Assert.assertEquals(FlatPath.NO_INDEX, flatPath.getIndex(3));
+        Assert.assertEquals("|magnitude", flatPath.getSuffix());
+        Assert.assertEquals(2, flatPath.getLastIndex());
+        Assert.assertTrue(flatPath.hasRecurring());
+        Assert.assertSame(FlatPath.of("a/b"), FlatPath.of("a/b"));
+    }
+
+    @Test
+    public void recurringIndexes() {
+        final FlatPath flatPath = FlatPath.parse("a[n]/b:0/c[n]/d[n]|code");
+        Assert.assertEquals("a:1/b:0/c[n]/d[n]|code", flatPath.withFirstRecurringIndex(1).toString());
+        Assert.assertEquals("a[n]/b:0/c[n]/d:2|code", flatPath.withLastRecurringIndex(2).toString());
+        final FlatPath zeroth = flatPath.withAllRecurringIndexes(0);
+        Assert.assertEquals("a:0/b:0/c:0/d:0|code", zeroth.toString());
+        Assert.assertEquals("a:0/b:0/c:0/d:3|code", zeroth.withLastIndexReplaced(0, 3).toString());
+        // original is not modified
+        Assert.assertEquals("a[n]/b:0/c[n]/d[n]|code", flatPath.toString());
+        Assert.assertSame(zeroth, zeroth.withFirstRecurringIndex(1));
+    }
+
+    @Test
+    public void recurringParent() {
+        final FlatPath child = FlatPath.parse("medikamentenliste/medikationseintrag[n]/verabreichungsweg[n]");
+        final FlatPath parent = FlatPath.parse("medikamentenliste/medikationseintrag:2/dosierung2[n]");
+        Assert.assertTrue(child.hasRecurringParent(parent));
+        Assert.assertEquals("medikamentenliste/medikationseintrag:2/verabreichungsweg[n]",
+                            child.withIndexesOf(parent).toString());
+
+        Assert.assertFalse(FlatPath.parse("medikamentenliste/other[n]/verabreichungsweg[n]")
+                                   .hasRecurringParent(parent));
+        Assert.assertFalse(FlatPath.parse("medikamentenliste/medikationseintrag[n]/a")
+                                   .hasRecurringParent(FlatPath.parse("medikamentenliste|code")));
+    }
+}
@@ -0,0 +1,52 @@
+package com.medblocks.openfhir.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.apache.commons.io.IOUtils;
+import org.apache.xmlbeans.XmlException;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
+import org.openehr.schemas.v1.TemplateDocument;
+
+public class OpenEhrCachedUtilsTest {
+
+    @Test
+    public void webTemplateSharedBetweenEqualContents() throws IOException, XmlException {
+        final String content = IOUtils.toString(getClass().getResourceAsStream("/growth_chart/Growth chart.opt"),
+                                                StandardCharsets.UTF_8);
+        final OpenEhrCachedUtils cachedUtils = new OpenEhrCachedUtils(null);
+
+        final OPERATIONALTEMPLATE first = TemplateDocument.Factory.parse(content).getTemplate();
+        final OPERATIONALTEMPLATE second = TemplateDocument.Factory.parse(content).getTemplate();
+
+        final WebTemplate fromContent = cachedUtils.parseWebTemplate(first, content);
+        Assert.assertSame(fromContent, cachedUtils.parseWebTemplate(first));
+
+        // an instance whose content isn't known is keyed by its serialized content, so it's parsed once more and
+        // then shared
+        final WebTemplate fromOtherInstance = cachedUtils.parseWebTemplate(second);
+        Assert.assertSame(fromOtherInstance, cachedUtils.parseWebTemplate(second));
+
+        final Map<String, Object> webTemplateStats = cachedUtils.getStatistics().get("webTemplates");
+        Assert.assertEquals(2L, webTemplateStats.get("hits"));
+        Assert.assertEquals(2L, webTemplateStats.get("misses"));
+        Assert.assertEquals(0L, webTemplateStats.get("evictions"));
+    }
+
+    @Test
+    public void webTemplateNotSharedBetweenRevisionsWithSameUid() throws IOException, XmlException {
+        final String content = IOUtils.toString(getClass().getResourceAsStream("/growth_chart/Growth chart.opt"),
+                                                StandardCharsets.UTF_8);
+        final OpenEhrCachedUtils cachedUtils = new OpenEhrCachedUtils(null);
+
+        final OPERATIONALTEMPLATE first = TemplateDocument.Factory.parse(content).getTemplate();
+        final OPERATIONALTEMPLATE revised = TemplateDocument.Factory.parse(content).getTemplate();
+        revised.setConcept(revised.getConcept() + " revised");
+
+        Assert.assertEquals(first.getUid().getValue(), revised.getUid().getValue());
+        Assert.assertNotSame(cachedUtils.parseWebTemplate(first), cachedUtils.parseWebTemplate(revised));
+    }
+}
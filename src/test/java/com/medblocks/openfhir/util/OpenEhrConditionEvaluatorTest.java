@@ -0,0 +1,66 @@
+package com.medblocks.openfhir.util;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.medblocks.openfhir.fc.FhirConnectConst;
+import com.medblocks.openfhir.fc.schema.model.Condition;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OpenEhrConditionEvaluatorTest {
+
+    private final OpenEhrConditionEvaluator evaluator = new OpenEhrConditionEvaluator(new OpenFhirStringUtils());
+
+    private JsonObject labResults() {
+        final JsonObject flat = new JsonObject();
+        for (int i = 0; i < 12; i++) {
+            final String prefix = "lab/result:" + i;
+            flat.add(prefix + "/analyte|code", new JsonPrimitive(i % 2 == 0 ? "blood" : "urine"));
+            flat.add(prefix + "/value|magnitude", new JsonPrimitive(i));
+            if (i % 3 == 0) {
+                flat.add(prefix + "/comment", new JsonPrimitive("comment " + i));
+            }
+        }
+        flat.add("lab/context/start_time", new JsonPrimitive("2022-02-03T04:05:06"));
+        return flat;
+    }
+
+    @Test
+    public void splitByOneOf() {
+        final JsonObject flat = labResults();
+        final Condition condition = new Condition()
+                .withTargetRoot("lab/result")
+                .withTargetAttribute("analyte|code")
+                .withOperator(FhirConnectConst.CONDITION_OPERATOR_ONE_OF)
+                .withCriteria("urine");
+
+        final JsonObject split = evaluator.splitByOpenEhrCondition(flat, condition, "lab");
+
+        final List<String> expected = new ArrayList<>();
+        // result:1 doesn't admit result:10 (blood)
+        for (final int i : new int[]{1, 3, 5, 7, 9, 11}) {
+            flat.keySet().stream().filter(k -> k.startsWith("lab/result:" + i + "/")).forEach(expected::add);
+        }
+        Assert.assertEquals(expected, new ArrayList<>(split.keySet()));
+        Assert.assertSame(flat.get("lab/result:3/comment"), split.get("lab/result:3/comment"));
+        Assert.assertFalse(split.has("lab/result:10/value|magnitude"));
+    }
+
+    @Test
+    public void splitByEmpty() {
+        final JsonObject flat = labResults();
+        final Condition condition = new Condition()
+                .withTargetRoot("lab/result")
+                .withTargetAttributes(List.of("comment"))
+                .withOperator(FhirConnectConst.CONDITION_OPERATOR_EMPTY);
+
+        final JsonObject split = evaluator.splitByOpenEhrCondition(flat, condition, "lab");
+
+        Assert.assertEquals(16, split.size());
+        Assert.assertTrue(split.keySet().stream().noneMatch(k -> k.endsWith("/comment")));
+        Assert.assertFalse(split.has("lab/result:0/value|magnitude"));
+        Assert.assertTrue(split.has("lab/result:1/value|magnitude"));
+    }
+}
@@ -0,0 +1,81 @@
+package com.medblocks.openfhir.util;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OpenFhirDateTimeUtilsTest {
+
+    @Test
+    public void parseWithPrecision() {
+        Assert.assertEquals(LocalDateTime.of(2024, 1, 1, 0, 0), OpenFhirDateTimeUtils.parseLocalDateTime("2024"));
+        Assert.assertEquals(LocalDateTime.of(2024, 3, 1, 0, 0), OpenFhirDateTimeUtils.parseLocalDateTime("2024-03"));
+        Assert.assertEquals(LocalDateTime.of(2024, 3, 5, 0, 0), OpenFhirDateTimeUtils.parseLocalDateTime("2024-03-05"));
+        Assert.assertEquals(LocalDateTime.of(2024, 3, 5, 10, 15),
+                            OpenFhirDateTimeUtils.parseLocalDateTime("2024-03-05T10:15"));
+        Assert.assertEquals(LocalDateTime.of(2024, 3, 5, 10, 15, 30),
+                            OpenFhirDateTimeUtils.parseLocalDateTime("2024-03-05T10:15:30"));
+        Assert.assertEquals(LocalDateTime.of(2024, 3, 5, 10, 15, 30),
+                            OpenFhirDateTimeUtils.parseLocalDateTime("2024-03-05T10:15:30.123+01:00"));
+        Assert.assertEquals(LocalDateTime.of(2024, 2, 29, 0, 0),
+                            OpenFhirDateTimeUtils.parseLocalDateTime("2024-02-29T25:00:00"));
+    }
+
+    @Test
+    public void parseInvalid() {
+        Assert.assertNull(OpenFhirDateTimeUtils.parseLocalDateTime(null));
+        Assert.assertNull(OpenFhirDateTimeUtils.parseLocalDateTime(""));
+        Assert.assertNull(OpenFhirDateTimeUtils.parseLocalDateTime("not a date"));
+        Assert.assertNull(OpenFhirDateTimeUtils.parseLocalDateTime("2023-02-29"));
+        Assert.assertNull(OpenFhirDateTimeUtils.parseLocalDateTime("2023-13-01"));
+        Assert.assertNull(OpenFhirDateTimeUtils.parseLocalDateTime("2023/01/01"));
+    }
+
+    @Test
+    public void formatting() {
+        final Date date = Date.from(LocalDateTime.of(2024, 3, 5, 7, 8, 9).atZone(ZoneId.systemDefault()).toInstant());
+        Assert.assertEquals("2024-03-05", OpenFhirDateTimeUtils.formatDate(date));
+        Assert.assertEquals("2024-03-05T07:08:09", OpenFhirDateTimeUtils.formatDateTime(date));
+        Assert.assertEquals("07:08:09", OpenFhirDateTimeUtils.formatTime(date));
+        Assert.assertNull(OpenFhirDateTimeUtils.formatDateTime(null));
+    }
+
+    @Test
+    public void concurrentFormattingAndParsing() throws Exception {
+        final OpenFhirMapperUtils openFhirMapperUtils = new OpenFhirMapperUtils();
+        final int threads = 64;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                tasks.add(() -> {
+                    for (int i = 0; i < 2_000; i++) {
+                        // daytime hours only, so no local time falls into a daylight saving gap
+                        final LocalDateTime expected = LocalDateTime.of(1950 + thread, 1 + i % 12, 1 + i % 28,
+                                                                        8 + i % 12, i % 60, (i + thread) % 60);
+                        final String dateTime = OpenFhirDateTimeUtils.DATE_TIME.format(expected);
+                        final Date parsed = openFhirMapperUtils.stringToDate(dateTime);
+                        Assert.assertEquals(dateTime, openFhirMapperUtils.dateTimeToString(parsed));
+                        Assert.assertEquals(dateTime.substring(0, 10), openFhirMapperUtils.dateToString(parsed));
+                        Assert.assertEquals(dateTime.substring(11), openFhirMapperUtils.timeToString(parsed));
+                    }
+                    return null;
+                });
+            }
+            for (final Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.medblocks.openfhir.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PathCachesTest {
+
+    @Test
+    public void processWideCachesFollowConfiguredSize() {
+        final Cache<String, String> cache = PathCaches.newProcessWideCache();
+        try {
+            new PathCaches(5);
+            Assert.assertEquals(5, PathCaches.getMaxSize());
+            Assert.assertEquals(5, cache.policy().eviction().orElseThrow().getMaximum());
+        } finally {
+            PathCaches.setMaxSize(PathCaches.DEFAULT_MAX_SIZE);
+        }
+    }
+}
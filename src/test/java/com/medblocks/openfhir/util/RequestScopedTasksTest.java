@@ -0,0 +1,58 @@
+package com.medblocks.openfhir.util;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+public class RequestScopedTasksTest {
+
+    @Test
+    public void tasksRunWithAttributesOfSubmittingThread() {
+        final ForkJoinPool pool = RequestScopedTasks.newPool("test", 2);
+        final RequestAttributes attributes = new ServletRequestAttributes(new MockHttpServletRequest());
+        RequestContextHolder.setRequestAttributes(attributes);
+        try (BundleReferenceIndex.Scope ignored = BundleReferenceIndex.open(new Bundle())) {
+            final BundleReferenceIndex index = BundleReferenceIndex.current();
+            final Callable<Object> attributesOfTask = RequestContextHolder::getRequestAttributes;
+            final Callable<Object> indexOfTask = BundleReferenceIndex::current;
+
+            Assert.assertEquals(List.of(attributes, index),
+                                RequestScopedTasks.invokeAll(pool, List.of(attributesOfTask, indexOfTask), "testing"));
+            Assert.assertSame(index, BundleReferenceIndex.current());
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void failureOfTaskIsRethrown() {
+        final ForkJoinPool pool = RequestScopedTasks.newPool("test", 2);
+        try {
+            final Callable<Object> failing = () -> {
+                throw new IllegalArgumentException("failing");
+            };
+            final IllegalArgumentException thrown = Assert.assertThrows(
+                    IllegalArgumentException.class,
+                    () -> RequestScopedTasks.invokeAll(pool, List.of(failing), "testing"));
+            Assert.assertEquals("failing", thrown.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void sequentialWithoutParallelism() {
+        Assert.assertNull(RequestScopedTasks.newOptionalPool("test", 1));
+        final ForkJoinPool pool = RequestScopedTasks.newOptionalPool("test", 2);
+        Assert.assertEquals(2, pool.getParallelism());
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,59 @@
+package com.medblocks.openfhir.util;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.apache.xmlbeans.XmlException;
+import org.ehrbase.openehr.sdk.aql.webtemplatepath.AqlPath;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplateNode;
+import org.ehrbase.openehr.sdk.webtemplate.parser.OPTParser;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openehr.schemas.v1.TemplateDocument;
+
+public class WebTemplateIndexTest {
+
+    @Test
+    public void sameAsScanningNodes() throws IOException, XmlException {
+        final WebTemplate webTemplate = new OPTParser(TemplateDocument.Factory.parse(
+                getClass().getResourceAsStream("/kds/laborbericht/KDS_Laborbericht.opt")).getTemplate()).parse();
+        final WebTemplateIndex index = WebTemplateIndex.of(webTemplate);
+        Assert.assertSame(index, WebTemplateIndex.of(webTemplate));
+
+        assertSameAsScanning(webTemplate.getTree().getChildren(), index.getRoot());
+    }
+
+    private void assertSameAsScanning(final List<WebTemplateNode> webTemplateNodes,
+                                      final WebTemplateIndex.Children children) {
+        Assert.assertEquals(webTemplateNodes.size(), children.getNodes().size());
+        for (int i = 0; i < webTemplateNodes.size(); i++) {
+            final WebTemplateNode webTemplateNode = webTemplateNodes.get(i);
+            final WebTemplateIndex.Node node = children.getNodes().get(i);
+            Assert.assertSame(webTemplateNode, node.webTemplateNode());
+            Assert.assertEquals(webTemplateNode.isMulti(), node.multi());
+            Assert.assertEquals(webTemplateNode.getRmType(), node.rmType());
+
+            Assert.assertSame(webTemplateNodes.stream().filter(wn -> node.id().equals(wn.getId())).findFirst()
+                                      .orElse(null),
+                              children.getById(node.id()).webTemplateNode());
+
+            final AqlPath aqlPath = AqlPath.parse(webTemplateNode.getAqlPath());
+            final Set<String> aqlPathNodes = webTemplateNodes.stream()
+                    .filter(wn -> aqlPath.format(false).equals(wn.getAqlPath(false)))
+                    .map(wn -> wn.getId(false))
+                    .collect(Collectors.toSet());
+            final WebTemplateNode scanned = webTemplateNodes.stream()
+                    .filter(ch -> aqlPath.format(true).equals(ch.getAqlPath(true)) || (
+                            aqlPath.format(false).equals(ch.getAqlPath(false)) && aqlPathNodes.size() <= 1))
+                    .findFirst()
+                    .orElse(null);
+            Assert.assertSame(scanned, children.getByAqlPath(
+                    WebTemplateIndex.formatAqlPath(webTemplateNode.getAqlPath())).webTemplateNode());
+
+            assertSameAsScanning(webTemplateNode.getChildren(), node.children());
+        }
+        Assert.assertNull(children.getById("non_existing"));
+    }
+}